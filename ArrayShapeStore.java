@@ -0,0 +1,376 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.util.*;
+
+/**
+ * Keeps the shapes as numbers rather than objects: a slot per shape, across parallel arrays of its type, its
+ * corners and its color, found from its id by an IntSlotMap. Slots freed by removing shapes are reused.
+ * That comes to a few dozen bytes a shape, with nothing for the garbage collector to trace, where a HeapShapeStore
+ * has the shape object, a boxed id and a map node (and often a Color) for each.
+ *
+ * get hands out a view of the shape's slot, made when it's asked for: it reads and writes the arrays, so moving or
+ * recoloring it changes the store. Once the shape is removed, the view can still be read, until the slot is
+ * used for another shape (so a shape can be removed and put back under a new id, as bringing it to the front does).
+ * Not safe to read while another thread changes it -- use it from a Sketch, holding its lock (as the server does).
+ */
+public class ArrayShapeStore implements ShapeStore {
+	// each type's number, as kept here and in MappedShapeStore
+	static final byte RECTANGLE = 1, ELLIPSE = 2, SEGMENT = 3;
+	static final String[] TYPES = { null, "rectangle", "ellipse", "segment" };
+
+	private byte[] type;						// per slot: which kind of shape is there
+	private int[] x1, y1, x2, y2;				// per slot: its coordinates, as getX1() etc. give them
+	private int[] argb;							// per slot: its color
+	private int[] idAt;							// per slot: its id (the slot's in use if that id's is still this slot)
+	private int used = 0;						// slots handed out so far (the rest of the arrays is spare)
+	private int[] free;							// slots freed by removing shapes, to be used again first
+	private int nFree = 0;
+	private IntSlotMap slotOf;					// id -> slot
+	private int[] order;						// ids in ascending order, for iterating (some may have been removed since)
+	private int ordered = 0;					// how many of them
+	private int stale = 0;						// how many of them have been removed
+	private boolean sorted = true;				// whether order has every id (otherwise it's rebuilt when it's needed)
+
+	public ArrayShapeStore() {
+		this(16);
+	}
+
+	public ArrayShapeStore(int capacity) {
+		capacity = Math.max(capacity, 16);
+		type = new byte[capacity];
+		x1 = new int[capacity];
+		y1 = new int[capacity];
+		x2 = new int[capacity];
+		y2 = new int[capacity];
+		argb = new int[capacity];
+		idAt = new int[capacity];
+		free = new int[16];
+		slotOf = new IntSlotMap(capacity);
+		order = new int[capacity];
+	}
+
+	@Override
+	public Shape get(int id) {
+		int slot = slotOf.get(id);
+		return slot >= 0 ? new View(slot) : null;
+	}
+
+	@Override
+	public void put(int id, Shape shape) {
+		// everything read from the shape first, since it may be a view of a slot just freed (a shape being
+		// brought to the front), which is about to be used again
+		byte kind = kind(shape.getType());
+		int sx1 = shape.getX1(), sy1 = shape.getY1(), sx2 = shape.getX2(), sy2 = shape.getY2();
+		int color = shape.getColor().getRGB();
+		int slot = slotOf.get(id);
+		if (slot < 0) {
+			slot = nFree > 0 ? free[--nFree] : newSlot();
+			slotOf.put(id, slot);
+			idAt[slot] = id;
+			// new shapes almost always come on top, so the order just grows at the end; one that doesn't
+			// (or an id coming back) means sorting it out next time it's needed
+			if (sorted && (ordered == 0 || id > order[ordered - 1])) {
+				if (ordered == order.length) order = Arrays.copyOf(order, grown(order.length));
+				order[ordered++] = id;
+			}
+			else unsort();
+		}
+		type[slot] = kind;
+		x1[slot] = sx1; y1[slot] = sy1;
+		x2[slot] = sx2; y2[slot] = sy2;
+		argb[slot] = color;
+	}
+
+	@Override
+	public void remove(int id) {
+		int slot = slotOf.remove(id);
+		if (slot < 0) return;
+		// (the slot keeps the shape's numbers until it's used again)
+		if (nFree == free.length) free = Arrays.copyOf(free, grown(free.length));
+		free[nFree++] = slot;
+		// left in the order until there are too many removed ids in it to be worth skipping
+		if (sorted && ++stale > 64 && stale > ordered / 2) unsort();
+	}
+
+	@Override
+	public boolean contains(int id, int x, int y) {
+		int slot = slotOf.get(id);
+		return slot >= 0 && hit(slot, x, y);
+	}
+
+	private boolean hit(int slot, int x, int y) {
+		return contains(type[slot], x1[slot], y1[slot], x2[slot], y2[slot], x, y);
+	}
+
+	/**
+	 * Whether the shape of the type (by number) with the coordinates contains the point
+	 */
+	static boolean contains(int type, int x1, int y1, int x2, int y2, int x, int y) {
+		switch (type) {
+			case RECTANGLE: return Rectangle.contains(x1, y1, x2, y2, x, y);
+			case ELLIPSE: return Ellipse.contains(x1, y1, x2, y2, x, y);
+			case SEGMENT: return Segment.contains(x1, y1, x2, y2, x, y);
+			default: return false;
+		}
+	}
+
+	@Override
+	public int size() {
+		return slotOf.size();
+	}
+
+	@Override
+	public void clear() {
+		slotOf.clear();
+		used = 0;
+		nFree = 0;
+		ordered = 0;
+		stale = 0;
+		sorted = true;
+	}
+
+	@Override
+	public ArrayShapeStore copy() {
+		ArrayShapeStore copy = new ArrayShapeStore(0);
+		copy.type = Arrays.copyOf(type, Math.max(used, 16));
+		copy.x1 = Arrays.copyOf(x1, copy.type.length);
+		copy.y1 = Arrays.copyOf(y1, copy.type.length);
+		copy.x2 = Arrays.copyOf(x2, copy.type.length);
+		copy.y2 = Arrays.copyOf(y2, copy.type.length);
+		copy.argb = Arrays.copyOf(argb, copy.type.length);
+		copy.idAt = Arrays.copyOf(idAt, copy.type.length);
+		copy.used = used;
+		copy.free = Arrays.copyOf(free, free.length);
+		copy.nFree = nFree;
+		copy.slotOf = slotOf.copy();
+		// (the order as another reader may be rebuilding it: see ids)
+		synchronized (this) {
+			copy.order = Arrays.copyOf(order, Math.max(ordered, 16));
+			copy.ordered = ordered;
+			copy.stale = stale;
+			copy.sorted = sorted;
+		}
+		return copy;
+	}
+
+	@Override
+	public Map<Integer, Shape> asMap() {
+		return new Shapes(Integer.MIN_VALUE);
+	}
+
+	@Override
+	public Map<Integer, Shape> above(int id) {
+		return new Shapes(id);
+	}
+
+	/**
+	 * The type's number
+	 */
+	static byte kind(String type) {
+		if (type.equals("rectangle")) return RECTANGLE;
+		if (type.equals("ellipse")) return ELLIPSE;
+		if (type.equals("segment")) return SEGMENT;
+		throw new IllegalArgumentException("unknown shape type " + type);
+	}
+
+	private int newSlot() {
+		if (used == type.length) {
+			int capacity = grown(used);
+			type = Arrays.copyOf(type, capacity);
+			x1 = Arrays.copyOf(x1, capacity);
+			y1 = Arrays.copyOf(y1, capacity);
+			x2 = Arrays.copyOf(x2, capacity);
+			y2 = Arrays.copyOf(y2, capacity);
+			argb = Arrays.copyOf(argb, capacity);
+			idAt = Arrays.copyOf(idAt, capacity);
+		}
+		return used++;
+	}
+
+	private static int grown(int length) {
+		return length + (length >> 1) + 16;
+	}
+
+	/**
+	 * Gives up on keeping the order as the shapes change; it's rebuilt (see sorted) when it's next needed
+	 */
+	private void unsort() {
+		sorted = false;
+		ordered = 0;
+		stale = 0;
+	}
+
+	/**
+	 * The ids in ascending order (the first ordered of the array), rebuilt from the slots if need be.
+	 * Readers can call this at the same time (under the sketch's read lock), so a rebuilt order is a new array,
+	 * leaving any other reader's as it was.
+	 */
+	private synchronized int[] ids() {
+		if (!sorted) {
+			int[] ids = new int[Math.max(slotOf.size(), 16)];
+			int n = 0;
+			for (int slot = 0; slot < used; slot++) {
+				if (slotOf.get(idAt[slot]) == slot) ids[n++] = idAt[slot];
+			}
+			Arrays.sort(ids, 0, n);
+			order = ids;
+			ordered = n;
+			stale = 0;
+			sorted = true;
+		}
+		return order;
+	}
+
+	/**
+	 * The shapes with ids above one, in ascending order
+	 */
+	private class Shapes extends AbstractMap<Integer, Shape> {
+		private int after;
+
+		Shapes(int after) {
+			this.after = after;
+		}
+
+		@Override
+		public Shape get(Object key) {
+			return key instanceof Integer && (Integer) key > after ? ArrayShapeStore.this.get((Integer) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public int size() {
+			if (after == Integer.MIN_VALUE) return slotOf.size();
+			return super.size();		// counted
+		}
+
+		@Override
+		public Set<Map.Entry<Integer, Shape>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, Shape>>() {
+				@Override
+				public Iterator<Map.Entry<Integer, Shape>> iterator() {
+					int[] ids;
+					int n;
+					synchronized (ArrayShapeStore.this) {
+						ids = ids();
+						n = ordered;
+					}
+					// from the first id above after, skipping ids that have been removed
+					int start = Arrays.binarySearch(ids, 0, n, after);
+					start = start >= 0 ? start + 1 : -start - 1;
+					int first = start;
+					return new Iterator<Map.Entry<Integer, Shape>>() {
+						int i = skip(first);
+
+						private int skip(int i) {
+							while (i < n && slotOf.get(ids[i]) < 0) i++;
+							return i;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return i < n;
+						}
+
+						@Override
+						public Map.Entry<Integer, Shape> next() {
+							if (i >= n) throw new NoSuchElementException();
+							int id = ids[i];
+							i = skip(i + 1);
+							return new AbstractMap.SimpleImmutableEntry<Integer, Shape>(id, new View(slotOf.get(id)));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					int count = 0;
+					for (Iterator<Map.Entry<Integer, Shape>> it = iterator(); it.hasNext(); it.next()) count++;
+					return count;
+				}
+			};
+		}
+	}
+
+	/**
+	 * A shape in a slot
+	 */
+	private class View implements Shape {
+		private int slot;
+
+		View(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public boolean contains(int x, int y) {
+			return hit(slot, x, y);
+		}
+
+		@Override
+		public java.awt.Rectangle getBounds() {
+			return copy().getBounds();
+		}
+
+		@Override
+		public String getType() {
+			return TYPES[type[slot]];
+		}
+
+		@Override
+		public int getX1() {
+			return x1[slot];
+		}
+
+		@Override
+		public int getY1() {
+			return y1[slot];
+		}
+
+		@Override
+		public int getX2() {
+			return x2[slot];
+		}
+
+		@Override
+		public int getY2() {
+			return y2[slot];
+		}
+
+		@Override
+		public void moveBy(int dx, int dy) {
+			x1[slot] += dx; y1[slot] += dy;
+			x2[slot] += dx; y2[slot] += dy;
+		}
+
+		@Override
+		public Color getColor() {
+			return ColorCache.argb(argb[slot]);
+		}
+
+		@Override
+		public void setColor(Color color) {
+			argb[slot] = color.getRGB();
+		}
+
+		@Override
+		public void draw(Graphics g) {
+			copy().draw(g);
+		}
+
+		@Override
+		public String toString() {
+			return copy().toString();
+		}
+
+		/**
+		 * The shape as an object of its own (for what's easiest left to the shape classes)
+		 */
+		private Shape copy() {
+			return Shape.create(getType(), getX1(), getY1(), getX2(), getY2(), getColor());
+		}
+	}
+}
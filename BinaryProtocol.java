@@ -0,0 +1,280 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing for the sketch protocol, negotiated per connection alongside the text protocol.
+ *
+ * A client that wants binary sends the HELLO byte as the very first byte of the connection (a text client's first
+ * byte is always a letter). From then on it sends binary frames. The server answers by sending the text line
+ * "binary" in order with everything else it sends, and binary frames after that line -- so anything the server
+ * queued before it knew (like the join snapshot) still arrives as text.
+ *
+ * A frame is a one-byte opcode followed by that opcode's fields: ids and coordinates as zigzag varints
+ * (1-2 bytes for typical canvas values), shape types as one byte, and colors as a 4-byte packed ARGB int.
+ *
+ *   from server: JOIN/DRAW id shape x1 y1 x2 y2 argb, MOVE_DRAG id dx dy, RECOLOR id argb, DELETE id, RESET,
+ *                REDIRECT node room, VERSION epoch version
+ *   from client: DRAW shape x1 y1 x2 y2 argb, MOVE_PRESS x y, MOVE_DRAG dx dy, RECOLOR x y argb, DELETE x y,
+ *                ROOM name, RESUME name epoch version, UNDO, REDO
+ * (names, like the room and node -- host:port -- above, are a varint length, then that many bytes of UTF-8;
+ * epochs and versions are zigzag varlongs)
+ */
+public class BinaryProtocol {
+	public static final int HELLO = 0xB1;			// first byte from a client that wants binary
+
+	// opcodes
+	public static final byte JOIN = 1, DRAW = 2, MOVE_DRAG = 3, RECOLOR = 4, DELETE = 5, RESET = 6, MOVE_PRESS = 7,
+			ROOM = 8, REDIRECT = 9, VERSION = 10, RESUME = 11, UNDO = 12, REDO = 13;
+
+	// shape types
+	public static final byte RECTANGLE = 0, ELLIPSE = 1, SEGMENT = 2;
+	private static final String[] SHAPE_NAMES = { "rectangle", "ellipse", "segment" };
+
+	/**
+	 * The one-byte code for a shape type name (see Shape.getType)
+	 */
+	public static byte shapeCode(String type) {
+		for (byte i = 0; i < SHAPE_NAMES.length; i++) {
+			if (SHAPE_NAMES[i].equals(type)) return i;
+		}
+		throw new IllegalArgumentException("unknown shape type " + type);
+	}
+
+	/**
+	 * The shape type name for a one-byte code
+	 */
+	public static String shapeName(byte code) {
+		if (code < 0 || code >= SHAPE_NAMES.length) throw new IllegalArgumentException("unknown shape code " + code);
+		return SHAPE_NAMES[code];
+	}
+
+	/**
+	 * Appends a signed int as a zigzag varint (small magnitudes, positive or negative, take few bytes)
+	 */
+	public static void writeVarint(ByteArrayOutputStream out, int value) {
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * Reads a zigzag varint; throws BufferUnderflowException if the buffer ends partway through it
+	 */
+	public static int readVarint(ByteBuffer in) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return (v >>> 1) ^ -(v & 1);
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+	/**
+	 * Appends a signed long as a zigzag varint
+	 */
+	public static void writeVarlong(ByteArrayOutputStream out, long value) {
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	/**
+	 * Reads a zigzag varlong; throws BufferUnderflowException if the buffer ends partway through it
+	 */
+	public static long readVarlong(ByteBuffer in) {
+		long v = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = in.get();
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return (v >>> 1) ^ -(v & 1);
+		}
+		throw new IllegalArgumentException("malformed varlong");
+	}
+
+	/**
+	 * Appends a 4-byte packed ARGB color
+	 */
+	public static void writeColor(ByteArrayOutputStream out, int argb) {
+		out.write(argb >>> 24);
+		out.write(argb >>> 16);
+		out.write(argb >>> 8);
+		out.write(argb);
+	}
+
+	/**
+	 * Appends a string as a varint length and UTF-8 bytes
+	 */
+	public static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Reads a string written by writeString; throws BufferUnderflowException if the buffer ends partway through it
+	 */
+	public static String readString(ByteBuffer in) {
+		int length = readVarint(in);
+		if (length < 0 || length > 1024) throw new IllegalArgumentException("bad string length " + length);
+		if (in.remaining() < length) throw new BufferUnderflowException();
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Appends a shape's type, corners and color
+	 */
+	public static void writeShape(ByteArrayOutputStream out, Shape shape) {
+		out.write(shapeCode(shape.getType()));
+		writeVarint(out, shape.getX1());
+		writeVarint(out, shape.getY1());
+		writeVarint(out, shape.getX2());
+		writeVarint(out, shape.getY2());
+		writeColor(out, shape.getColor().getRGB());
+	}
+
+	/**
+	 * Reads a shape written by writeShape
+	 */
+	public static Shape readShape(ByteBuffer in) {
+		String type = shapeName(in.get());
+		int x1 = readVarint(in), y1 = readVarint(in), x2 = readVarint(in), y2 = readVarint(in);
+		return Shape.create(type, x1, y1, x2, y2, ColorCache.argb(in.getInt()));
+	}
+
+	/**
+	 * Handles every complete frame from a client in the buffer (between position and limit), leaving the
+	 * position at the start of any incomplete frame at the end
+	 */
+	public static void decodeFromClient(ByteBuffer in, SketchServerCommunicator comm) {
+		while (in.hasRemaining()) {
+			int start = in.position();
+			try {
+				byte op = in.get();
+				switch (op) {
+					case DRAW: {
+						Shape shape = readShape(in);
+						comm.draw(shape);
+						break;
+					}
+					case MOVE_PRESS: {
+						int x = readVarint(in), y = readVarint(in);
+						comm.movePress(x, y);
+						break;
+					}
+					case MOVE_DRAG: {
+						int dx = readVarint(in), dy = readVarint(in);
+						comm.moveDrag(dx, dy);
+						break;
+					}
+					case RECOLOR: {
+						int x = readVarint(in), y = readVarint(in), argb = in.getInt();
+						comm.recolor(x, y, argb);
+						break;
+					}
+					case DELETE: {
+						int x = readVarint(in), y = readVarint(in);
+						comm.delete(x, y);
+						break;
+					}
+					case ROOM: {
+						String name = readString(in);
+						comm.room(name);
+						break;
+					}
+					case RESUME: {
+						String name = readString(in);
+						long epoch = readVarlong(in), version = readVarlong(in);
+						comm.resume(name, epoch, version);
+						break;
+					}
+					case UNDO:
+						comm.undo();
+						break;
+					case REDO:
+						comm.redo();
+						break;
+					default:
+						throw new IllegalArgumentException("unknown opcode " + op);
+				}
+			}
+			catch (BufferUnderflowException e) {
+				// rest of the frame hasn't arrived yet
+				in.position(start);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Handles every complete frame from the server in the buffer (between position and limit), leaving the
+	 * position at the start of any incomplete frame at the end
+	 */
+	public static void decodeFromServer(ByteBuffer in, EditorCommunicator comm) {
+		while (in.hasRemaining()) {
+			int start = in.position();
+			try {
+				byte op = in.get();
+				switch (op) {
+					case JOIN: {
+						int id = readVarint(in);
+						Shape shape = readShape(in);
+						comm.added(id, shape);
+						break;
+					}
+					case DRAW: {
+						int id = readVarint(in);
+						Shape shape = readShape(in);
+						comm.drawn(id, shape);
+						break;
+					}
+					case MOVE_DRAG: {
+						int id = readVarint(in), dx = readVarint(in), dy = readVarint(in);
+						comm.moved(id, dx, dy);
+						break;
+					}
+					case RECOLOR: {
+						int id = readVarint(in), argb = in.getInt();
+						comm.recolored(id, argb);
+						break;
+					}
+					case DELETE: {
+						int id = readVarint(in);
+						comm.deleted(id);
+						break;
+					}
+					case RESET:
+						comm.reset();
+						break;
+					case REDIRECT: {
+						String node = readString(in), room = readString(in);
+						comm.redirected(node, room);
+						break;
+					}
+					case VERSION: {
+						long epoch = readVarlong(in), version = readVarlong(in);
+						comm.versioned(epoch, version);
+						break;
+					}
+					default:
+						throw new IllegalArgumentException("unknown opcode " + op);
+				}
+			}
+			catch (BufferUnderflowException e) {
+				// rest of the frame hasn't arrived yet
+				in.position(start);
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test of moving rooms between the nodes of a cluster: runs each node as a SketchServer process of its own on
+ * localhost (each with its rooms in a temporary directory), draws in a room on the first while it's the only node,
+ * then restarts it with the second added, so that it moves the room there -- checking that a client asking the
+ * first for the room is redirected, that the second serves it with the shape in it, and that a client that was
+ * waiting in the room on the second (empty until then) is switched to it.
+ *
+ * Then restarts the first with, instead, a node that takes the room's connection but never answers, and checks it
+ * keeps serving its other rooms while a room is being sent there (a client asking for that room meanwhile is sent
+ * to the node). Last, checks that the second's peer port refuses a room from an address that isn't a node's, and
+ * one claiming to be bigger than SketchCluster.MAX_BYTES, or to have more than MAX_FILES files.
+ *
+ * Usage: ClusterTest
+ */
+public class ClusterTest {
+	private static final String SHAPE = "rectangle 1 2 30 40 -16777216";
+	private static int failures = 0;
+
+	/**
+	 * A text client of one of the nodes
+	 */
+	private static class Client implements Closeable {
+		Socket socket;
+		BufferedReader in;
+		PrintWriter out;
+
+		Client(int port) throws IOException {
+			socket = new Socket("localhost", port);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+		}
+
+		/**
+		 * The first line the server sends, within the time, that starts with the prefix (null if none does)
+		 */
+		String expect(String prefix, int ms) throws IOException {
+			long until = System.currentTimeMillis() + ms;
+			try {
+				while (true) {
+					int left = (int) (until - System.currentTimeMillis());
+					if (left <= 0) return null;
+					socket.setSoTimeout(left);
+					String line = in.readLine();
+					if (line == null) return null;
+					if (line.startsWith(prefix)) return line;
+				}
+			}
+			catch (SocketTimeoutException e) {
+				return null;
+			}
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port1 = freePorts(), port2 = freePorts(port1), port3 = freePorts(port1, port2);
+		String node1 = "localhost:" + port1, node2 = "localhost:" + port2, node3 = "localhost:" + port3;
+		Path dir1 = Files.createTempDirectory("sketch-cluster"), dir2 = Files.createTempDirectory("sketch-cluster");
+		SketchCluster both = new SketchCluster(node1, List.of(node1, node2));
+		String room = roomOf("moved", Map.of(both, node2));
+		Process first = start(port1, dir1, node1);
+		Process second = start(port2, dir2, node1, node2);
+		try {
+			// a room on the first node, alone
+			try (Client drawer = new Client(port1)) {
+				drawer.out.println("room " + room);
+				drawer.out.println("draw " + SHAPE);
+				check("drawn on the first node", drawer.expect("draw ", 2000) != null);
+			}
+
+			// someone waiting in the (empty) room on the second node, which is to get it
+			Client waiting = new Client(port2);
+			waiting.out.println("room " + room);
+			check("waiting on the second node", waiting.expect("version ", 2000) != null);
+
+			// the first restarted knowing of the second, so it moves the room there
+			stop(first);
+			first = start(port1, dir1, node1, node2);
+			check("joiner redirected", redirected(port1, room, node2));
+			try (Client moved = new Client(port2)) {
+				moved.out.println("room " + room);
+				String join = moved.expect("join ", 2000);
+				check("served by the second node", join != null && join.endsWith(SHAPE));
+			}
+			check("waiting member switched to the moved room", waiting.expect("reset", 2000) != null
+					&& String.valueOf(waiting.expect("join ", 2000)).endsWith(SHAPE));
+			waiting.out.println("draw " + SHAPE);
+			check("waiting member draws in it", waiting.expect("draw ", 2000) != null);
+			waiting.close();
+
+			// a node that takes the room's connection but never answers (in place of the second)
+			SketchCluster three = new SketchCluster(node1, List.of(node1, node3));
+			String stuck = roomOf("stuck", Map.of(both, node1, three, node3));
+			String kept = roomOf("kept", Map.of(three, node1));
+			try (Client client = new Client(port1)) {
+				client.out.println("room " + stuck);
+				client.out.println("draw " + SHAPE);
+				check("drawn in the room to be stuck", client.expect("draw ", 2000) != null);
+			}
+			ServerSocket silent = new ServerSocket(port3 + 1);
+			try {
+				// (connections to it are taken by the system, and never read)
+				stop(first);
+				first = start(port1, dir1, node1, node3);
+				check("joiner sent to the node it's going to", redirected(port1, stuck, node3));
+				try (Client other = new Client(port1)) {
+					long start = System.currentTimeMillis();
+					other.out.println("room " + kept);
+					other.out.println("draw " + SHAPE);
+					String draw = other.expect("draw ", 2000);
+					check("other room served meanwhile (" + (System.currentTimeMillis() - start) + " ms)",
+							draw != null);
+				}
+			}
+			finally {
+				silent.close();
+			}
+
+			// rooms not to take
+			String stranger = answer(port2, "127.0.0.2");
+			if (stranger == null) System.out.println("skipped: no other loopback address to send from");
+			else check("room from elsewhere refused", stranger.startsWith("not a node"));
+			check("too many files refused", offer(port2, room, Integer.MAX_VALUE, 0).startsWith("too many files"));
+			check("too big refused", offer(port2, room, 1, Integer.MAX_VALUE).startsWith("too big"));
+			check("negative length refused", offer(port2, room, 1, -1).startsWith("too big"));
+			try (Client still = new Client(port2)) {
+				still.out.println("room " + room);
+				String join = still.expect("join ", 2000);
+				check("room unchanged", join != null && join.endsWith(SHAPE));
+			}
+		}
+		finally {
+			stop(first);
+			stop(second);
+		}
+
+		System.out.println(failures == 0 ? "ok" : failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok: " : "FAILED: ") + what);
+		if (!ok) failures++;
+	}
+
+	/**
+	 * A server process on the port, with its rooms in the directory, as one of the nodes -- once it's ready for
+	 * connections (its rooms kept every second, so a room it doesn't own is moved soon after it starts)
+	 */
+	private static Process start(int port, Path dir, String... nodes) throws Exception {
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				"-Dsketch.port=" + port, "-Dsketch.node=localhost:" + port, "-Dsketch.cluster=" + String.join(",", nodes),
+				"-Dsketch.log=" + dir, "-Dsketch.snapshotInterval=1", "SketchServer")
+				.redirectErrorStream(true).start();
+		CountDownLatch ready = new CountDownLatch(1);
+		List<String> said = Collections.synchronizedList(new ArrayList<String>());
+		Thread output = new Thread(() -> {
+			// (read to the end, so the server never blocks writing it)
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream()))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("server ready")) ready.countDown();
+					else if (ready.getCount() > 0) said.add(line);
+				}
+			}
+			catch (IOException e) {
+				// gone
+			}
+		});
+		output.setDaemon(true);
+		output.start();
+		if (!ready.await(10, TimeUnit.SECONDS)) {
+			server.destroyForcibly();
+			throw new IOException("node on port " + port + " didn't start: " + said);
+		}
+		return server;
+	}
+
+	/**
+	 * Stops the server process as it would be stopped normally (closing its rooms on the way down)
+	 */
+	private static void stop(Process server) throws InterruptedException {
+		server.destroy();
+		if (!server.waitFor(10, TimeUnit.SECONDS)) server.destroyForcibly().waitFor();
+	}
+
+	/**
+	 * Whether a client asking the node on the port for the room is redirected to the other node within a few
+	 * seconds (asking again until it is, since the room's moved a moment after the node starts)
+	 */
+	private static boolean redirected(int port, String room, String to) throws IOException {
+		long until = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < until) {
+			try (Client client = new Client(port)) {
+				client.out.println("room " + room);
+				String line = client.expect("redirect", 500);
+				if (line != null) return line.equals("redirect " + to + " " + room);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A port that's free, with the one after it free too (for the node's peers), and neither of them one of those
+	 * given (or the one after it)
+	 */
+	private static int freePorts(int... taken) throws IOException {
+		next:
+		while (true) {
+			int port;
+			try (ServerSocket probe = new ServerSocket(0)) {
+				port = probe.getLocalPort();
+			}
+			if (port >= 65535) continue;
+			for (int other : taken) {
+				if (Math.abs(port - other) <= 1) continue next;
+			}
+			try {
+				new ServerSocket(port + 1).close();
+				return port;
+			}
+			catch (IOException e) {
+				// taken: try another
+			}
+		}
+	}
+
+	/**
+	 * A room name starting with the prefix that each of the clusters gives its node
+	 */
+	private static String roomOf(String prefix, Map<SketchCluster, String> owners) {
+		next:
+		for (int i = 0; ; i++) {
+			for (Map.Entry<SketchCluster, String> owner : owners.entrySet()) {
+				if (!owner.getKey().owner(prefix + i).equals(owner.getValue())) continue next;
+			}
+			return prefix + i;
+		}
+	}
+
+	/**
+	 * What the node's peer port answers a connection from the local address, before anything's sent -- or null if
+	 * there's no such address to connect from
+	 */
+	private static String answer(int port, String from) throws IOException {
+		try (Socket peer = new Socket()) {
+			try {
+				peer.bind(new InetSocketAddress(from, 0));
+			}
+			catch (IOException e) {
+				return null;
+			}
+			peer.connect(new InetSocketAddress("localhost", port + 1), 5000);
+			peer.setSoTimeout(5000);
+			return new DataInputStream(peer.getInputStream()).readUTF();
+		}
+	}
+
+	/**
+	 * Sends the node's peer port a room of that many files, the first claiming to be that long (without sending
+	 * any of it), and returns the answer
+	 */
+	private static String offer(int port, String room, int files, int length) throws IOException {
+		try (Socket peer = new Socket("localhost", port + 1)) {
+			peer.setSoTimeout(5000);
+			DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+			out.writeUTF(room);
+			out.writeInt(files);
+			if (files > 0 && files <= SketchCluster.MAX_FILES) {
+				out.writeUTF("snapshot");
+				out.writeInt(length);
+			}
+			out.flush();
+			return new DataInputStream(peer.getInputStream()).readUTF();
+		}
+	}
+}
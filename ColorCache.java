@@ -0,0 +1,30 @@
+import java.awt.Color;
+
+/**
+ * Shares Color instances by ARGB value, so parsing a message doesn't have to make a new Color for it.
+ * Direct-mapped: each value has one slot, and a value colliding with another just replaces it. Colors are
+ * immutable and each slot is read once, so threads can share the cache without locking.
+ */
+public class ColorCache {
+	private static final Color[] colors = new Color[4096];
+
+	/**
+	 * The color with the given (opaque) RGB value, as sent by the text protocol
+	 */
+	public static Color rgb(int rgb) {
+		return argb(rgb | 0xff000000);
+	}
+
+	/**
+	 * The color with the given ARGB value, as sent by the binary protocol
+	 */
+	public static Color argb(int argb) {
+		int slot = (argb ^ (argb >>> 12) ^ (argb >>> 24)) & (colors.length - 1);
+		Color color = colors[slot];
+		if (color == null || color.getRGB() != argb) {
+			color = new Color(argb, true);
+			colors[slot] = color;
+		}
+		return color;
+	}
+}
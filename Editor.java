@@ -1,4 +1,3 @@
-import java.util.List;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
@@ -33,6 +32,7 @@ public class Editor extends JFrame {
     // these are remnants of my implementation; take them as possible suggestions or ignore them
     private Shape curr = null;                    // current shape (if any) being drawn
     private Sketch sketch;                        // holds and handles all the completed objects
+    private LayerCache layer;                     // the sketch's shapes drawn so far, cached in tiles
     private Point drawFrom = null;                // where the drawing started
     private Point moveFrom = null;                // where object is as it's being dragged
 
@@ -40,19 +40,24 @@ public class Editor extends JFrame {
     // Communication
     private EditorCommunicator comm;            // communication with the sketch server
 
+    private JComponent canvas;                  // where the sketch is drawn
+
     public Editor() {
         super("Graphical Editor");
 
         sketch = new Sketch();
+        layer = new LayerCache(sketch);
 
         // Connect to server
         comm = new EditorCommunicator(serverIP, this);
-        comm.start();
 
         // Helpers to create the canvas and GUI (buttons, etc.)
-        JComponent canvas = setupCanvas();
+        canvas = setupCanvas();
         JComponent gui = setupGUI();
 
+        // Start handling what the server sends (which repaints the canvas)
+        comm.start();
+
         // Put the buttons and canvas together into the window
         Container cp = getContentPane();
         cp.setLayout(new BorderLayout());
@@ -148,6 +153,27 @@ public class Editor extends JFrame {
         modesP.add(recolorB);
         modesP.add(deleteB);
 
+        // Undo and redo (done by the server, so everyone sees them), also on ctrl-Z and ctrl-Y / ctrl-shift-Z
+        JButton undoB = new JButton("undo");
+        undoB.addActionListener(e -> comm.undo());
+        JButton redoB = new JButton("redo");
+        redoB.addActionListener(e -> comm.redo());
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        InputMap keys = getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut), "undo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut), "redo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut | InputEvent.SHIFT_DOWN_MASK), "redo");
+        getRootPane().getActionMap().put("undo", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                comm.undo();
+            }
+        });
+        getRootPane().getActionMap().put("redo", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                comm.redo();
+            }
+        });
+
         // Put all the stuff into a panel
         JComponent gui = new JPanel();
         gui.setLayout(new FlowLayout());
@@ -155,6 +181,8 @@ public class Editor extends JFrame {
         gui.add(chooseColorB);
         gui.add(colorL);
         gui.add(modesP);
+        gui.add(undoB);
+        gui.add(redoB);
         return gui;
     }
 
@@ -166,20 +194,43 @@ public class Editor extends JFrame {
     }
 
     /**
-     * Draws all the shapes in the sketch,
+     * Repaints just the area of the canvas, e.g. where a shape was and where it is now
+     * (can be called from any thread; areas asked for before the next paint are painted together)
+     */
+    public void repaint(java.awt.Rectangle area) {
+        canvas.repaint(area);
+    }
+
+    /**
+     * Notes that the shape with the id has changed in the area (where it was, or where it is now), and repaints
+     * that area (can be called from any thread)
+     */
+    public void changed(int id, java.awt.Rectangle area) {
+        layer.changed(id, area);
+        repaint(area);
+    }
+
+    /**
+     * Notes that every shape is gone, and repaints the lot
+     */
+    public void cleared() {
+        layer.clear();
+        repaint();
+    }
+
+    /**
+     * Draws all the shapes in the sketch that are in the area being painted (only they can change what's there),
      * along with the object currently being drawn in this editor (not yet part of the sketch)
      */
     public void drawSketch(Graphics g) {
-        // gets a list of all the shapes in the sketch and draws each shape on the screen
-        List<Shape> shapes = sketch.getShapes();
-        for (Shape s : shapes) {
-            s.draw(g);
-            repaint();
-        }
+        // draws the shapes in the area being painted: the ones that haven't changed lately from the layer's
+        // cached tiles, and the rest over them
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (clip == null) clip = new java.awt.Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+        layer.paint(g, clip);
         // draws the current shape being manipulated in real time locally
         if (curr != null) {
             curr.draw(g);
-            repaint();
         }
     }
 
@@ -216,19 +267,18 @@ public class Editor extends JFrame {
 
         // In moving mode, send a message to start dragging
         if (mode == Mode.MOVE) {
-            comm.send("move press " + (int) p.getX() + " " + (int) p.getY());
+            comm.movePress((int) p.getX(), (int) p.getY());
             // sets the moveFrom point to the point where the mouse was pressed
             moveFrom = p;
         }
-        // In recoloring mode, send a message to change the shape's color, repaint the screen
+        // In recoloring mode, send a message to change the shape's color (the screen is repainted when the
+        // server says it's been done)
         else if (mode == Mode.RECOLOR) {
-            comm.send("recolor " + (int) p.getX() + " " + (int) p.getY() + " " + color.getRGB());
-            repaint();
+            comm.recolor((int) p.getX(), (int) p.getY(), color.getRGB());
         }
-        // In deleting mode, send a message to delete the shape if, then repaint the screen
+        // In deleting mode, send a message to delete the shape, likewise
         else if (mode == Mode.DELETE) {
-            comm.send("delete " + (int) p.getX() + " " + (int) p.getY());
-            repaint();
+            comm.delete((int) p.getX(), (int) p.getY());
         }
 
     }
@@ -239,26 +289,26 @@ public class Editor extends JFrame {
      * in moving mode, (request to) drag the object
      */
     private void handleDrag(Point p) {
-        // In drawing mode, revise the shape as it is stretched out
+        // In drawing mode, revise the shape as it is stretched out, repainting where it was and where it is now
         if (mode == Mode.DRAW) {
+            java.awt.Rectangle before = curr.getBounds();
             // if the shape is an ellipse that is being drawn, reset its corners updating x2 and y2 based on
-            // the point where the mouse is dragged to and repaint
+            // the point where the mouse is dragged to
             if (shapeType.equals("ellipse")) {
                 ((Ellipse) curr).setCorners((int) drawFrom.getX(), (int) drawFrom.getY(), (int) p.getX(), (int) p.getY());
-                repaint();
             }
             // if the shape is a rectangle that is being drawn, reset its corners updating x2 and y2 based on
-            // the point where the mouse is dragged to and repaint
+            // the point where the mouse is dragged to
             else if (shapeType.equals("rectangle")) {
                 ((Rectangle) curr).setCorners((int) drawFrom.getX(), (int) drawFrom.getY(), (int) p.getX(), (int) p.getY());
-                repaint();
             }
             // if the shape is a segment that is being drawn, set its end points to the point where the mouse
-            // is dragged to and repaint
+            // is dragged to
             else if (shapeType.equals("segment")) {
                 ((Segment) curr).setEnd((int) p.getX(), (int) p.getY());
-                repaint();
             }
+            repaint(before);
+            repaint(curr.getBounds());
         }
 
         if (mode == Mode.MOVE) {
@@ -270,7 +320,7 @@ public class Editor extends JFrame {
             if (moveFrom != null) {
                 double xMoved = p.getX() - moveFrom.getX();
                 double yMoved = p.getY() - moveFrom.getY();
-                comm.send("move drag "+(int)xMoved + " " + (int)yMoved);
+                comm.moveDrag((int) xMoved, (int) yMoved);
                 moveFrom = p;
             }
         }
@@ -284,12 +334,17 @@ public class Editor extends JFrame {
      */
     private void handleRelease() {
         // if drawing mode, send a message to draw the current shape and then set current to null
+        // (it's drawn again once the server sends it back as part of the sketch)
         if (mode == Mode.DRAW) {
-            comm.send("draw " +curr.toString());
+            comm.draw(curr);
+            repaint(curr.getBounds());
             curr = null;
         }
-        // In moving mode, stop dragging the object
-        if (mode == Mode.MOVE) moveFrom = null;
+        // In moving mode, stop dragging the object (sending where it ended up)
+        if (mode == Mode.MOVE) {
+            comm.flushDrag();
+            moveFrom = null;
+        }
     }
 
     public static void main(String[] args) {
@@ -1,9 +1,15 @@
 import java.awt.*;
 import java.io.*;
-import java.net.Socket;;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.swing.Timer;
 
 /**
  * Handles communication to/from the server for the editor
+ * Speaks the text protocol, or the binary one (BinaryProtocol) when run with -Dsketch.binary=true
+ * (which needs a server that knows it); draws in the server's default room, or the one named by -Dsketch.room
+ * If the connection drops, reconnects, and asks to be sent just what it missed meanwhile
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012
  * @author Chris Bailey-Kellogg; overall structure substantially revised Winter 2014
@@ -11,21 +17,32 @@ import java.net.Socket;;
  * @author Avi Dixit & Hannah Brookes, CS10, March 2020
  */
 public class EditorCommunicator extends Thread {
-	private PrintWriter out;      // to server
-	private BufferedReader in;    // from server
+	private Socket sock;          // connection to server
+	private OutputStream out;     // to server
+	private InputStream in;       // from server
+	private boolean binary;       // whether to speak the binary protocol
+	private String room;          // the room asked for (null for the server's default)
+	private String node;          // the server node (host:port) we're connected to
+	private volatile String redirect;	// node the server has told us to go to instead, if any
+	private long epoch, version = -1;	// where our sketch is in the room's history, as far as we know (see versioned)
 	protected Editor editor;      // handling communication for
 	private Shape curr = null;	  // current shape being handled
+	private int dragDx, dragDy;   // drags not sent yet (see moveDrag)
+	private Timer dragTimer;      // paces drags to one per frame
 
 	/**
 	 * Establishes connection and in/out pair
+	 * The server is a host, or host:port if it isn't on -Dsketch.port (4242 by default)
 	 */
 	public EditorCommunicator(String serverIP, Editor editor) {
 		this.editor = editor;
-		System.out.println("connecting to " + serverIP + "...");
+		binary = Boolean.getBoolean("sketch.binary");
+		room = System.getProperty("sketch.room");
+		dragTimer = new Timer(Integer.getInteger("sketch.dragFrame", 16), e -> frameDrag());
+		String node = serverIP.contains(":") ? serverIP : serverIP + ":" + Integer.getInteger("sketch.port", 4242);
+		System.out.println("connecting to " + node + "...");
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			connect(node);
 			System.out.println("...connected");
 		}
 		catch (IOException e) {
@@ -35,130 +52,385 @@ public class EditorCommunicator extends Thread {
 	}
 
 	/**
-	 * Sends message to the server
+	 * A communicator without a connection, for subclasses that feed it what a server would send themselves
+	 * (through TextProtocol.decodeFromServer or BinaryProtocol.decodeFromServer), as the benchmarks do
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	protected EditorCommunicator(Editor editor) {
+		this(editor, false);
 	}
 
 	/**
-	 * Keeps listening for and handling (your code) messages from the server
+	 * A communicator without a connection, speaking the binary protocol or not, whose requests go wherever the
+	 * subclass's send sends them (as LoadGenerator's simulated editors do). With no frame timer, each drag is
+	 * sent as it's made, so it's up to the subclass to pace them
 	 */
-	public void run() {
-		try {
-			// Handle messages
-			String line;
-
-			// while there are messaged coming in, continue
-			while ((line = in.readLine()) != null) {
-				// Array of the strings in message split by spaces
-				String[] split = line.strip().split(" ");
-				// The first string in the array is the 'command' to do
-				String command = split[0];
-				// Keep track of the id of the current shape
-				int currId = -1;
-
-				// if command is join, then update the new editor on the state of the server sketch
-				if (command.equals("join")) {
-					// set currId to be the second value received from the server
-					currId = Integer.parseInt(split[1]);
-					// if the shape is a rectangle, then make a new rectangle with id currID
-					if (split[2].equals("rectangle")) {
-						editor.getSketch().addShape(currId, new Rectangle(
-								Integer.parseInt(split[3]),Integer.parseInt(split[4]), Integer.parseInt(split[5]),
-								Integer.parseInt(split[6]), new Color(Integer.parseInt(split[7]))));
-					}
-					// else if the shape is an ellipse, then make a new ellipse with id currID
-					else if (split[2].equals("ellipse")) {
-						editor.getSketch().addShape(currId, new Ellipse(
-								Integer.parseInt(split[3]),Integer.parseInt(split[4]), Integer.parseInt(split[5]),
-								Integer.parseInt(split[6]), new Color(Integer.parseInt(split[7]))));
-					}
-					// else if the shape is a segment, then make a new segment with id currID
-					else if (split[2].equals("segment")) {
-						editor.getSketch().addShape(currId, new Segment(
-								Integer.parseInt(split[3]),Integer.parseInt(split[4]), Integer.parseInt(split[5]),
-								Integer.parseInt(split[6]), new Color(Integer.parseInt(split[7]))));
-					}
+	protected EditorCommunicator(Editor editor, boolean binary) {
+		this.editor = editor;
+		this.binary = binary;
+	}
 
-				}
-				// else if the command is draw, then draw a new shape on the editor's screen
-				else if (command.equals("draw")) {
-					// set currId to be the second value received from the server
-					currId = Integer.parseInt(split[1]);
-					// if the shape is a rectangle, then set curr to be a new rectangle with id currID
-					if (split[2].equals("rectangle")) {
-						 curr = new Rectangle(
-								Integer.parseInt(split[3]),Integer.parseInt(split[4]), Integer.parseInt(split[5]),
-								Integer.parseInt(split[6]), new Color(Integer.parseInt(split[7])));
-					}
-					// else if the shape is an ellipse, then set curr to a new ellipse with id currID
-					else if (split[2].equals("ellipse")) {
-						curr = new Ellipse(
-								Integer.parseInt(split[3]),Integer.parseInt(split[4]), Integer.parseInt(split[5]),
-								Integer.parseInt(split[6]), new Color(Integer.parseInt(split[7])));
-					}
-					// else if the shape is a segment, then set curr to a new segment with id currID
-					else if (split[2].equals("segment")) {
-						curr = new Segment(
-								Integer.parseInt(split[3]),Integer.parseInt(split[4]), Integer.parseInt(split[5]),
-								Integer.parseInt(split[6]), new Color(Integer.parseInt(split[7])));
-					}
-					// add the new curr shape to the editor's sketch and repaint to update
-					editor.getSketch().addShape(currId, curr);
-					editor.repaint();
-				}
-				// else if the command is move, then move the current object
-				else if (command.equals("move")) {
-					// secondCommand is whether the user is pressing or dragging right now
-					String secondCommand = split[1];
-
-					// if the user is moving and dragging, then move the shape connected to the id passed by the server
-					// the dx and dy also passed by the server
-					if (secondCommand.equals("drag")) {
-						int currDragId = Integer.parseInt(split[2]);
-						int dx = Integer.parseInt(split[3]);
-						int dy = Integer.parseInt(split[4]);
-						curr = editor.getSketch().getShapeFromID(currDragId);
-						// if current exists, then move the current shape and repaint
-						if (curr != null) {
-							curr.moveBy(dx, dy);
-							editor.repaint();
-						}
-					}
-				}
-				// else if the command is recolor, the recolor the current object
-				else if (command.equals("recolor")) {
-					// current is the shape associated with the id passed by the server
-					currId = Integer.parseInt(split[1]);
-					curr = editor.getSketch().getShapeFromID(currId);
-					// if current exists, change the color of the shape and repaint
-					if (curr != null) {
-						curr.setColor(new Color(Integer.parseInt(split[2])));
-						editor.repaint();
-					}
+	/**
+	 * Connects to the node (host:port), asks for binary if we speak it, and for our room if it isn't the default
+	 * -- or, reconnecting, to pick up in our room from the version we're at
+	 */
+	private synchronized void connect(String node) throws IOException {
+		this.node = node;
+		sock = new Socket(SketchCluster.host(node), SketchCluster.port(node));
+		// each request is written and flushed whole, so don't let Nagle hold it back waiting for an ack
+		sock.setTcpNoDelay(true);
+		out = new BufferedOutputStream(sock.getOutputStream());
+		in = new BufferedInputStream(sock.getInputStream());
+		// ask for binary before anything else
+		if (binary) {
+			out.write(BinaryProtocol.HELLO);
+			out.flush();
+		}
+		// and go to the room asked for (everyone starts in the server's default one)
+		if (version >= 0) resume(room != null ? room : SketchServer.DEFAULT_ROOM, epoch, version);
+		else if (room != null) room(room);
+	}
 
+	/**
+	 * Connects to the node, trying again (less and less often) until it answers
+	 */
+	private void reconnect(String node) {
+		for (long wait = 250; ; wait = Math.min(2 * wait, 10000)) {
+			try {
+				connect(node);
+				System.out.println("...reconnected");
+				return;
+			}
+			catch (IOException e) {
+				try {
+					Thread.sleep(wait);
 				}
-				// else if the command is delete, delete the current shape
-				else if (command.equals("delete")) {
-					// current is the shape associated with the id passed by the server
-					currId = Integer.parseInt(split[1]);
-					curr = editor.getSketch().getShapeFromID(currId);
-					// if current exists, delete the shape and repaint
-					if (curr != null) {
-						editor.getSketch().removeShapeByID(currId);
-						editor.repaint();
-					}
-
+				catch (InterruptedException stop) {
+					return;
 				}
-
 			}
 		}
+	}
+
+	/**
+	 * Sends a text message to the server
+	 */
+	public synchronized void send(String msg) {
+		send((msg + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends an already encoded message (text line or binary frame) to the server
+	 */
+	protected synchronized void send(byte[] msg) {
+		try {
+			out.write(msg);
+			out.flush();
+		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
-		finally {
-			System.out.println("server hung up");
+	}
+
+	// Requests to the server, in whichever protocol we speak
+
+	/**
+	 * Asks the server to add the shape
+	 */
+	public void draw(Shape shape) {
+		flushDrag();
+		if (!binary) {
+			send("draw " + shape);
+			return;
+		}
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(BinaryProtocol.DRAW);
+		BinaryProtocol.writeShape(frame, shape);
+		send(frame.toByteArray());
+	}
+
+	/**
+	 * Asks the server to start moving the shape at (x,y)
+	 */
+	public void movePress(int x, int y) {
+		flushDrag();
+		if (!binary) {
+			send("move press " + x + " " + y);
+			return;
+		}
+		send(frame(BinaryProtocol.MOVE_PRESS, x, y));
+	}
+
+	/**
+	 * Asks the server to move the shape being moved by (dx,dy)
+	 * Sent at most once a frame: the first drag goes right away, and the ones that come in during the frame are
+	 * summed and sent together when it ends (or sooner, by flushDrag, when the mouse is released or another
+	 * request is made). Like the editor's other calls in here, this is only called on the event dispatch thread
+	 */
+	public void moveDrag(int dx, int dy) {
+		dragDx += dx;
+		dragDy += dy;
+		if (dragTimer == null) {
+			flushDrag();
+		}
+		else if (!dragTimer.isRunning()) {
+			flushDrag();
+			dragTimer.start();
+		}
+	}
+
+	/**
+	 * At the end of a frame, sends what was dragged during it, and keeps pacing if there was anything
+	 */
+	private void frameDrag() {
+		if (dragDx == 0 && dragDy == 0) dragTimer.stop();
+		else flushDrag();
+	}
+
+	/**
+	 * Sends any drags moveDrag is holding back
+	 */
+	public void flushDrag() {
+		if (dragDx == 0 && dragDy == 0) return;
+		if (!binary) send("move drag " + dragDx + " " + dragDy);
+		else send(frame(BinaryProtocol.MOVE_DRAG, dragDx, dragDy));
+		dragDx = 0;
+		dragDy = 0;
+	}
+
+	/**
+	 * Asks the server to recolor the shape at (x,y)
+	 */
+	public void recolor(int x, int y, int rgb) {
+		flushDrag();
+		if (!binary) {
+			send("recolor " + x + " " + y + " " + rgb);
+			return;
+		}
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(BinaryProtocol.RECOLOR);
+		BinaryProtocol.writeVarint(frame, x);
+		BinaryProtocol.writeVarint(frame, y);
+		BinaryProtocol.writeColor(frame, rgb);
+		send(frame.toByteArray());
+	}
+
+	/**
+	 * Asks the server to delete the shape at (x,y)
+	 */
+	public void delete(int x, int y) {
+		flushDrag();
+		if (!binary) {
+			send("delete " + x + " " + y);
+			return;
+		}
+		send(frame(BinaryProtocol.DELETE, x, y));
+	}
+
+	/**
+	 * Asks the server to undo the latest change we made (which it broadcasts, like any other)
+	 */
+	public void undo() {
+		flushDrag();
+		if (!binary) send("undo");
+		else send(new byte[] { BinaryProtocol.UNDO });
+	}
+
+	/**
+	 * Asks the server to make the change we last undid again
+	 */
+	public void redo() {
+		flushDrag();
+		if (!binary) send("redo");
+		else send(new byte[] { BinaryProtocol.REDO });
+	}
+
+	/**
+	 * Asks the server to move us to the named room (it'll reset our sketch and send that room's)
+	 */
+	public void room(String name) {
+		room = name;
+		flushDrag();
+		if (!binary) {
+			send("room " + name);
+			return;
+		}
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(BinaryProtocol.ROOM);
+		BinaryProtocol.writeString(frame, name);
+		send(frame.toByteArray());
+	}
+
+	/**
+	 * Asks the server to put us back in the room, sending just the changes since the version if it still can
+	 * (only as the first request on a connection)
+	 */
+	private void resume(String name, long epoch, long version) {
+		if (!binary) {
+			send("resume " + name + " " + epoch + " " + version);
+			return;
 		}
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(BinaryProtocol.RESUME);
+		BinaryProtocol.writeString(frame, name);
+		BinaryProtocol.writeVarlong(frame, epoch);
+		BinaryProtocol.writeVarlong(frame, version);
+		send(frame.toByteArray());
+	}
+
+	private static byte[] frame(byte op, int a, int b) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(8);
+		frame.write(op);
+		BinaryProtocol.writeVarint(frame, a);
+		BinaryProtocol.writeVarint(frame, b);
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Keeps listening for and handling (your code) messages from the server
+	 */
+	public void run() {
+		while (true) {
+			try {
+				read();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				// going anyway
+			}
+			String node = redirect;
+			redirect = null;
+			if (node != null) {
+				// the server has handed our room to another node: go there, and start over with what it sends
+				reset();
+				System.out.println("redirected to " + node);
+			}
+			else {
+				// we've lost the server: keep what we have if we know where it leaves off, so we can pick up from there
+				node = this.node;
+				if (version < 0) reset();
+				System.out.println("server hung up; reconnecting...");
+			}
+			reconnect(node);
+		}
+	}
+
+	/**
+	 * Handles messages from the server until it hangs up or redirects us
+	 */
+	private void read() throws IOException {
+		// Handle messages: text lines, until the server says the rest will be binary
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		TextProtocol text = new TextProtocol();
+		boolean binary = false;
+		int n;
+
+		// while there are messaged coming in, continue
+		while (redirect == null && (n = in.read(buf.array(), buf.position(), buf.remaining())) >= 0) {
+			buf.position(buf.position() + n);
+			buf.flip();
+			if (!binary) binary = text.decodeFromServer(buf, this);
+			if (binary) BinaryProtocol.decodeFromServer(buf, this);
+			buf.compact();
+			if (!buf.hasRemaining()) throw new IOException("message too long");
+		}
+	}
+
+	// What the server tells us, in whichever protocol it came
+
+	/**
+	 * Adds the new shape to the editor's sketch and repaints where it is (and where any shape it replaces was)
+	 */
+	public void added(int id, Shape shape) {
+		Shape replaced = editor.getSketch().getShapeFromID(id);
+		curr = shape;
+		editor.getSketch().addShape(id, curr);
+		if (replaced != null) editor.changed(id, replaced.getBounds());
+		editor.changed(id, curr.getBounds());
+	}
+
+	/**
+	 * Adds a shape someone has just drawn (a change, unlike a shape we're sent as part of the sketch)
+	 */
+	public void drawn(int id, Shape shape) {
+		added(id, shape);
+		changed();
+	}
+
+	/**
+	 * Moves the shape connected to the id passed by the server by the dx and dy also passed by the server
+	 */
+	public void moved(int id, int dx, int dy) {
+		curr = editor.getSketch().getShapeFromID(id);
+		// if current exists, then move the current shape (through the sketch, so it stays indexed) and repaint
+		// where it was and where it is now
+		if (curr != null) {
+			java.awt.Rectangle before = curr.getBounds();
+			editor.getSketch().moveShape(id, dx, dy);
+			editor.changed(id, before);
+			editor.changed(id, curr.getBounds());
+		}
+		changed();
+	}
+
+	/**
+	 * Changes the color of the shape associated with the id passed by the server
+	 */
+	public void recolored(int id, int rgb) {
+		curr = editor.getSketch().getShapeFromID(id);
+		// if current exists, change the color of the shape and repaint it
+		if (curr != null) {
+			editor.getSketch().recolorShape(id, ColorCache.rgb(rgb));
+			editor.changed(id, curr.getBounds());
+		}
+		changed();
+	}
+
+	/**
+	 * Deletes the shape associated with the id passed by the server
+	 */
+	public void deleted(int id) {
+		curr = editor.getSketch().getShapeFromID(id);
+		// if current exists, delete the shape and repaint where it was
+		if (curr != null) {
+			editor.getSketch().removeShapeByID(id);
+			editor.changed(id, curr.getBounds());
+		}
+		changed();
+	}
+
+	/**
+	 * Notes that the server wants us to reconnect to another node (host:port) for the room; done once the
+	 * message in hand has been handled
+	 */
+	public void redirected(String node, String room) {
+		this.room = room;
+		redirect = node;
+	}
+
+	/**
+	 * Notes where the server says our sketch is in the room's history: the room's epoch and the version
+	 * (-1 if it can't say, until it next tells us); each change it sends after that makes the next version
+	 */
+	public void versioned(long epoch, long version) {
+		this.epoch = epoch;
+		this.version = version;
+	}
+
+	private void changed() {
+		if (version >= 0) version++;
+	}
+
+	/**
+	 * Forgets every shape (the server is about to send the whole sketch again)
+	 */
+	public void reset() {
+		version = -1;
+		editor.getSketch().clear();
+		editor.cleared();
 	}
 }
@@ -43,12 +43,28 @@ public class Ellipse implements Shape {
 
 	@Override
 	public boolean contains(int x, int y) {
+		return contains(x1, y1, x2, y2, x, y);
+	}
+
+	/**
+	 * Whether the ellipse with the corners (x1<=x2, y1<=y2) contains the point
+	 * (for shapes kept as numbers rather than objects, as ArrayShapeStore does)
+	 */
+	public static boolean contains(int x1, int y1, int x2, int y2, int x, int y) {
+		// Nothing outside the corners is inside (most points tested aren't anywhere near)
+		if (x < x1 || x > x2 || y < y1 || y > y2) return false;
 		double a = (x2-x1)/2.0, b = (y2-y1)/2.0;
 		double dx = x - (x1 + a); // horizontal distance from center
 		double dy = y - (y1 + b); // vertical distance from center
 
 		// Apply the standard geometry formula. (See CRC, 29th edition, p. 178.)
-		return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
+		double nx = dx / a, ny = dy / b;
+		return nx*nx + ny*ny <= 1;
+	}
+
+	@Override
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(x1, y1, x2-x1+1, y2-y1+1);
 	}
 
 	@Override
@@ -57,6 +73,31 @@ public class Ellipse implements Shape {
 		x2 += dx; y2 += dy;
 	}
 
+	@Override
+	public String getType() {
+		return "ellipse";
+	}
+
+	@Override
+	public int getX1() {
+		return x1;
+	}
+
+	@Override
+	public int getY1() {
+		return y1;
+	}
+
+	@Override
+	public int getX2() {
+		return x2;
+	}
+
+	@Override
+	public int getY2() {
+		return y2;
+	}
+
 	@Override
 	public Color getColor() {
 		return color;
@@ -0,0 +1,63 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps each shape as the object it was given, in a concurrent map, so the shapes can be read (and iterated)
+ * at any time without the sketch's lock -- at the cost of an object per shape, a boxed key, and a map node
+ */
+public class HeapShapeStore implements ShapeStore {
+	private ConcurrentSkipListMap<Integer, Shape> shapes;
+
+	public HeapShapeStore() {
+		shapes = new ConcurrentSkipListMap<Integer, Shape>();
+	}
+
+	@Override
+	public Shape get(int id) {
+		return shapes.get(id);
+	}
+
+	@Override
+	public void put(int id, Shape shape) {
+		shapes.put(id, shape);
+	}
+
+	@Override
+	public void remove(int id) {
+		shapes.remove(id);
+	}
+
+	@Override
+	public boolean contains(int id, int x, int y) {
+		Shape shape = shapes.get(id);
+		return shape != null && shape.contains(x, y);
+	}
+
+	@Override
+	public int size() {
+		return shapes.size();
+	}
+
+	@Override
+	public void clear() {
+		shapes.clear();
+	}
+
+	@Override
+	public HeapShapeStore copy() {
+		// the shapes themselves are shared: the Sketch never changes one in the store, but replaces it
+		HeapShapeStore copy = new HeapShapeStore();
+		copy.shapes = shapes.clone();
+		return copy;
+	}
+
+	@Override
+	public Map<Integer, Shape> asMap() {
+		return Collections.unmodifiableMap(shapes);
+	}
+
+	@Override
+	public Map<Integer, Shape> above(int id) {
+		return Collections.unmodifiableNavigableMap(shapes.tailMap(id, false));
+	}
+}
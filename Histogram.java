@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of non-negative values (nanoseconds, say) in buckets, laid out as HdrHistogram lays them out: values below
+ * 128 have a bucket each, and each power of two above that is split into 64 buckets, so a value is known to
+ * within 1/64th of itself, from 0 to Long.MAX_VALUE, in under 4k buckets.
+ *
+ * Recording is a few shifts and atomic adds, with no allocation and no lock, so it can be done on hot paths from
+ * any number of threads at once. Percentiles are worked out from the counts only when a snapshot is asked for.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 7;
+	private static final int SUB = 1 << SUB_BITS;						// values with a bucket of their own
+	private static final int HALF = SUB >> 1;							// buckets per power of two above them
+	private static final int BUCKETS = SUB + (63 - SUB_BITS) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Counts the value (a negative one as 0)
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// another thread raised it meanwhile; try again against that
+		}
+	}
+
+	/**
+	 * The counts as they are now (or near enough, if values are being recorded meanwhile)
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, sum.sum(), max.get());
+	}
+
+	private static int index(long value) {
+		if (value < SUB) return (int) value;
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;		// leaves the top SUB_BITS bits
+		return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/**
+	 * The highest value counted in the bucket
+	 */
+	private static long highest(int index) {
+		if (index < SUB) return index;
+		int shift = (index - SUB) / HALF + 1;
+		long top = (index - SUB) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * A histogram's counts at one moment
+	 */
+	public static class Snapshot {
+		private long[] counts;
+		private long count, sum, max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSum() {
+			return sum;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * The value that percent of those counted are at or below (to within a bucket; 0 if nothing's been counted)
+		 */
+		public long getValueAtPercentile(double percent) {
+			long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) return Math.min(highest(i), max);
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Maps int keys (shape ids) to int slots without boxing either: open addressing with linear probing, in two
+ * parallel arrays, kept at most half full. Removing shifts later entries of the run back, rather than leaving
+ * tombstones, so lookups never slow down as ids come and go.
+ *
+ * Not thread-safe.
+ */
+public class IntSlotMap {
+	private int[] keys;
+	private int[] slots;				// slot + 1 for each key (0 where there's no key)
+	private int size;
+	private int mask;					// capacity - 1 (a power of two)
+
+	public IntSlotMap() {
+		this(16);
+	}
+
+	public IntSlotMap(int capacity) {
+		int n = Integer.highestOneBit(Math.max(capacity * 2 - 1, 16));
+		keys = new int[n];
+		slots = new int[n];
+		mask = n - 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The key's slot, or -1 if it isn't there
+	 */
+	public int get(int key) {
+		for (int i = index(key); slots[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) return slots[i] - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Maps the key to the slot (>= 0), returning the slot it had, or -1
+	 */
+	public int put(int key, int slot) {
+		int i = index(key);
+		for (; slots[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				int old = slots[i] - 1;
+				slots[i] = slot + 1;
+				return old;
+			}
+		}
+		keys[i] = key;
+		slots[i] = slot + 1;
+		if (++size * 2 > keys.length) grow();
+		return -1;
+	}
+
+	/**
+	 * Removes the key, returning the slot it had, or -1
+	 */
+	public int remove(int key) {
+		int i = index(key);
+		for (; slots[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == key) break;
+		}
+		if (slots[i] == 0) return -1;
+		int old = slots[i] - 1;
+		size--;
+		// move back any later entry of the run that wouldn't be found past the gap
+		for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+			int home = index(keys[j]);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				slots[i] = slots[j];
+				i = j;
+			}
+		}
+		slots[i] = 0;
+		return old;
+	}
+
+	/**
+	 * A map with the same keys and slots
+	 */
+	public IntSlotMap copy() {
+		IntSlotMap copy = new IntSlotMap();
+		copy.keys = keys.clone();
+		copy.slots = slots.clone();
+		copy.size = size;
+		copy.mask = mask;
+		return copy;
+	}
+
+	public void clear() {
+		java.util.Arrays.fill(slots, 0);
+		size = 0;
+	}
+
+	private int index(int key) {
+		int h = key * 0x9e3779b9;		// ids are mostly consecutive: spread them over the table
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys, oldSlots = slots;
+		keys = new int[oldKeys.length * 2];
+		slots = new int[oldKeys.length * 2];
+		mask = keys.length - 1;
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldSlots[i] != 0) put(oldKeys[i], oldSlots[i] - 1);
+		}
+	}
+}
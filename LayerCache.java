@@ -0,0 +1,161 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * Caches the editor's drawing of the shapes that aren't changing, so a repaint only has to draw the ones that are.
+ *
+ * The shapes are split by id. Those up to the "cold top" are drawn into an off-screen image, a tile (TILE pixels
+ * square) at a time, and each tile is kept until a shape in it changes; those above it -- the ones being drawn or dragged, since
+ * a shape is given a new, highest, id when it's drawn and when it's pressed to be moved -- are drawn live on top.
+ * Since every cached shape is below every live one, that's the same as drawing them all in order.
+ * The cold top is raised past shapes once they (and everything below them) have been left alone for a while.
+ * (The tiles are parts of one image the size of the canvas, rather than images of their own, so that shapes are
+ * drawn into them at the same coordinates as on the canvas -- drawing an oval translated can change its edge.)
+ *
+ * Changes can be reported from any thread (the editor's communicator's); painting is done on the event thread.
+ */
+public class LayerCache {
+	private static final int TILE = 256;				// width and height of a tile, in pixels
+	private static final long QUIET = 300;				// ms a shape has to be left alone to be cached
+
+	private Sketch sketch;
+	private int coldTop = -1;							// highest id that's drawn in the tiles
+	private HashMap<Integer, Long> changed;				// id above the cold top -> when it last changed (ms)
+	private BufferedImage image;						// the cached shapes (null until there's something to paint)
+	private HashSet<Long> drawn;						// keys of the tiles of it that are up to date
+
+	public LayerCache(Sketch sketch) {
+		this.sketch = sketch;
+		changed = new HashMap<Integer, Long>();
+		drawn = new HashSet<Long>();
+	}
+
+	/**
+	 * Notes that the shape with the id changed (was added, moved, recolored or deleted) in the area: a cached
+	 * shape's tiles there are drawn again, and a live one is kept live for a while longer
+	 */
+	public synchronized void changed(int id, java.awt.Rectangle area) {
+		if (id <= coldTop) invalidate(area);
+		else changed.put(id, System.currentTimeMillis());
+	}
+
+	/**
+	 * Forgets everything (the sketch has been cleared)
+	 */
+	public synchronized void clear() {
+		coldTop = -1;
+		changed.clear();
+		drawn.clear();
+	}
+
+	/**
+	 * Draws the sketch in the area: the cached tiles, then the live shapes over them
+	 */
+	public void paint(Graphics g, java.awt.Rectangle area) {
+		if (area.isEmpty()) return;
+		int top = cool();
+		BufferedImage image = cover(area);
+		for (int tx = tile(area.x); tx <= tile(area.x + area.width - 1); tx++) {
+			for (int ty = tile(area.y); ty <= tile(area.y + area.height - 1); ty++) {
+				draw(image, tx, ty, top);
+			}
+		}
+		int x2 = area.x + area.width, y2 = area.y + area.height;
+		g.drawImage(image, area.x, area.y, x2, y2, area.x, area.y, x2, y2, null);
+		for (Shape shape : sketch.getShapesAbove(top).values()) {
+			if (shape.getBounds().intersects(area)) shape.draw(g);
+		}
+	}
+
+	/**
+	 * Raises the cold top past the shapes that have been left alone long enough (stopping at the first that
+	 * hasn't, so that everything cached stays below everything live), and returns it
+	 */
+	private synchronized int cool() {
+		long now = System.currentTimeMillis();
+		int top = coldTop;
+		for (Map.Entry<Integer, Shape> entry : sketch.getShapesAbove(coldTop).entrySet()) {
+			Long when = changed.get(entry.getKey());
+			if (when != null && now - when < QUIET) break;
+			top = entry.getKey();
+			// the shape is drawn in its tiles from now on
+			invalidate(entry.getValue().getBounds());
+		}
+		if (top > coldTop) {
+			coldTop = top;
+			changed.keySet().removeIf(id -> id <= coldTop);
+		}
+		return coldTop;
+	}
+
+	/**
+	 * The image, grown (and so to be drawn again) if the area goes beyond it
+	 * (the canvas starts at 0,0, so nothing's cached left of or above that)
+	 */
+	private synchronized BufferedImage cover(java.awt.Rectangle area) {
+		int width = Math.max(area.x + area.width, 1), height = Math.max(area.y + area.height, 1);
+		if (image == null || image.getWidth() < width || image.getHeight() < height) {
+			if (image != null) {
+				width = Math.max(width, image.getWidth());
+				height = Math.max(height, image.getHeight());
+			}
+			// in whole tiles
+			image = new BufferedImage((tile(width - 1) + 1) * TILE, (tile(height - 1) + 1) * TILE,
+					BufferedImage.TYPE_INT_ARGB_PRE);
+			drawn.clear();
+		}
+		return image;
+	}
+
+	/**
+	 * Draws the tile of the image again if it isn't up to date
+	 */
+	private void draw(BufferedImage image, int tx, int ty, int top) {
+		if (tx < 0 || ty < 0) return;
+		synchronized (this) {
+			if (!drawn.add(key(tx, ty))) return;
+		}
+		// drawn without holding the cache, so changes can come in meanwhile (they'll mark the tile to be drawn again)
+		java.awt.Rectangle box = new java.awt.Rectangle(tx * TILE, ty * TILE, TILE, TILE);
+		Graphics2D g = image.createGraphics();
+		g.clip(box);
+		g.setComposite(AlphaComposite.Clear);
+		g.fillRect(box.x, box.y, box.width, box.height);
+		g.setComposite(AlphaComposite.SrcOver);
+		for (Shape shape : sketch.getShapes(box, top)) {
+			shape.draw(g);
+		}
+		g.dispose();
+	}
+
+	/**
+	 * Marks the tiles the area touches to be drawn again (holding the cache)
+	 */
+	private void invalidate(java.awt.Rectangle area) {
+		if (area.isEmpty()) return;
+		int tx1 = tile(area.x), tx2 = tile(area.x + area.width - 1);
+		int ty1 = tile(area.y), ty2 = tile(area.y + area.height - 1);
+		if ((long) (tx2 - tx1 + 1) * (ty2 - ty1 + 1) > drawn.size()) {
+			// an area bigger than the tiles there are (a shape dragged way off the canvas, say): check each tile
+			drawn.removeIf(key -> {
+				int tx = (int) (key >> 32), ty = (int) (long) key;
+				return tx >= tx1 && tx <= tx2 && ty >= ty1 && ty <= ty2;
+			});
+			return;
+		}
+		for (int tx = tx1; tx <= tx2; tx++) {
+			for (int ty = ty1; ty <= ty2; ty++) {
+				drawn.remove(key(tx, ty));
+			}
+		}
+	}
+
+	private static int tile(int coord) {
+		return Math.floorDiv(coord, TILE);
+	}
+
+	private static long key(int tx, int ty) {
+		return ((long) tx << 32) | (ty & 0xffffffffL);
+	}
+}
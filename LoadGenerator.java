@@ -0,0 +1,588 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator: connects many simulated editors to a running SketchServer, has each of them use it the
+ * way people do, and reports how the server keeps up. No windows are opened, so it runs anywhere the server does.
+ *
+ * Each simulated editor is an EditorCommunicator (sending its requests and handling what the server sends as an
+ * Editor's does), with a Sketch of its own in place of an editor's, kept up to date from the broadcasts. All the
+ * editors' connections are driven from one selector per thread, so thousands of them cost a few threads, not
+ * thousands. Every so often (a random pause averaging -Dload.think ms) each editor does one of:
+ *   a burst of draws: up to -Dload.burst shapes, one a frame (-Dload.frame ms)
+ *   a drag: "move press" on one of the shapes it can see, then a "move drag" a frame for about -Dload.drag frames
+ *   a recolor or a delete of one of the shapes it can see
+ * picking them in the proportions given by -Dload.mix (draws,drags,recolors,deletes; 3,3,1,1 by default).
+ *
+ * It reports, every second and at the end:
+ *   throughput: requests sent, and changes the editors were sent (by every editor, so fan-out included), a second
+ *   broadcast latency: from an editor sending a draw or recolor to each editor (itself included) having it; the
+ *     request's color carries a token saying when it was sent, so it's timed end to end without the server's help
+ *     (and only until every editor in the room has had it, as pressing a shape sends it out again)
+ *   staleness: how far each editor's view is behind the freshest in its room -- how long ago the freshest editor
+ *     had the first change this one hasn't -- sampled every 100 ms for every editor; and the worst each one got
+ *   lag: how late the editors' actions run, which if it grows means the generator, not the server, is overloaded
+ * Once the time's up the editors stop, wait for their views to catch up, and check they all ended up with the
+ * same sketch as the others in their room.
+ *
+ * Usage: LoadGenerator [host[:port]] [editors] [seconds]
+ * (localhost:4242, 100 editors, 30 seconds by default). Other options, as system properties:
+ *   -Dload.rooms=n     spread the editors over n rooms (load-0, load-1, ...); 1 (the default room) by default
+ *   -Dload.threads=n   selector threads to share the editors among; 1 by default
+ *   -Dsketch.binary    speak the binary protocol, as the editor does with it
+ */
+public class LoadGenerator {
+	private static final int WIDTH = 800, HEIGHT = 800;		// the editor's canvas
+	private static final String[] TYPES = { "rectangle", "ellipse", "segment" };
+	private static final String[] ACTIONS = { "draw", "drag", "recolor", "delete" };
+	private static final int TOKENS = 1 << 20;				// tokens handed out before they're used again
+
+	private final AtomicLongArray sentAt = new AtomicLongArray(TOKENS);	// per token, when it was sent
+	private final AtomicIntegerArray awaiting = new AtomicIntegerArray(TOKENS);	// per token, editors yet to have it
+	private final AtomicLong nextToken = new AtomicLong();
+	private final LongAdder[] requests = new LongAdder[ACTIONS.length + 1];	// per action, and moves
+	private final LongAdder changes = new LongAdder();		// changes applied, over all editors
+	private final Histogram latency = new Histogram(), staleness = new Histogram(), lag = new Histogram();
+	private final AtomicReference<Histogram> recentLatency = new AtomicReference<Histogram>(new Histogram());
+	private final List<Room> rooms = new ArrayList<Room>();
+	private final List<SimulatedEditor> editors = new ArrayList<SimulatedEditor>();
+	private final List<Driver> drivers = new ArrayList<Driver>();
+
+	// the editors' habits (see the class comment)
+	private final int think = Integer.getInteger("load.think", 1000);
+	private final int frame = Integer.getInteger("load.frame", 16);
+	private final int burst = Integer.getInteger("load.burst", 5);
+	private final int drag = Integer.getInteger("load.drag", 60);
+	private final int[] mix;
+
+	private volatile boolean acting = true;	// false once the editors should stop making requests
+
+	public LoadGenerator() {
+		for (int i = 0; i < requests.length; i++) requests[i] = new LongAdder();
+		String[] weights = System.getProperty("load.mix", "3,3,1,1").split(",");
+		mix = new int[ACTIONS.length];
+		for (int i = 0; i < mix.length; i++) {
+			mix[i] = (i > 0 ? mix[i - 1] : 0) + (i < weights.length ? Integer.parseInt(weights[i].strip()) : 0);
+		}
+		if (mix[mix.length - 1] <= 0) throw new IllegalArgumentException("load.mix has no actions in it");
+	}
+
+	/**
+	 * A room the editors are in, and how far the freshest of them has got through its history
+	 */
+	private static class Room {
+		private static final int VERSIONS = 1 << 16;	// versions whose arrival is remembered
+
+		final String name;
+		final List<SimulatedEditor> members = new ArrayList<SimulatedEditor>();
+		final AtomicLong latest = new AtomicLong(-1);	// the highest version any editor in the room has
+		final AtomicLongArray firstAt = new AtomicLongArray(VERSIONS);	// when some editor first had the version
+
+		Room(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Notes that an editor has got to the version (now), if none had yet
+		 */
+		void reached(long version, long now) {
+			long was = latest.get();
+			if (version <= was) return;
+			firstAt.set((int) (version & (VERSIONS - 1)), now);
+			while (version > was && !latest.compareAndSet(was, version)) was = latest.get();
+		}
+
+		/**
+		 * How long ago the version after this one was first had by some editor (0 if that's none, or not known)
+		 */
+		long behind(long version, long now) {
+			long newest = latest.get();
+			if (version < 0 || version >= newest) return 0;
+			long next = version + 1 < newest - VERSIONS + 1 ? newest - VERSIONS + 1 : version + 1;
+			long at = firstAt.get((int) (next & (VERSIONS - 1)));
+			return at == 0 ? 0 : Math.max(0, now - at);
+		}
+	}
+
+	/**
+	 * One simulated editor: its connection, the sketch it sees, and what it's doing next
+	 */
+	private class SimulatedEditor extends EditorCommunicator {
+		final Room room;
+		final Sketch sketch = new Sketch();
+		final Random rand;
+		SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(8192);			// read, not handled yet
+		ByteBuffer out = ByteBuffer.allocate(1024);			// to write, in write mode
+		final TextProtocol text = new TextProtocol();
+		boolean binaryIn = false;							// whether the server's switched to binary
+
+		volatile long version = -1;							// where the sketch is in the room's history
+		long epoch;
+		int topId = -1;										// the highest id seen
+		long worstStale;									// the most the view's been behind
+		long nextAt;										// when (nanoTime) to do the next thing
+		int draws, drags;									// what's left of the burst or drag under way
+
+		SimulatedEditor(Room room, boolean binary, long seed) {
+			super((Editor) null, binary);
+			this.room = room;
+			rand = new Random(seed);
+		}
+
+		/**
+		 * Queues the request to be written (on the driver's thread, which is the only one making them)
+		 */
+		@Override
+		protected void send(byte[] msg) {
+			if (out.remaining() < msg.length) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * out.capacity(), out.position() + msg.length));
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(msg);
+			try {
+				write();
+			}
+			catch (IOException e) {
+				close(e);
+			}
+		}
+
+		/**
+		 * Writes as much of what's queued as the connection will take, and asks to hear when it'll take the rest
+		 */
+		void write() throws IOException {
+			out.flip();
+			channel.write(out);
+			boolean more = out.hasRemaining();
+			out.compact();
+			if (key != null && key.isValid()) {
+				key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * Handles whatever the server has sent; false once it's hung up
+		 */
+		boolean read() throws IOException {
+			int n = channel.read(in);
+			if (n < 0) return false;
+			in.flip();
+			if (!binaryIn) binaryIn = text.decodeFromServer(in, this);
+			if (binaryIn) BinaryProtocol.decodeFromServer(in, this);
+			in.compact();
+			if (!in.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(2 * in.capacity());
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+			return true;
+		}
+
+		void close(IOException e) {
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException ignored) {
+				// going anyway
+			}
+			if (acting) System.err.println("editor lost its connection: " + e.getMessage());
+		}
+
+		/**
+		 * Does the next thing, and works out when to do the one after
+		 */
+		void act(long now) {
+			if (draws > 0) {
+				draws--;
+				draw();
+				nextAt = now + frame * 1000000L;
+			}
+			else if (drags > 0) {
+				drags--;
+				moveDrag(rand.nextInt(11) - 5, rand.nextInt(11) - 5);
+				requests[ACTIONS.length].increment();
+				nextAt = now + frame * 1000000L;
+			}
+			else {
+				int pick = rand.nextInt(mix[mix.length - 1]), action = 0;
+				while (pick >= mix[action]) action++;
+				java.awt.Point at = target();
+				if (action == 0) {
+					draws = rand.nextInt(burst);
+					draw();
+				}
+				else if (action == 1) {
+					drags = 1 + rand.nextInt(2 * drag);
+					movePress(at.x, at.y);
+					requests[1].increment();
+				}
+				else if (action == 2) {
+					recolor(at.x, at.y, 0xff000000 | token(room, now));
+					requests[2].increment();
+				}
+				else {
+					delete(at.x, at.y);
+					requests[3].increment();
+				}
+				nextAt = draws > 0 || drags > 0 ? now + frame * 1000000L : now + pause();
+			}
+		}
+
+		/**
+		 * Draws a shape somewhere, of a size people draw, colored with a new token
+		 */
+		private void draw() {
+			int x = rand.nextInt(WIDTH), y = rand.nextInt(HEIGHT);
+			draw(Shape.create(TYPES[rand.nextInt(TYPES.length)], x, y, x + rand.nextInt(101) - 50,
+					y + rand.nextInt(101) - 50, ColorCache.rgb(token(room, System.nanoTime()))));
+			requests[0].increment();
+		}
+
+		/**
+		 * The middle of one of the shapes in the editor's sketch (which the shape covers, whatever its kind), or
+		 * anywhere if there aren't any to be found
+		 */
+		private java.awt.Point target() {
+			for (int tries = 0; tries < 8 && topId >= 0; tries++) {
+				Shape shape = sketch.getShapeFromID(rand.nextInt(topId + 1));
+				if (shape != null) {
+					return new java.awt.Point((shape.getX1() + shape.getX2()) / 2, (shape.getY1() + shape.getY2()) / 2);
+				}
+			}
+			return new java.awt.Point(rand.nextInt(WIDTH), rand.nextInt(HEIGHT));
+		}
+
+		/**
+		 * A random pause, exponentially distributed around the think time
+		 */
+		private long pause() {
+			return (long) (-Math.log(1 - rand.nextDouble()) * think * 1000000L);
+		}
+
+		// What the server tells us: kept in our own sketch, as the editor keeps it in its
+
+		@Override
+		public void added(int id, Shape shape) {
+			sketch.addShape(id, shape);
+			if (id > topId) topId = id;
+		}
+
+		@Override
+		public void drawn(int id, Shape shape) {
+			added(id, shape);
+			long now = System.nanoTime();
+			arrived(shape.getColor().getRGB(), now);
+			changed(now);
+		}
+
+		@Override
+		public void moved(int id, int dx, int dy) {
+			if (sketch.getShapeFromID(id) != null) sketch.moveShape(id, dx, dy);
+			changed(System.nanoTime());
+		}
+
+		@Override
+		public void recolored(int id, int rgb) {
+			sketch.recolorShape(id, ColorCache.rgb(rgb));
+			long now = System.nanoTime();
+			arrived(rgb, now);
+			changed(now);
+		}
+
+		@Override
+		public void deleted(int id) {
+			if (sketch.getShapeFromID(id) != null) sketch.removeShapeByID(id);
+			changed(System.nanoTime());
+		}
+
+		@Override
+		public void redirected(String node, String room) {
+			// a simulated editor stays on the node it was given
+			System.err.println("told to go to " + node + " for " + room + "; load a node that has the room itself");
+		}
+
+		@Override
+		public void versioned(long epoch, long version) {
+			this.epoch = epoch;
+			this.version = version;
+			if (version >= 0) room.reached(version, System.nanoTime());
+		}
+
+		@Override
+		public void reset() {
+			version = -1;
+			topId = -1;
+			sketch.clear();
+		}
+
+		private void changed(long now) {
+			changes.increment();
+			if (version >= 0) room.reached(++version, now);
+		}
+	}
+
+	/**
+	 * Hands out the next token for a request to the room, noting when it was sent; it's the low bits of the color
+	 * it's sent as
+	 */
+	private int token(Room room, long now) {
+		int token = (int) (nextToken.getAndIncrement() & (TOKENS - 1));
+		awaiting.set(token, room.members.size());
+		sentAt.set(token, now);
+		return token;
+	}
+
+	/**
+	 * Times a change that came with a token, from when it was sent, until every editor it went to has had it
+	 */
+	private void arrived(int rgb, long now) {
+		int token = rgb & (TOKENS - 1);
+		long at = sentAt.get(token);
+		if (at == 0) return;	// not one of ours (someone else drew it), or one sent again
+		latency.record(now - at);
+		recentLatency.get().record(now - at);
+		if (awaiting.decrementAndGet(token) <= 0) sentAt.compareAndSet(token, at, 0);
+	}
+
+	/**
+	 * Drives its share of the editors from one thread: doing what each has next when it's due, and reading and
+	 * writing their connections in between
+	 */
+	private class Driver extends Thread {
+		final Selector selector;
+		final PriorityQueue<SimulatedEditor> due = new PriorityQueue<SimulatedEditor>(
+				Comparator.comparingLong((SimulatedEditor e) -> e.nextAt));
+		volatile boolean running = true;
+
+		Driver(int n) throws IOException {
+			super("load-" + n);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void add(SimulatedEditor editor) throws IOException {
+			editor.channel.configureBlocking(false);
+			editor.key = editor.channel.register(selector, SelectionKey.OP_READ, editor);
+			editor.write();
+			due.add(editor);
+		}
+
+		public void run() {
+			// everyone starts after a pause from now, not from when they connected
+			List<SimulatedEditor> all = new ArrayList<SimulatedEditor>(due);
+			due.clear();
+			long start = System.nanoTime();
+			for (SimulatedEditor editor : all) {
+				editor.nextAt = start + editor.pause();
+				due.add(editor);
+			}
+			try {
+				while (running) {
+					long now = System.nanoTime();
+					while (acting && !due.isEmpty() && due.peek().nextAt <= now) {
+						SimulatedEditor editor = due.poll();
+						lag.record(now - editor.nextAt);
+						if (!editor.channel.isOpen()) continue;
+						editor.act(now);
+						due.add(editor);
+					}
+					long wait = acting && !due.isEmpty() ? (due.peek().nextAt - System.nanoTime()) / 1000000 : 100;
+					if (wait > 0) selector.select(Math.min(wait, 100));
+					else selector.selectNow();
+					for (SelectionKey key : selector.selectedKeys()) {
+						SimulatedEditor editor = (SimulatedEditor) key.attachment();
+						try {
+							if (key.isValid() && key.isWritable()) editor.write();
+							if (key.isValid() && key.isReadable() && !editor.read()) {
+								editor.close(new IOException("server hung up"));
+							}
+						}
+						catch (IOException e) {
+							editor.close(e);
+						}
+					}
+					selector.selectedKeys().clear();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Connects the editors, sharing them out among the rooms and the drivers
+	 */
+	public void connect(String node, int nEditors, int nRooms, int nThreads, boolean binary) throws IOException {
+		for (int r = 0; r < nRooms; r++) rooms.add(new Room(nRooms == 1 ? SketchServer.DEFAULT_ROOM : "load-" + r));
+		for (int t = 0; t < nThreads; t++) drivers.add(new Driver(t));
+		for (int i = 0; i < nEditors; i++) {
+			Room room = rooms.get(i % nRooms);
+			SimulatedEditor editor = new SimulatedEditor(room, binary, i);
+			editor.channel = SocketChannel.open(new InetSocketAddress(SketchCluster.host(node), SketchCluster.port(node)));
+			editor.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			// ask for binary and the room first, as the editor does on connecting (sent once the driver has it)
+			if (binary) editor.send(new byte[] { (byte) BinaryProtocol.HELLO });
+			if (nRooms > 1) editor.room(room.name);
+			room.members.add(editor);
+			editors.add(editor);
+			drivers.get(i % nThreads).add(editor);
+		}
+	}
+
+	/**
+	 * Runs the editors for the time, reporting each second, then lets them catch up and reports on the lot
+	 */
+	public void run(int seconds) throws InterruptedException {
+		for (Driver driver : drivers) driver.start();
+		long start = System.nanoTime(), end = start + seconds * 1000000000L;
+		long nextSample = start, nextReport = start + 1000000000L;
+		long lastRequests = 0, lastChanges = 0;
+		while (System.nanoTime() < end) {
+			long now = System.nanoTime();
+			if (now >= nextSample) {
+				sample(now);
+				nextSample += 100000000L;
+			}
+			if (now >= nextReport) {
+				long sent = sent(), changed = changes.sum();
+				Histogram.Snapshot recent = recentLatency.getAndSet(new Histogram()).snapshot();
+				System.out.println(String.format("%3ds  requests %7d/s  changes %9d/s  latency p50 %s p99 %s  stale p99 %s",
+						(now - start) / 1000000000L, sent - lastRequests, changed - lastChanges,
+						ms(recent.getValueAtPercentile(50)), ms(recent.getValueAtPercentile(99)),
+						ms(staleness.snapshot().getValueAtPercentile(99))));
+				lastRequests = sent;
+				lastChanges = changed;
+				nextReport += 1000000000L;
+			}
+			Thread.sleep(Math.max(1, Math.min(nextSample, nextReport) - System.nanoTime()) / 1000000 + 1);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// stop making requests, and give the views a while to catch up with the freshest
+		acting = false;
+		long caughtUp = System.nanoTime(), deadline = caughtUp + 10000000000L;
+		while (!settled() && System.nanoTime() < deadline) Thread.sleep(50);
+		caughtUp = System.nanoTime() - caughtUp;
+		for (Driver driver : drivers) driver.running = false;
+		for (Driver driver : drivers) driver.join(1000);
+
+		report(elapsed, caughtUp);
+	}
+
+	/**
+	 * Notes how far behind each editor's view is now
+	 */
+	private void sample(long now) {
+		for (SimulatedEditor editor : editors) {
+			long behind = editor.room.behind(editor.version, now);
+			staleness.record(behind);
+			if (behind > editor.worstStale) editor.worstStale = behind;
+		}
+	}
+
+	/**
+	 * Whether every editor (still connected, and knowing its version) has all its room's changes
+	 */
+	private boolean settled() {
+		for (SimulatedEditor editor : editors) {
+			if (editor.channel.isOpen() && editor.version >= 0 && editor.version < editor.room.latest.get()) return false;
+		}
+		return true;
+	}
+
+	private long sent() {
+		long sent = 0;
+		for (LongAdder count : requests) sent += count.sum();
+		return sent;
+	}
+
+	private void report(long elapsed, long caughtUp) {
+		double seconds = elapsed / 1e9;
+		System.out.println();
+		System.out.println(editors.size() + " editors in " + rooms.size() + " room(s), " + Math.round(seconds) + " s");
+		System.out.println(String.format("requests   %d (%.0f/s): %d draws, %d presses, %d drags, %d recolors, %d deletes",
+				sent(), sent() / seconds, requests[0].sum(), requests[1].sum(), requests[ACTIONS.length].sum(),
+				requests[2].sum(), requests[3].sum()));
+		System.out.println(String.format("changes    %d (%.0f/s) applied over all editors", changes.sum(), changes.sum() / seconds));
+		System.out.println("latency    " + percentiles(latency.snapshot()) + "  (draw or recolor sent to each editor having it)");
+		System.out.println("staleness  " + percentiles(staleness.snapshot()) + "  (behind the freshest editor, sampled)");
+		long[] worst = new long[editors.size()];
+		for (int i = 0; i < worst.length; i++) worst[i] = editors.get(i).worstStale;
+		Arrays.sort(worst);
+		if (worst.length > 0) {
+			System.out.println("worst per editor  median " + ms(worst[worst.length / 2]) + ", p99 "
+					+ ms(worst[Math.min(worst.length - 1, worst.length * 99 / 100)]) + ", max " + ms(worst[worst.length - 1]));
+		}
+		Histogram.Snapshot late = lag.snapshot();
+		System.out.println("lag        " + percentiles(late) + "  (actions run late by the generator)");
+		if (late.getValueAtPercentile(99) > 100000000L) {
+			System.out.println("           the generator couldn't keep up, so the numbers above include its own delays"
+					+ " (try more -Dload.threads, or running it on another machine)");
+		}
+
+		// every editor in a room should have ended up with the same sketch
+		// (those that haven't caught up yet are left out, as they can't be expected to)
+		int agree = 0, behind = 0, disconnected = 0;
+		for (Room room : rooms) {
+			Map<Long, Integer> views = new HashMap<Long, Integer>();
+			for (SimulatedEditor editor : room.members) {
+				if (!editor.channel.isOpen()) disconnected++;
+				else if (editor.version >= 0 && editor.version < room.latest.get()) behind++;
+				else views.merge(fingerprint(editor.sketch), 1, Integer::sum);
+			}
+			agree += views.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+		}
+		System.out.println("converged  " + agree + " of " + (editors.size() - behind - disconnected)
+				+ " caught-up editors have their room's sketch, after " + ms(caughtUp) + " catching up"
+				+ (behind > 0 ? "; " + behind + " still behind" : "") + (disconnected > 0 ? "; " + disconnected + " disconnected" : ""));
+	}
+
+	/**
+	 * A summary of the shapes in a sketch, the same for any two with the same shapes under the same ids
+	 */
+	private static long fingerprint(Sketch sketch) {
+		long sum = 0;
+		for (Map.Entry<Integer, Shape> entry : sketch.getShapeMap().entrySet()) {
+			sum = 31 * sum + entry.getKey() * 1000003L + entry.getValue().toString().hashCode();
+		}
+		return sum;
+	}
+
+	private static String percentiles(Histogram.Snapshot s) {
+		return "p50 " + ms(s.getValueAtPercentile(50)) + ", p90 " + ms(s.getValueAtPercentile(90)) + ", p99 "
+				+ ms(s.getValueAtPercentile(99)) + ", p99.9 " + ms(s.getValueAtPercentile(99.9)) + ", max " + ms(s.getMax());
+	}
+
+	private static String ms(long nanos) {
+		return String.format("%.1f ms", nanos / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String server = args.length > 0 ? args[0] : "localhost";
+		String node = server.contains(":") ? server : server + ":" + Integer.getInteger("sketch.port", 4242);
+		int nEditors = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+		LoadGenerator load = new LoadGenerator();
+		System.out.println("connecting " + nEditors + " editors to " + node + "...");
+		load.connect(node, nEditors, Integer.getInteger("load.rooms", 1), Integer.getInteger("load.threads", 1),
+				Boolean.getBoolean("sketch.binary"));
+		load.run(seconds);
+	}
+}
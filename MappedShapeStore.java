@@ -0,0 +1,508 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Keeps the shapes off the Java heap: a fixed-size record per shape, in id order, in a memory-mapped file (or, with
+ * no file, in direct buffers). So however many shapes there are, the garbage collector has nothing to go through,
+ * and a file written out by checkpoint can be opened again just by mapping it.
+ *
+ * Since the records are in id order -- new shapes come on top, so they're just appended -- a shape is found by
+ * binary search, and iterating in drawing order runs straight through the records. A removed shape's record stays,
+ * marked removed (so a view of it can still be read, as in ArrayShapeStore), until there are more of those than
+ * shapes and the records are compacted -- and the records of the latest KEPT removals stay even then, so putting
+ * back a shape that was deleted (which is what the server puts under an id below the top, for undo) almost always
+ * just marks its record as there again. Otherwise a shape put under an id below the top is inserted in its place,
+ * which means moving the records above it.
+ * A view notices when records have been moved since it last looked and finds its shape's again, so a view of a
+ * shape that's still there stays good across any change; one of a removed shape is only good until compaction.
+ *
+ * The file starts with a header: magic, whether it was checkpointed (and not changed since), the log record and next
+ * id it was checkpointed as of, how many records there are, and how many removals there have been. It's marked as not checkpointed (and that's forced
+ * to disk) before the first change after a checkpoint, so a file left by a crash is never mistaken for a good one;
+ * such a file is opened empty.
+ *
+ * Like ArrayShapeStore, not safe to read while another thread changes it -- use it from a Sketch, holding its lock.
+ */
+public class MappedShapeStore implements ShapeStore, Closeable {
+	public static final String FILE = "shapes";			// name of a room's file, in its log directory
+	public static final int KEPT = 4096;				// records of the latest removals kept through compaction
+
+	private static final int MAGIC = 0x534b4d31;		// "SKM1"
+	private static final int HEADER = 64;				// bytes before the first record
+	private static final int RECORD = 32;				// bytes per shape
+	private static final int CHUNK_BITS = 24;			// buffers of 16 MB (but the first starts small and grows)
+	private static final int CHUNK = 1 << CHUNK_BITS;
+	// header fields
+	private static final int CHECKPOINTED = 4, AS_OF = 8, NEXT_ID = 16, END = 20, LIVE = 24, REMOVALS = 28;
+	// record fields: its id, the type's number, its coordinates, its color, and whether it's been removed (0 if not,
+	// otherwise the count of removals it was removed as)
+	private static final int ID = 0, TYPE = 4, X1 = 8, Y1 = 12, X2 = 16, Y2 = 20, ARGB = 24, REMOVED = 28;
+
+	private FileChannel channel;						// the file (null if kept in direct buffers)
+	private ByteBuffer[] chunks;						// the header, then the records
+	private int end = 0;								// records in use, removed ones included
+	private int live = 0;								// of which not removed
+	private int removals = 0;							// shapes removed so far (never 0 again once it's wrapped)
+	private long asOf = -1;								// as of the checkpoint the file was opened from (-1 if none)
+	private int nextId = 0;
+	private boolean changed = true;						// whether it's been changed since opened or checkpointed
+	private int moves = 0;								// times records have been moved (see View)
+	private boolean heap = false;						// whether it's in heap buffers (a copy: see copy)
+
+	/**
+	 * An empty store in direct buffers
+	 */
+	public MappedShapeStore() {
+		this(false);
+	}
+
+	private MappedShapeStore(boolean heap) {
+		this.heap = heap;
+		chunks = new ByteBuffer[0];
+		reserve(HEADER);
+		chunks[0].putInt(0, MAGIC);
+	}
+
+	/**
+	 * The store in the file: what was in it, if it was closed with a checkpoint, otherwise (it's new, or the
+	 * server went down with it open) nothing
+	 */
+	public static MappedShapeStore open(Path file) throws IOException {
+		return new MappedShapeStore(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE));
+	}
+
+	private MappedShapeStore(FileChannel channel) throws IOException {
+		this.channel = channel;
+		chunks = new ByteBuffer[0];
+		long size = channel.size();
+		reserve(Math.max(size, HEADER));
+		ByteBuffer header = chunks[0];
+		if (size >= HEADER && header.getInt(0) == MAGIC && header.getInt(CHECKPOINTED) == 1
+				&& HEADER + (long) header.getInt(END) * RECORD <= size) {
+			asOf = header.getLong(AS_OF);
+			nextId = header.getInt(NEXT_ID);
+			end = header.getInt(END);
+			live = header.getInt(LIVE);
+			removals = header.getInt(REMOVALS);
+			changed = false;
+		}
+		else {
+			header.putInt(0, MAGIC);
+			header.putInt(CHECKPOINTED, 0);
+			((MappedByteBuffer) header).force(0, HEADER);
+		}
+	}
+
+	/**
+	 * The log record the store was checkpointed as of, when it was opened (-1 if it wasn't, so it started empty)
+	 */
+	public long getAsOf() {
+		return asOf;
+	}
+
+	/**
+	 * The sketch's next id, as of the checkpoint it was opened from
+	 */
+	public int getNextId() {
+		return nextId;
+	}
+
+	/**
+	 * Writes everything out and marks the file as a good copy of the sketch as of the log record (with the next id),
+	 * to be opened from next time -- provided nothing changes after
+	 */
+	public void checkpoint(long asOf, int nextId) throws IOException {
+		ByteBuffer header = chunks[0];
+		header.putLong(AS_OF, asOf);
+		header.putInt(NEXT_ID, nextId);
+		header.putInt(END, end);
+		header.putInt(LIVE, live);
+		header.putInt(REMOVALS, removals);
+		if (channel == null) return;
+		// the records first, then the mark saying they're good
+		for (ByteBuffer chunk : chunks) ((MappedByteBuffer) chunk).force();
+		header.putInt(CHECKPOINTED, 1);
+		((MappedByteBuffer) header).force(0, HEADER);
+		changed = false;
+	}
+
+	/**
+	 * Closes the file (the mapping itself goes once the store is garbage); the store can still be used, but any
+	 * change undoes the checkpoint
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null) channel.close();
+	}
+
+	@Override
+	public Shape get(int id) {
+		int i = find(id);
+		return i >= 0 && field(i, REMOVED) == 0 ? new View(i) : null;
+	}
+
+	@Override
+	public void put(int id, Shape shape) {
+		// everything read from the shape first, since it may be a view of a record that's about to move
+		int kind = ArrayShapeStore.kind(shape.getType());
+		int sx1 = shape.getX1(), sy1 = shape.getY1(), sx2 = shape.getX2(), sy2 = shape.getY2();
+		int color = shape.getColor().getRGB();
+		changing();
+		if (end - live > KEPT + 1024 && end - live > live) compact();
+		int i = find(id);
+		if (i < 0) {
+			i = -i - 1;
+			reserve(HEADER + (long) (end + 1) * RECORD);
+			// (almost always at the end: otherwise, room is made for it)
+			if (i < end) moves++;
+			for (int j = end; j > i; j--) copy(j - 1, j);
+			end++;
+			live++;
+			setField(i, ID, id);
+		}
+		else if (field(i, REMOVED) != 0) live++;
+		setField(i, REMOVED, 0);
+		setField(i, TYPE, kind);
+		setField(i, X1, sx1);
+		setField(i, Y1, sy1);
+		setField(i, X2, sx2);
+		setField(i, Y2, sy2);
+		setField(i, ARGB, color);
+	}
+
+	@Override
+	public void remove(int id) {
+		int i = find(id);
+		if (i < 0 || field(i, REMOVED) != 0) return;
+		changing();
+		if (++removals == 0) removals = 1;
+		setField(i, REMOVED, removals);
+		live--;
+	}
+
+	@Override
+	public boolean contains(int id, int x, int y) {
+		int i = find(id);
+		return i >= 0 && field(i, REMOVED) == 0 && hit(i, x, y);
+	}
+
+	private boolean hit(int i, int x, int y) {
+		return ArrayShapeStore.contains(field(i, TYPE), field(i, X1), field(i, Y1), field(i, X2), field(i, Y2), x, y);
+	}
+
+	@Override
+	public int size() {
+		return live;
+	}
+
+	@Override
+	public void clear() {
+		changing();
+		end = 0;
+		live = 0;
+		moves++;
+	}
+
+	/**
+	 * The records copied in bulk into heap buffers (a copy is only read for a while, so it's left to the garbage
+	 * collector rather than taking direct memory)
+	 */
+	@Override
+	public MappedShapeStore copy() {
+		MappedShapeStore copy = new MappedShapeStore(true);
+		long bytes = HEADER + (long) end * RECORD;
+		copy.reserve(bytes);
+		for (int i = 0; (long) i * CHUNK < bytes; i++) {
+			int length = (int) Math.min(CHUNK, bytes - (long) i * CHUNK);
+			copy.chunks[i].put(0, chunks[i], 0, length);
+		}
+		copy.end = end;
+		copy.live = live;
+		copy.removals = removals;
+		copy.nextId = nextId;
+		return copy;
+	}
+
+	@Override
+	public Map<Integer, Shape> asMap() {
+		return new Shapes(Integer.MIN_VALUE);
+	}
+
+	@Override
+	public Map<Integer, Shape> above(int id) {
+		return new Shapes(id);
+	}
+
+	/**
+	 * The index of the record with the id (removed or not), or if there's none, -1 - the index it would go at
+	 */
+	private int find(int id) {
+		int lo = 0, hi = end - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int at = field(mid, ID);
+			if (at < id) lo = mid + 1;
+			else if (at > id) hi = mid - 1;
+			else return mid;
+		}
+		return -lo - 1;
+	}
+
+	/**
+	 * Moves the shapes' records down over the removed ones (but those of the latest KEPT removals)
+	 */
+	private void compact() {
+		int to = 0, kept = 0;
+		for (int i = 0; i < end; i++) {
+			int removed = field(i, REMOVED);
+			// (the difference rather than the counts compared, since they wrap)
+			boolean keep = removed == 0 || (removals - removed < KEPT && kept++ < KEPT);
+			if (keep) copy(i, to++);
+		}
+		if (to < end) moves++;
+		end = to;
+	}
+
+	private void copy(int from, int to) {
+		if (from == to) return;
+		for (int off = 0; off < RECORD; off += 4) setField(to, off, field(from, off));
+	}
+
+	/**
+	 * Marks the file as not checkpointed before the first change since it was
+	 */
+	private void changing() {
+		if (changed) return;
+		changed = true;
+		chunks[0].putInt(CHECKPOINTED, 0);
+		if (channel != null) ((MappedByteBuffer) chunks[0]).force(0, HEADER);
+	}
+
+	private int field(int i, int off) {
+		long at = HEADER + (long) i * RECORD + off;
+		return chunks[(int) (at >>> CHUNK_BITS)].getInt((int) at & (CHUNK - 1));
+	}
+
+	private void setField(int i, int off, int value) {
+		long at = HEADER + (long) i * RECORD + off;
+		chunks[(int) (at >>> CHUNK_BITS)].putInt((int) at & (CHUNK - 1), value);
+	}
+
+	/**
+	 * Makes sure there are buffers for the first so many bytes: the first buffer doubles until it's a whole chunk,
+	 * then whole chunks are added
+	 */
+	private void reserve(long bytes) {
+		try {
+			while (capacity() < bytes) {
+				if (chunks.length == 0) {
+					chunks = new ByteBuffer[] { buffer(0, 4096, null) };
+				}
+				else if (chunks[0].capacity() < CHUNK) {
+					chunks[0] = buffer(0, chunks[0].capacity() * 2, chunks[0]);
+				}
+				else {
+					chunks = Arrays.copyOf(chunks, chunks.length + 1);
+					chunks[chunks.length - 1] = buffer((long) (chunks.length - 1) * CHUNK, CHUNK, null);
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private long capacity() {
+		if (chunks.length == 0) return 0;
+		return (long) (chunks.length - 1) * CHUNK + chunks[chunks.length - 1].capacity();
+	}
+
+	/**
+	 * A buffer for the bytes from the position on, taking over from the old one there (if any)
+	 */
+	private ByteBuffer buffer(long position, int size, ByteBuffer old) throws IOException {
+		// a bigger mapping of the file already has what was written through the old one
+		if (channel != null) return channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+		ByteBuffer buf = heap ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+		if (old != null) buf.put(old.duplicate().clear());
+		return buf;
+	}
+
+	/**
+	 * The shapes with ids above one, in ascending order
+	 */
+	private class Shapes extends AbstractMap<Integer, Shape> {
+		private int after;
+
+		Shapes(int after) {
+			this.after = after;
+		}
+
+		@Override
+		public Shape get(Object key) {
+			return key instanceof Integer && (Integer) key > after ? MappedShapeStore.this.get((Integer) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public int size() {
+			if (after == Integer.MIN_VALUE) return live;
+			return super.size();		// counted
+		}
+
+		@Override
+		public Set<Map.Entry<Integer, Shape>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, Shape>>() {
+				@Override
+				public Iterator<Map.Entry<Integer, Shape>> iterator() {
+					// from the first record above after, skipping removed ones
+					int start = find(after);
+					int first = start >= 0 ? start + 1 : -start - 1;
+					return new Iterator<Map.Entry<Integer, Shape>>() {
+						int i = skip(first);
+
+						private int skip(int i) {
+							while (i < end && field(i, REMOVED) != 0) i++;
+							return i;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return i < end;
+						}
+
+						@Override
+						public Map.Entry<Integer, Shape> next() {
+							if (i >= end) throw new NoSuchElementException();
+							Map.Entry<Integer, Shape> entry = new AbstractMap.SimpleImmutableEntry<Integer, Shape>(
+									field(i, ID), new View(i));
+							i = skip(i + 1);
+							return entry;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					int count = 0;
+					for (Iterator<Map.Entry<Integer, Shape>> it = iterator(); it.hasNext(); it.next()) count++;
+					return count;
+				}
+			};
+		}
+	}
+
+	/**
+	 * A shape in a record
+	 */
+	private class View implements Shape {
+		private int id;
+		private int at;			// where its record was
+		private int as;			// as of how many moves
+
+		View(int i) {
+			id = field(i, ID);
+			at = i;
+			as = moves;
+		}
+
+		/**
+		 * The index of the shape's record, found again if records have been moved since
+		 */
+		private int i() {
+			if (as != moves) {
+				int i = find(id);
+				if (i < 0) throw new IllegalStateException("shape " + id + " was removed and its record compacted");
+				at = i;
+				as = moves;
+			}
+			return at;
+		}
+
+		@Override
+		public boolean contains(int x, int y) {
+			return hit(i(), x, y);
+		}
+
+		@Override
+		public java.awt.Rectangle getBounds() {
+			return copy().getBounds();
+		}
+
+		@Override
+		public String getType() {
+			return ArrayShapeStore.TYPES[field(i(), TYPE)];
+		}
+
+		@Override
+		public int getX1() {
+			return field(i(), X1);
+		}
+
+		@Override
+		public int getY1() {
+			return field(i(), Y1);
+		}
+
+		@Override
+		public int getX2() {
+			return field(i(), X2);
+		}
+
+		@Override
+		public int getY2() {
+			return field(i(), Y2);
+		}
+
+		@Override
+		public void moveBy(int dx, int dy) {
+			changing();
+			int i = i();
+			setField(i, X1, field(i, X1) + dx);
+			setField(i, Y1, field(i, Y1) + dy);
+			setField(i, X2, field(i, X2) + dx);
+			setField(i, Y2, field(i, Y2) + dy);
+		}
+
+		@Override
+		public Color getColor() {
+			return ColorCache.argb(field(i(), ARGB));
+		}
+
+		@Override
+		public void setColor(Color color) {
+			changing();
+			setField(i(), ARGB, color.getRGB());
+		}
+
+		@Override
+		public void draw(Graphics g) {
+			copy().draw(g);
+		}
+
+		@Override
+		public String toString() {
+			return copy().toString();
+		}
+
+		/**
+		 * The shape as an object of its own (for what's easiest left to the shape classes)
+		 */
+		private Shape copy() {
+			return Shape.create(getType(), getX1(), getY1(), getX2(), getY2(), getColor());
+		}
+	}
+}
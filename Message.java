@@ -0,0 +1,301 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A message from the server to its clients.
+ * Holds the fields rather than a formatted string, and formats itself as text or binary (see BinaryProtocol) only
+ * when a client needing that form asks -- at most once each, however many clients it's broadcast to.
+ */
+public class Message {
+	private static final byte BINARY_FOLLOWS = -1;		// marker op: switch this client's output to binary
+	private static final byte BATCH = -2;				// several messages sent as one
+
+	private byte op;						// one of BinaryProtocol's opcodes, or one of the markers above
+	private int id = -1;					// the shape the message is about
+	private Shape shape;					// for join and draw: a copy of the shape, as it was when the message was made
+	private int dx, dy;						// for move drag
+	private int rgb;						// for recolor
+	private List<Message> batch;			// for a batch: the messages in it
+	private String node, room;				// for redirect: where to go, and the room to ask for there
+	private long epoch;						// for version: which instance of the room (see SketchRoom)
+	private long version;					// for a change: the room's version it makes (0 if several were merged,
+											// see plus); for version: the version the client is at (-1 if unknown)
+	private long upTo;						// for a change: the latest version it includes
+	private long broadcastAt;				// for a change: System.nanoTime() when it was broadcast (0 if it wasn't)
+	private volatile String text;			// formatted forms, once asked for
+	private volatile byte[] binary;
+
+	private Message(byte op) {
+		this.op = op;
+	}
+
+	public static Message join(int id, Shape shape) {
+		return added(BinaryProtocol.JOIN, id, shape);
+	}
+
+	public static Message draw(int id, Shape shape) {
+		return added(BinaryProtocol.DRAW, id, shape);
+	}
+
+	private static Message added(byte op, int id, Shape shape) {
+		Message msg = new Message(op);
+		msg.id = id;
+		// copied, since the shape may be moved or recolored before the message is written out
+		msg.shape = Shape.create(shape.getType(), shape.getX1(), shape.getY1(), shape.getX2(), shape.getY2(),
+				shape.getColor());
+		return msg;
+	}
+
+	public static Message moveDrag(int id, int dx, int dy) {
+		Message msg = new Message(BinaryProtocol.MOVE_DRAG);
+		msg.id = id;
+		msg.dx = dx;
+		msg.dy = dy;
+		return msg;
+	}
+
+	public static Message recolor(int id, int rgb) {
+		Message msg = new Message(BinaryProtocol.RECOLOR);
+		msg.id = id;
+		msg.rgb = rgb;
+		return msg;
+	}
+
+	public static Message delete(int id) {
+		Message msg = new Message(BinaryProtocol.DELETE);
+		msg.id = id;
+		return msg;
+	}
+
+	public static Message reset() {
+		return new Message(BinaryProtocol.RESET);
+	}
+
+	/**
+	 * Tells a client to reconnect to another node (host:port) and ask for the room there
+	 */
+	public static Message redirect(String node, String room) {
+		Message msg = new Message(BinaryProtocol.REDIRECT);
+		msg.node = node;
+		msg.room = room;
+		return msg;
+	}
+
+	/**
+	 * Tells a client where it is in its room's history: the room's epoch, and the version its sketch is at
+	 * (or -1 if it can't tell -- see SketchServerCommunicator.versionBefore)
+	 */
+	public static Message version(long epoch, long version) {
+		Message msg = new Message(BinaryProtocol.VERSION);
+		msg.epoch = epoch;
+		msg.version = version;
+		return msg;
+	}
+
+	/**
+	 * Tells a client that asked for binary that everything after this is binary (this one itself is text)
+	 */
+	public static Message binaryFollows() {
+		return new Message(BINARY_FOLLOWS);
+	}
+
+	/**
+	 * Several messages to be sent together, in order, taking one place in a client's queue
+	 */
+	public static Message batch(List<Message> messages) {
+		Message msg = new Message(BATCH);
+		msg.batch = messages;
+		return msg;
+	}
+
+	public boolean isMoveDrag() {
+		return op == BinaryProtocol.MOVE_DRAG;
+	}
+
+	public boolean isBinaryFollows() {
+		return op == BINARY_FOLLOWS;
+	}
+
+	/**
+	 * Whether it's about the connection rather than the sketch (switching to binary, or going to another node),
+	 * so can't be dropped in favor of a snapshot of the sketch
+	 */
+	public boolean isControl() {
+		return op == BINARY_FOLLOWS || op == BinaryProtocol.REDIRECT;
+	}
+
+	public boolean isEmptyBatch() {
+		return op == BATCH && batch.isEmpty();
+	}
+
+	public boolean isReset() {
+		return op == BinaryProtocol.RESET;
+	}
+
+	public boolean isVersion() {
+		return op == BinaryProtocol.VERSION;
+	}
+
+	/**
+	 * Whether it's a change to the sketch (as broadcast by a room; a join, which is only ever sent in a snapshot,
+	 * isn't one)
+	 */
+	public boolean isChange() {
+		return op == BinaryProtocol.DRAW || op == BinaryProtocol.MOVE_DRAG || op == BinaryProtocol.RECOLOR
+				|| op == BinaryProtocol.DELETE;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getUpTo() {
+		return upTo;
+	}
+
+	public long getBroadcastAt() {
+		return broadcastAt;
+	}
+
+	/**
+	 * Stamps a change with the version of the room it makes, and the time, as the room broadcasts it
+	 */
+	public void setVersion(long version) {
+		this.version = version;
+		upTo = version;
+		broadcastAt = System.nanoTime();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * A move drag combining this one and a later one of the same shape
+	 * (it makes no one version of the room, so it has none -- just the latest it includes)
+	 */
+	public Message plus(Message drag) {
+		Message msg = moveDrag(id, dx + drag.dx, dy + drag.dy);
+		msg.upTo = Math.max(upTo, drag.upTo);
+		msg.broadcastAt = broadcastAt;		// (waiting since the first of them went out)
+		return msg;
+	}
+
+	/**
+	 * Adds one to counts[op] for each message this is -- itself, or each in the batch -- op being its opcode
+	 * in BinaryProtocol (0 for the switch to binary)
+	 */
+	public void count(LongAdder[] counts) {
+		if (op == BATCH) {
+			for (Message msg : batch) msg.count(counts);
+		}
+		else {
+			counts[Math.max(op, 0)].increment();
+		}
+	}
+
+	/**
+	 * The message as text, without the final newline (a batch is one line per message)
+	 */
+	public String text() {
+		String t = text;
+		if (t == null) {
+			t = format();
+			text = t;
+		}
+		return t;
+	}
+
+	/**
+	 * The message as text, newline terminated, in bytes
+	 */
+	public byte[] textBytes() {
+		return (text() + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The message as binary frames
+	 */
+	public byte[] binary() {
+		byte[] b = binary;
+		if (b == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+			encode(out);
+			b = out.toByteArray();
+			binary = b;
+		}
+		return b;
+	}
+
+	private String format() {
+		switch (op) {
+			case BinaryProtocol.JOIN:
+				return "join " + id + " " + shape;
+			case BinaryProtocol.DRAW:
+				return "draw " + id + " " + shape;
+			case BinaryProtocol.MOVE_DRAG:
+				return "move drag " + id + " " + dx + " " + dy;
+			case BinaryProtocol.RECOLOR:
+				return "recolor " + id + " " + rgb;
+			case BinaryProtocol.DELETE:
+				return "delete " + id;
+			case BinaryProtocol.RESET:
+				return "reset";
+			case BinaryProtocol.REDIRECT:
+				return "redirect " + node + " " + room;
+			case BinaryProtocol.VERSION:
+				return "version " + epoch + " " + version;
+			case BINARY_FOLLOWS:
+				return "binary";
+			default:
+				StringBuilder lines = new StringBuilder();
+				for (Message msg : batch) {
+					if (msg.isEmptyBatch()) continue;
+					if (lines.length() > 0) lines.append('\n');
+					lines.append(msg.text());
+				}
+				return lines.toString();
+		}
+	}
+
+	private void encode(ByteArrayOutputStream out) {
+		if (op == BATCH) {
+			for (Message msg : batch) msg.encode(out);
+			return;
+		}
+		out.write(op);
+		switch (op) {
+			case BinaryProtocol.JOIN:
+			case BinaryProtocol.DRAW:
+				BinaryProtocol.writeVarint(out, id);
+				BinaryProtocol.writeShape(out, shape);
+				break;
+			case BinaryProtocol.MOVE_DRAG:
+				BinaryProtocol.writeVarint(out, id);
+				BinaryProtocol.writeVarint(out, dx);
+				BinaryProtocol.writeVarint(out, dy);
+				break;
+			case BinaryProtocol.RECOLOR:
+				BinaryProtocol.writeVarint(out, id);
+				BinaryProtocol.writeColor(out, rgb);
+				break;
+			case BinaryProtocol.DELETE:
+				BinaryProtocol.writeVarint(out, id);
+				break;
+			case BinaryProtocol.REDIRECT:
+				BinaryProtocol.writeString(out, node);
+				BinaryProtocol.writeString(out, room);
+				break;
+			case BinaryProtocol.VERSION:
+				BinaryProtocol.writeVarlong(out, epoch);
+				BinaryProtocol.writeVarlong(out, version);
+				break;
+		}
+	}
+}
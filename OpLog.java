@@ -0,0 +1,491 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the server's sketch, plus snapshots of it, so that it survives a restart.
+ *
+ * Every change the server broadcasts is appended as a record: 4-byte length, 4-byte CRC32 of the payload, and the
+ * payload itself -- the message's binary frames (see BinaryProtocol), which binary clients are sent anyway.
+ * Records are numbered in order from 0 (not stored: a segment file is named for the number of its first record,
+ * and the rest follow on). A new segment is started whenever the current one passes SEGMENT_SIZE.
+ *
+ * A snapshot is the whole sketch as of some record number, in one file: the shapes with their ids, and the next id.
+ * Once one is on disk, the segments holding only records before it are deleted. On startup, replay loads the
+ * snapshot and applies the records after it, in order, stopping at (and cutting off) a record that was only partly
+ * written when the server went down -- so how long that takes depends on how many shapes there are and how much
+ * has changed since the last snapshot, not on the whole history. If that record isn't in the last segment, or a
+ * segment is missing, the changes in the segments after can't be applied without the ones lost (unless the snapshot
+ * has them), so replay stops there too, and sets those segments aside (renamed to .log.dropped) for the log to
+ * carry on without them.
+ *
+ * How soon an appended change is on disk is up to the durability: with OP it's written and fsynced before append
+ * returns (so before it's broadcast); with BATCH a syncer thread writes and fsyncs whatever has been appended as
+ * fast as the disk allows (group commit); with INTERVAL it does so every so many ms.
+ *
+ * If writing fails, the log is dead from then on: what was appended but not yet written is dropped, and so is
+ * anything appended after (rather than piling up for a syncer that's gone), and the failure handler is told, so
+ * the log's owner can stop relying on it. With OP the append that failed throws, too.
+ */
+public class OpLog implements Closeable {
+	public enum Durability {
+		OP,			// fsync each change before it's broadcast
+		BATCH,		// fsync whatever has been appended since the last fsync, back to back
+		INTERVAL	// fsync whatever has been appended, every interval ms
+	}
+
+	private static final long SEGMENT_SIZE = 64L << 20;	// bytes in a segment before starting the next one
+	private static final int HEADER = 8;					// length and CRC before each record
+	private static final int SNAPSHOT_MAGIC = 0x534b5331;	// "SKS1"
+	private static final String SNAPSHOT = "snapshot";		// file name of the latest snapshot
+
+	private Path dir;						// holding the segments and snapshot
+	private Durability durability;
+	private long interval;					// ms between fsyncs, for INTERVAL
+	private FileChannel segment;			// the segment being appended to
+	private long written;					// number of the next record to be written to it
+	private volatile boolean rollRequested;	// whether to start a new segment after the next write
+	private long appended;					// number of the next record to be appended (guarded by this)
+	private ByteBuffer pending = ByteBuffer.allocate(1 << 16);	// appended but not yet written (guarded by this)
+	private int pendingRecords;				// how many records that is (guarded by this)
+	private ByteBuffer writing = ByteBuffer.allocate(1 << 16);	// swapped with pending by the syncer to write
+	private int writingRecords;
+	private CRC32 crc = new CRC32();		// for append (guarded by this)
+	private Thread syncer;					// writes and fsyncs, for BATCH and INTERVAL
+	private boolean closed = false;			// (guarded by this)
+	private IOException failure;			// why writing failed, killing the log (null if it hasn't; guarded by this)
+	private Consumer<IOException> failed;	// told when it does (null if nobody is)
+	private long snapshotted;				// record number the latest snapshot is as of (only touched by replay, then snapshot)
+
+	public OpLog(Path dir, Durability durability, long interval) {
+		this.dir = dir;
+		this.durability = durability;
+		this.interval = interval;
+	}
+
+	/**
+	 * Restores the sketch (which should be empty) from the latest snapshot and the changes logged after it, then
+	 * opens the log for appending. Has to be called, once, before anything is appended.
+	 * Returns how many logged changes were replayed on top of the snapshot.
+	 */
+	public int replay(Sketch sketch) throws IOException {
+		Files.createDirectories(dir);
+		return replayFrom(sketch, loadSnapshot(sketch));
+	}
+
+	/**
+	 * As replay, for a sketch that already holds everything before the record number -- kept elsewhere (say, in a
+	 * MappedShapeStore) as of the same record as the latest snapshot: skips loading the snapshot, and just applies
+	 * the changes logged after it. Returns -1, having done nothing, if the latest snapshot isn't as of that record.
+	 */
+	public int replay(Sketch sketch, long asOf) throws IOException {
+		Files.createDirectories(dir);
+		if (snapshotAsOf() != asOf) return -1;
+		return replayFrom(sketch, asOf);
+	}
+
+	/**
+	 * Applies the changes from the record number on (those before it being in the sketch already), and opens the log
+	 */
+	private int replayFrom(Sketch sketch, long from) throws IOException {
+		snapshotted = from;
+		List<Path> segments = segments();
+		long next = snapshotted;		// number of the next record
+		long end = -1;					// number of the record after the last segment's last one
+		int replayed = 0;
+		Path last = null;				// the last segment replayed
+		for (int i = 0; i < segments.size(); i++) {
+			Path path = segments.get(i);
+			long record = start(path);
+			// (a segment cut short, by a partial record or a missing segment, leaves a gap before the next -- unless
+			// it's in what the snapshot already has)
+			if (record > next) {
+				setAside(segments.subList(i, segments.size()),
+						"records " + next + " to " + (record - 1) + " are missing");
+				break;
+			}
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+				while (buf.hasRemaining() && channel.read(buf) >= 0) ;
+				buf.flip();
+				int good = 0;		// end of the last whole record
+				while (buf.remaining() >= HEADER) {
+					int length = buf.getInt(), sum = buf.getInt();
+					if (length <= 0 || length > buf.remaining()) break;
+					ByteBuffer payload = buf.slice();
+					payload.limit(length);
+					crc.reset();
+					crc.update(payload.duplicate());
+					if ((int) crc.getValue() != sum) break;
+					// the snapshot already has the changes before it
+					if (record >= snapshotted) {
+						apply(payload, sketch);
+						replayed++;
+					}
+					record++;
+					buf.position(buf.position() + length);
+					good = buf.position();
+				}
+				if (good < channel.size()) {
+					System.out.println("log: dropping " + (channel.size() - good) + " bytes of partial record from " + path);
+					channel.truncate(good);
+				}
+			}
+			next = Math.max(next, record);
+			end = record;
+			last = path;
+		}
+
+		// carry on appending to the last segment, unless it ends before the snapshot (if the snapshot was taken of
+		// changes that hadn't been synced yet)
+		appended = next;
+		written = next;
+		openSegment(last != null && end == next ? start(last) : next);
+		if (durability != Durability.OP) {
+			syncer = new Thread(this::sync, "log syncer");
+			syncer.setDaemon(true);
+			syncer.start();
+		}
+		return replayed;
+	}
+
+	/**
+	 * Has the handler told if writing the log fails (on whichever thread it fails on -- the syncer's, or for OP an
+	 * appender's, holding the log's lock and the sketch's update lock -- so it should just hand the news on)
+	 */
+	public void setFailureHandler(Consumer<IOException> failed) {
+		this.failed = failed;
+	}
+
+	/**
+	 * Why writing the log failed, or null if it hasn't
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * The number of changes logged, from the start (so the number the next one will get)
+	 */
+	public synchronized long records() {
+		return appended;
+	}
+
+	/**
+	 * Logs a change (made to the sketch, and about to be broadcast); once the log is closed, or has failed,
+	 * changes are dropped
+	 */
+	public synchronized void append(Message msg) {
+		if (closed || failure != null) return;
+		byte[] payload = msg.binary();
+		if (pending.remaining() < HEADER + payload.length) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + HEADER + payload.length));
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+		crc.reset();
+		crc.update(payload);
+		pending.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+		pendingRecords++;
+		appended++;
+		if (durability == Durability.OP) {
+			try {
+				writePending();
+				segment.force(false);
+			}
+			catch (IOException e) {
+				fail(e);
+				throw new UncheckedIOException(e);
+			}
+		}
+		else if (durability == Durability.BATCH) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the whole sketch to a new snapshot, then deletes the log segments it makes unnecessary.
+	 * Only holds up changes to the sketch for as long as it takes to copy its store (under the read lock: in bulk,
+	 * for ARRAY and MAPPED stores -- see ShapeStore.copy) -- encoding and writing the shapes is done after, on the
+	 * caller's thread. Does nothing if nothing has changed since the last snapshot, or if the log has been closed.
+	 * Returns the number of shapes written, or -1 if there was no need.
+	 */
+	public int snapshot(Sketch sketch) throws IOException {
+		// a consistent view: changes are logged under the update lock, so nothing is appended while this is held
+		ShapeStore shapes;
+		long asOf;
+		int nextId;
+		sketch.lockForReading();
+		try {
+			synchronized (this) {
+				if (closed || failure != null) return -1;
+				asOf = appended;
+			}
+			if (asOf == snapshotted) return -1;
+			nextId = sketch.getNextId();
+			shapes = sketch.getStore().copy();
+		}
+		finally {
+			sketch.unlockForReading();
+		}
+
+		// magic, record number, next id, count, then each shape as a JOIN frame, and a CRC32 of all that
+		int count = shapes.size();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 16 * count);
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(SNAPSHOT_MAGIC);
+		data.writeLong(asOf);
+		data.writeInt(nextId);
+		data.writeInt(count);
+		for (Map.Entry<Integer, Shape> entry : shapes.asMap().entrySet()) {
+			out.write(Message.join(entry.getKey(), entry.getValue()).binary());
+		}
+		CRC32 sum = new CRC32();
+		sum.update(out.toByteArray());
+		data.writeInt((int) sum.getValue());
+
+		// written in full and synced before it replaces the last one, so there's always a whole snapshot on disk
+		Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+			while (buf.hasRemaining()) channel.write(buf);
+			channel.force(true);
+		}
+		Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		snapshotted = asOf;
+
+		// drop the segments whose records are all in the snapshot, and start a new one so that the current one can
+		// go next time
+		List<Path> segments = segments();
+		for (int i = 0; i + 1 < segments.size() && start(segments.get(i + 1)) <= asOf; i++) {
+			Files.delete(segments.get(i));
+		}
+		rollRequested = true;
+		return count;
+	}
+
+	/**
+	 * Writes and fsyncs anything still pending, and closes the segment (just closes it, if the log has failed)
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			if (syncer != null) syncer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (segment == null) return;		// never opened
+			rollRequested = false;				// (no point starting a segment that will never be written)
+			if (failure != null) {
+				segment.close();
+				return;
+			}
+			writePending();
+			segment.force(false);
+			segment.close();
+		}
+	}
+
+	/**
+	 * Syncer thread: takes whatever has been appended, writes it and fsyncs, until closed
+	 */
+	private void sync() {
+		try {
+			long synced;				// appended as of the last write
+			synchronized (this) {
+				synced = appended;
+			}
+			while (true) {
+				synchronized (this) {
+					if (durability == Durability.BATCH) {
+						while (pending.position() == 0 && !closed) wait();
+					}
+					else if (!closed) {
+						wait(interval);
+					}
+					if (closed) return;
+					// (nothing to write or force, if nothing's been appended since the last time round)
+					if (appended == synced) continue;
+					synced = appended;
+					// appends carry on into the other buffer while this one is written
+					ByteBuffer full = pending;
+					pending = writing;
+					writing = full;
+					writingRecords = pendingRecords;
+					pendingRecords = 0;
+				}
+				writing.flip();
+				write(writing, writingRecords);
+				writing.clear();
+				segment.force(false);
+			}
+		}
+		catch (InterruptedException e) {
+			// closing
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Kills the log, writing having failed: drops what's pending, and tells the failure handler
+	 */
+	private void fail(IOException e) {
+		synchronized (this) {
+			if (failure != null) return;
+			failure = e;
+			pending.clear();
+			pendingRecords = 0;
+		}
+		e.printStackTrace();
+		System.out.println("log " + dir + " failed; changes are no longer being logged");
+		Consumer<IOException> handler = failed;
+		if (handler != null) handler.accept(e);
+	}
+
+	private void writePending() throws IOException {
+		pending.flip();
+		write(pending, pendingRecords);
+		pending.clear();
+		pendingRecords = 0;
+	}
+
+	/**
+	 * Writes the buffer (holding the given number of records) to the current segment, moving on to a new segment
+	 * if this one is full or a snapshot has asked for it
+	 * (only called by one thread at a time: appenders under the lock for OP, the syncer otherwise)
+	 */
+	private void write(ByteBuffer buf, int records) throws IOException {
+		while (buf.hasRemaining()) segment.write(buf);
+		written += records;
+		if (segment.size() >= SEGMENT_SIZE || (rollRequested && segment.size() > 0)) {
+			rollRequested = false;
+			segment.force(false);
+			segment.close();
+			openSegment(written);
+		}
+	}
+
+	/**
+	 * Takes the segments out of the log (renamed, so they're still there to look at), their records not being
+	 * replayable in order
+	 */
+	private static void setAside(List<Path> segments, String why) throws IOException {
+		System.out.println("log: " + why + "; setting aside " + segments.size() + " segment(s) from "
+				+ segments.get(0) + " on");
+		for (Path segment : segments) {
+			Files.move(segment, segment.resolveSibling(segment.getFileName() + ".dropped"),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void openSegment(long start) throws IOException {
+		segment = FileChannel.open(dir.resolve(String.format("%016d.log", start)),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * The segment files in the directory, in order
+	 */
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+			for (Path file : files) segments.add(file);
+		}
+		segments.sort((a, b) -> Long.compare(start(a), start(b)));
+		return segments;
+	}
+
+	/**
+	 * The number of a segment's first record
+	 */
+	private static long start(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+	}
+
+	/**
+	 * The record number the snapshot is as of (0 if there's none), from its header alone
+	 */
+	private long snapshotAsOf() throws IOException {
+		Path path = dir.resolve(SNAPSHOT);
+		if (!Files.exists(path)) return 0;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(12);
+			while (buf.hasRemaining() && channel.read(buf) >= 0) ;
+			return buf.position() == 12 && buf.getInt(0) == SNAPSHOT_MAGIC ? buf.getLong(4) : -1;
+		}
+	}
+
+	/**
+	 * Fills the sketch from the snapshot, if there is one, returning the record number it's as of (0 if none)
+	 */
+	private long loadSnapshot(Sketch sketch) throws IOException {
+		Path path = dir.resolve(SNAPSHOT);
+		if (!Files.exists(path)) return 0;
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+		int end = buf.limit() - 4;		// where the CRC is
+		CRC32 sum = new CRC32();
+		if (end >= 20) sum.update(buf.array(), 0, end);
+		if (end < 20 || buf.getInt(0) != SNAPSHOT_MAGIC || buf.getInt(end) != (int) sum.getValue()) {
+			throw new IOException("corrupt snapshot " + path);
+		}
+		buf.position(4);
+		long asOf = buf.getLong();
+		int nextId = buf.getInt(), count = buf.getInt();
+		buf.limit(end);
+		apply(buf, sketch);
+		if (sketch.getShapeMap().size() != count) throw new IOException("corrupt snapshot " + path);
+		sketch.advanceNextId(nextId);
+		return asOf;
+	}
+
+	/**
+	 * Applies a record's frames to the sketch (restoring ids as they were, so the sketch's next id ends up past
+	 * every one handed out before)
+	 */
+	private static void apply(ByteBuffer in, Sketch sketch) {
+		while (in.hasRemaining()) {
+			byte op = in.get();
+			switch (op) {
+				case BinaryProtocol.JOIN:
+				case BinaryProtocol.DRAW: {
+					int id = BinaryProtocol.readVarint(in);
+					sketch.addShape(id, BinaryProtocol.readShape(in));
+					break;
+				}
+				case BinaryProtocol.MOVE_DRAG: {
+					int id = BinaryProtocol.readVarint(in), dx = BinaryProtocol.readVarint(in), dy = BinaryProtocol.readVarint(in);
+					sketch.moveShape(id, dx, dy);
+					break;
+				}
+				case BinaryProtocol.RECOLOR: {
+					int id = BinaryProtocol.readVarint(in), argb = in.getInt();
+					sketch.recolorShape(id, ColorCache.argb(argb));
+					break;
+				}
+				case BinaryProtocol.DELETE:
+					sketch.removeShapeByID(BinaryProtocol.readVarint(in));
+					break;
+				default:
+					throw new IllegalArgumentException("unknown opcode " + op + " in log");
+			}
+		}
+	}
+}
@@ -46,6 +46,32 @@ public class Rectangle implements Shape {
 		y1 += dy; y2 += dy;
 	}
 
+	// returns the type of shape and its corners
+	@Override
+	public String getType() {
+		return "rectangle";
+	}
+
+	@Override
+	public int getX1() {
+		return x1;
+	}
+
+	@Override
+	public int getY1() {
+		return y1;
+	}
+
+	@Override
+	public int getX2() {
+		return x2;
+	}
+
+	@Override
+	public int getY2() {
+		return y2;
+	}
+
 	// returns the color of the rectangle
 	@Override
 	public Color getColor() {
@@ -61,9 +87,21 @@ public class Rectangle implements Shape {
 	// returns true if the rectangle contains the point at (x, y)
 	@Override
 	public boolean contains(int x, int y) {
+		return contains(x1, y1, x2, y2, x, y);
+	}
+
+	// returns true if the rectangle with the corners (x1 <= x2, y1 <= y2) contains the point at (x, y)
+	// (for shapes kept as numbers rather than objects, as ArrayShapeStore does)
+	public static boolean contains(int x1, int y1, int x2, int y2, int x, int y) {
 		return x1 <= x && x2 >= x && y1 <= y && y2 >= y;
 	}
 
+	// returns the box covered by the rectangle (corners are inclusive, so one wider and taller than x2-x1, y2-y1)
+	@Override
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(x1, y1, x2-x1+1, y2-y1+1);
+	}
+
 	// draws the rectangle
 	@Override
 	public void draw(Graphics g) {
@@ -50,6 +50,31 @@ public class Segment implements Shape {
 		x2 += dx; y2 += dy;
 	}
 
+	@Override
+	public String getType() {
+		return "segment";
+	}
+
+	@Override
+	public int getX1() {
+		return x1;
+	}
+
+	@Override
+	public int getY1() {
+		return y1;
+	}
+
+	@Override
+	public int getX2() {
+		return x2;
+	}
+
+	@Override
+	public int getY2() {
+		return y2;
+	}
+
 	@Override
 	public Color getColor() {
 		return color;
@@ -62,7 +87,27 @@ public class Segment implements Shape {
 	
 	@Override
 	public boolean contains(int x, int y) {
-		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
+		return contains(x1, y1, x2, y2, x, y);
+	}
+
+	/**
+	 * Whether the point is within 3 of the segment (x1,y1)-(x2,y2)
+	 * (for shapes kept as numbers rather than objects, as ArrayShapeStore does)
+	 */
+	public static boolean contains(int x1, int y1, int x2, int y2, int x, int y) {
+		// Nothing more than 3 outside the box around the endpoints is within 3 of the segment
+		if (x < Math.min(x1, x2)-3 || x > Math.max(x1, x2)+3 || y < Math.min(y1, y2)-3 || y > Math.max(y1, y2)+3) return false;
+		return pointToSegmentDistance2(x, y, x1, y1, x2, y2) <= 3*3;
+	}
+
+	/**
+	 * The box around the two endpoints, grown by the distance contains accepts
+	 */
+	@Override
+	public java.awt.Rectangle getBounds() {
+		int minX = Math.min(x1, x2), minY = Math.min(y1, y2);
+		int maxX = Math.max(x1, x2), maxY = Math.max(y1, y2);
+		return new java.awt.Rectangle(minX-3, minY-3, maxX-minX+7, maxY-minY+7);
 	}
 
 	/**
@@ -70,15 +115,22 @@ public class Segment implements Shape {
 	 * http://stackoverflow.com/questions/849211/shortest-distance-between-a-point-and-a-line-segment
 	 */
 	public static double pointToSegmentDistance(int x, int y, int x1, int y1, int x2, int y2) {
+		return Math.sqrt(pointToSegmentDistance2(x, y, x1, y1, x2, y2));
+	}
+
+	/**
+	 * The distance between a point and a segment, squared (so comparing it doesn't need a square root)
+	 */
+	public static double pointToSegmentDistance2(int x, int y, int x1, int y1, int x2, int y2) {
 		double l2 = dist2(x1, y1, x2, y2);
-		if (l2 == 0) return Math.sqrt(dist2(x, y, x1, y1)); // segment is a point
+		if (l2 == 0) return dist2(x, y, x1, y1); // segment is a point
 		// Consider the line extending the segment, parameterized as <x1,y1> + t*(<x2,y2> - <x1,y1>).
 		// We find projection of point <x,y> onto the line. 
 		// It falls where t = [(<x,y>-<x1,y1>) . (<x2,y2>-<x1,y1>)] / |<x2,y2>-<x1,y1>|^2
 		double t = ((x-x1)*(x2-x1) + (y-y1)*(y2-y1)) / l2;
 		// We clamp t from [0,1] to handle points outside the segment.
 		t = Math.max(0, Math.min(1, t));
-		return Math.sqrt(dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1)));
+		return dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1));
 	}
 
 	/**
@@ -0,0 +1,302 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * What the server is doing: clients connected, messages received and sent by command (in all, and over the last
+ * second), bytes each way (in all and per client), how deep each client's outbound queue is, how long a broadcast
+ * change takes to be written out to each client (fan-out latency), and how long Sketch.getId takes.
+ *
+ * Counting goes on all the time, cheaply: a LongAdder increment per message, and a Histogram record (no allocation)
+ * per change written and per hit test. It's read over JMX (see register, and ServerMetricsMXBean), or as plain text
+ * in the Prometheus format, from an HTTP endpoint of the server's own (see serve).
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+	// each command's name, by its opcode in BinaryProtocol (the switch to binary, which has none, is 0)
+	private static final String[] COMMANDS = { "binary", "join", "draw", "drag", "recolor", "delete", "reset",
+			"press", "room", "redirect", "version", "resume", "undo", "redo" };
+	// the commands clients send, and the ones they're sent
+	private static final byte[] RECEIVED = { BinaryProtocol.DRAW, BinaryProtocol.MOVE_PRESS, BinaryProtocol.MOVE_DRAG,
+			BinaryProtocol.RECOLOR, BinaryProtocol.DELETE, BinaryProtocol.ROOM, BinaryProtocol.RESUME,
+			BinaryProtocol.UNDO, BinaryProtocol.REDO };
+	private static final byte[] SENT = { BinaryProtocol.JOIN, BinaryProtocol.DRAW, BinaryProtocol.MOVE_DRAG,
+			BinaryProtocol.RECOLOR, BinaryProtocol.DELETE, BinaryProtocol.RESET, BinaryProtocol.REDIRECT,
+			BinaryProtocol.VERSION, 0 };
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };		// the same, as labels
+	private static final String[] KEYS = { "p50", "p90", "p99", "p99.9" };				// and as JMX keys
+
+	private SketchServer server;
+	private Set<SketchServerCommunicator> clients = ConcurrentHashMap.newKeySet();	// those connected now
+	private LongAdder connections = new LongAdder();			// clients ever connected
+	private LongAdder[] received = adders(), sent = adders();	// messages by opcode
+	private LongAdder bytesReceived = new LongAdder();			// (bytes sent are in the server's write stats)
+	private Histogram fanout = new Histogram();				// ns from a change being broadcast to being written
+	private Histogram hitTests = new Histogram();				// ns in Sketch.getId
+	private long[] lastReceived = new long[COMMANDS.length], lastSent = new long[COMMANDS.length];
+	private volatile long[] receivedRate = new long[COMMANDS.length], sentRate = new long[COMMANDS.length];
+														// messages by opcode over the last second (see tick)
+
+	public ServerMetrics(SketchServer server) {
+		this.server = server;
+	}
+
+	private static LongAdder[] adders() {
+		LongAdder[] adders = new LongAdder[COMMANDS.length];
+		for (int i = 0; i < adders.length; i++) adders[i] = new LongAdder();
+		return adders;
+	}
+
+	public void connected(SketchServerCommunicator comm) {
+		if (clients.add(comm)) connections.increment();
+	}
+
+	public void disconnected(SketchServerCommunicator comm) {
+		clients.remove(comm);
+	}
+
+	/**
+	 * Counts a message from a client (by its opcode in BinaryProtocol)
+	 */
+	public void received(byte op) {
+		received[op].increment();
+	}
+
+	/**
+	 * Counts a message written to a client (each one in it, for a batch)
+	 */
+	public void sent(Message msg) {
+		msg.count(sent);
+	}
+
+	public void read(int bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	public Histogram getFanout() {
+		return fanout;
+	}
+
+	public Histogram getHitTests() {
+		return hitTests;
+	}
+
+	/**
+	 * Works out the messages per second over the second since it was last called (the server calls it every second)
+	 */
+	public void tick() {
+		long[] nowReceived = sums(received), nowSent = sums(sent);
+		receivedRate = minus(nowReceived, lastReceived);
+		sentRate = minus(nowSent, lastSent);
+		lastReceived = nowReceived;
+		lastSent = nowSent;
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++) sums[i] = adders[i].sum();
+		return sums;
+	}
+
+	private static long[] minus(long[] a, long[] b) {
+		long[] diff = new long[a.length];
+		for (int i = 0; i < a.length; i++) diff[i] = a[i] - b[i];
+		return diff;
+	}
+
+	/**
+	 * Makes the metrics readable over JMX, named for the server's client port
+	 */
+	public void register(int port) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("sketch:type=Server,port=" + port));
+	}
+
+	/**
+	 * Serves the metrics as text (see text) at /metrics on the port, over HTTP, on a thread of its own
+	 */
+	public void serve(int port) throws IOException {
+		HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+		http.createContext("/metrics", exchange -> {
+			byte[] body = text().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		http.start();
+		System.out.println("metrics at http://localhost:" + port + "/metrics");
+	}
+
+	/**
+	 * Everything, in the Prometheus text format (times in seconds)
+	 */
+	public String text() {
+		StringBuilder out = new StringBuilder();
+		metric(out, "sketch_connections", "gauge", "Clients connected now");
+		out.append("sketch_connections ").append(clients.size()).append('\n');
+		metric(out, "sketch_connections_total", "counter", "Clients ever connected");
+		out.append("sketch_connections_total ").append(connections.sum()).append('\n');
+
+		long[] receivedRate = this.receivedRate, sentRate = this.sentRate;
+		metric(out, "sketch_messages_received_total", "counter", "Messages from clients, by command");
+		for (byte op : RECEIVED) command(out, "sketch_messages_received_total", op, received[op].sum());
+		metric(out, "sketch_messages_received_per_second", "gauge", "Messages from clients over the last second");
+		for (byte op : RECEIVED) command(out, "sketch_messages_received_per_second", op, receivedRate[op]);
+		metric(out, "sketch_messages_sent_total", "counter", "Messages to clients, by command");
+		for (byte op : SENT) command(out, "sketch_messages_sent_total", op, sent[op].sum());
+		metric(out, "sketch_messages_sent_per_second", "gauge", "Messages to clients over the last second");
+		for (byte op : SENT) command(out, "sketch_messages_sent_per_second", op, sentRate[op]);
+
+		metric(out, "sketch_bytes_received_total", "counter", "Bytes from clients");
+		out.append("sketch_bytes_received_total ").append(bytesReceived.sum()).append('\n');
+		metric(out, "sketch_bytes_sent_total", "counter", "Bytes to clients");
+		out.append("sketch_bytes_sent_total ").append(server.getWriteStats().getBytes()).append('\n');
+		metric(out, "sketch_writes_total", "counter", "Writes (flushes) to clients");
+		out.append("sketch_writes_total ").append(server.getWriteStats().getWrites()).append('\n');
+
+		List<SketchServerCommunicator> now = new ArrayList<SketchServerCommunicator>(clients);
+		metric(out, "sketch_client_bytes_received_total", "counter", "Bytes from each client");
+		for (SketchServerCommunicator comm : now) client(out, "sketch_client_bytes_received_total", comm, comm.getBytesIn());
+		metric(out, "sketch_client_bytes_sent_total", "counter", "Bytes to each client");
+		for (SketchServerCommunicator comm : now) client(out, "sketch_client_bytes_sent_total", comm, comm.getBytesOut());
+		metric(out, "sketch_client_queue_depth", "gauge", "Messages waiting to be written to each client");
+		for (SketchServerCommunicator comm : now) client(out, "sketch_client_queue_depth", comm, comm.getQueueDepth());
+		metric(out, "sketch_queue_depth_max", "gauge", "Messages waiting for the furthest behind client");
+		out.append("sketch_queue_depth_max ").append(getQueueDepthMax()).append('\n');
+
+		summary(out, "sketch_fanout_seconds", "From a change being broadcast to its being written to a client",
+				fanout.snapshot());
+		summary(out, "sketch_hit_test_seconds", "Time in Sketch.getId", hitTests.snapshot());
+		return out.toString();
+	}
+
+	private static void metric(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void command(StringBuilder out, String name, byte op, long value) {
+		out.append(name).append("{command=\"").append(COMMANDS[op]).append("\"} ").append(value).append('\n');
+	}
+
+	private static void client(StringBuilder out, String name, SketchServerCommunicator comm, long value) {
+		out.append(name).append("{client=\"").append(comm.getAddress()).append("\",room=\"").append(comm.getRoomName())
+				.append("\"} ").append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder out, String name, String help, Histogram.Snapshot snapshot) {
+		metric(out, name, "summary", help);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			out.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+					.append(snapshot.getValueAtPercentile(PERCENTILES[i]) / 1e9).append('\n');
+		}
+		out.append(name).append("_sum ").append(snapshot.getSum() / 1e9).append('\n');
+		out.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+		metric(out, name + "_max", "gauge", "Longest of those");
+		out.append(name).append("_max ").append(snapshot.getMax() / 1e9).append('\n');
+	}
+
+	// ServerMetricsMXBean
+
+	@Override
+	public int getConnections() {
+		return clients.size();
+	}
+
+	@Override
+	public long getConnectionsTotal() {
+		return connections.sum();
+	}
+
+	@Override
+	public Map<String, Long> getMessagesReceived() {
+		return byCommand(RECEIVED, sums(received));
+	}
+
+	@Override
+	public Map<String, Long> getMessagesSent() {
+		return byCommand(SENT, sums(sent));
+	}
+
+	@Override
+	public Map<String, Long> getMessagesReceivedPerSecond() {
+		return byCommand(RECEIVED, receivedRate);
+	}
+
+	@Override
+	public Map<String, Long> getMessagesSentPerSecond() {
+		return byCommand(SENT, sentRate);
+	}
+
+	private static Map<String, Long> byCommand(byte[] ops, long[] counts) {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (byte op : ops) map.put(COMMANDS[op], counts[op]);
+		return map;
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return server.getWriteStats().getBytes();
+	}
+
+	@Override
+	public Map<String, Long> getClientBytesReceived() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (SketchServerCommunicator comm : clients) map.put(comm.getAddress(), comm.getBytesIn());
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getClientBytesSent() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (SketchServerCommunicator comm : clients) map.put(comm.getAddress(), comm.getBytesOut());
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getClientQueueDepths() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (SketchServerCommunicator comm : clients) map.put(comm.getAddress(), (long) comm.getQueueDepth());
+		return map;
+	}
+
+	@Override
+	public int getQueueDepthMax() {
+		int max = 0;
+		for (SketchServerCommunicator comm : clients) max = Math.max(max, comm.getQueueDepth());
+		return max;
+	}
+
+	@Override
+	public Map<String, Double> getFanoutMicros() {
+		return micros(fanout.snapshot());
+	}
+
+	@Override
+	public Map<String, Double> getHitTestMicros() {
+		return micros(hitTests.snapshot());
+	}
+
+	private static Map<String, Double> micros(Histogram.Snapshot snapshot) {
+		Map<String, Double> map = new LinkedHashMap<String, Double>();
+		map.put("count", (double) snapshot.getCount());
+		map.put("mean", snapshot.getMean() / 1e3);
+		for (int i = 0; i < PERCENTILES.length; i++) map.put(KEYS[i], snapshot.getValueAtPercentile(PERCENTILES[i]) / 1e3);
+		map.put("max", snapshot.getMax() / 1e3);
+		return map;
+	}
+}
@@ -0,0 +1,36 @@
+import java.util.Map;
+
+/**
+ * What ServerMetrics shows over JMX (as sketch:type=Server,port=the client port)
+ * Messages are counted by command ("draw", "press", ...); clients are named by their address; latencies are
+ * summarized as count, mean, max and percentiles ("p50", "p90", "p99", "p99.9"), in microseconds.
+ */
+public interface ServerMetricsMXBean {
+	public int getConnections();
+
+	public long getConnectionsTotal();
+
+	public Map<String, Long> getMessagesReceived();
+
+	public Map<String, Long> getMessagesSent();
+
+	public Map<String, Long> getMessagesReceivedPerSecond();
+
+	public Map<String, Long> getMessagesSentPerSecond();
+
+	public long getBytesReceived();
+
+	public long getBytesSent();
+
+	public Map<String, Long> getClientBytesReceived();
+
+	public Map<String, Long> getClientBytesSent();
+
+	public Map<String, Long> getClientQueueDepths();
+
+	public int getQueueDepthMax();
+
+	public Map<String, Double> getFanoutMicros();
+
+	public Map<String, Double> getHitTestMicros();
+}
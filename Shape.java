@@ -19,6 +19,24 @@ public interface Shape {
 	 */
 	public boolean contains(int x, int y);
 
+	/**
+	 * The smallest box holding every point for which contains is true
+	 */
+	public java.awt.Rectangle getBounds();
+
+	/**
+	 * @return The kind of shape, as the protocol names it ("rectangle", "ellipse" or "segment")
+	 */
+	public String getType();
+
+	/**
+	 * @return The coordinates the protocol describes the shape by: (x1,y1) and (x2,y2)
+	 */
+	public int getX1();
+	public int getY1();
+	public int getX2();
+	public int getY2();
+
 	/**
 	 * @return The shape's color
 	 */
@@ -33,4 +51,14 @@ public interface Shape {
 	 * Draws the shape
 	 */
 	public void draw(Graphics g);
+
+	/**
+	 * Makes a shape of the named type (see getType), or returns null if there's no such type
+	 */
+	public static Shape create(String type, int x1, int y1, int x2, int y2, Color color) {
+		if (type.equals("rectangle")) return new Rectangle(x1, y1, x2, y2, color);
+		if (type.equals("ellipse")) return new Ellipse(x1, y1, x2, y2, color);
+		if (type.equals("segment")) return new Segment(x1, y1, x2, y2, color);
+		return null;
+	}
 }
@@ -0,0 +1,77 @@
+import java.util.Map;
+
+/**
+ * Where a Sketch keeps its shapes, by id. The Sketch does the locking and keeps the spatial index; a store
+ * just holds the shapes, and hands them back in id (drawing) order.
+ *
+ * HEAP keeps each shape as the object it was given, in a concurrent map, so it can be read without the sketch's
+ * lock (as the editor does). The others are for rooms with a great many shapes, and have to be read holding the
+ * lock (as the server does): ARRAY keeps the shapes' numbers in parallel arrays, and MAPPED keeps them off the heap
+ * altogether, in a memory-mapped file that can be opened again without reading it in.
+ */
+public interface ShapeStore {
+	public enum Kind {
+		HEAP,		// a map of shape objects (HeapShapeStore)
+		ARRAY,		// parallel arrays of numbers (ArrayShapeStore)
+		MAPPED		// records off the heap (MappedShapeStore)
+	}
+
+	/**
+	 * @return The shape with the id, or null if there isn't one.
+	 * A store may hand back a view of its own, which changes the store when it's moved or recolored,
+	 * and which can only be relied on until the shape is removed and something else put in the store.
+	 */
+	public Shape get(int id);
+
+	/**
+	 * Puts the shape (as it is now) in the store under the id, replacing any shape there
+	 */
+	public void put(int id, Shape shape);
+
+	/**
+	 * Removes the shape with the id, if there is one
+	 */
+	public void remove(int id);
+
+	/**
+	 * @return Whether there's a shape with the id and it contains the point (as get(id).contains(x, y))
+	 */
+	public boolean contains(int id, int x, int y);
+
+	/**
+	 * @return The number of shapes
+	 */
+	public int size();
+
+	/**
+	 * Removes every shape
+	 */
+	public void clear();
+
+	/**
+	 * @return Every shape, by id in ascending order (read only, and live)
+	 */
+	public Map<Integer, Shape> asMap();
+
+	/**
+	 * @return The shapes with ids above the given one, in ascending order (read only, and live)
+	 */
+	public Map<Integer, Shape> above(int id);
+
+	/**
+	 * @return A copy of the store as it is now, apart from it, so it can be read while the store changes on --
+	 * made as cheaply as the store can: ARRAY and MAPPED copy their arrays or records in bulk, and HEAP just its
+	 * map, sharing the shapes (which is why the Sketch puts a new shape in the store when one's moved or
+	 * recolored, rather than changing the one there)
+	 */
+	public ShapeStore copy();
+
+	/**
+	 * Makes an empty store of the kind (a MAPPED one in direct buffers, not a file)
+	 */
+	public static ShapeStore create(Kind kind) {
+		if (kind == Kind.ARRAY) return new ArrayShapeStore();
+		if (kind == Kind.MAPPED) return new MappedShapeStore();
+		return new HeapShapeStore();
+	}
+}
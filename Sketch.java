@@ -1,70 +1,295 @@
+import java.awt.Color;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Class to handle a sketch -> keeps a map of all the shapes to be drawn
+ * Safe to share between threads: changes to the shapes and the index are made under a write lock; with the
+ * default (heap) store the map can be read (and iterated) at any time without locking, while with the other
+ * stores (see ShapeStore) the shapes have to be read holding the lock
  * @author Avi Dixit & Hannah Brookes, CS10, March 2020
  */
 
 public class Sketch {
 
-    // map to keep track of shape id and shape
-    private TreeMap<Integer, Shape> shapeMap;
+    // keeps track of shape id and shape
+    private ShapeStore store;
+    // grid over the shapes' bounds, so that finding the shape at a point only looks at nearby shapes
+    private SpatialGrid index;
+    // guards the index and the shapes' fields (and, unless it's a heap store, the store)
+    private ReentrantReadWriteLock lock;
+    // the id to give the next shape added without one
+    private AtomicInteger nextId;
+    // shapes with ids up to this one are in the index; any above it (that a store opened from a file came with)
+    // are only in the store until indexRest gets to them -- Integer.MAX_VALUE once everything is indexed
+    private int indexed = Integer.MAX_VALUE;
+
+    // shapes indexed at a time by indexRest, holding the lock
+    private static final int INDEX_CHUNK = 16384;
 
     // initializes a new empty map to hold shape ids and shapes
     public Sketch() {
-        shapeMap = new TreeMap<Integer, Shape>();
+        this(new HeapShapeStore());
+    }
+
+    // a sketch keeping its shapes in the store, starting with whatever shapes are already there (a store opened
+    // from a file) -- which aren't indexed yet: see indexRest
+    public Sketch(ShapeStore store) {
+        this.store = store;
+        index = new SpatialGrid();
+        lock = new ReentrantReadWriteLock();
+        nextId = new AtomicInteger();
+        for (int id : store.asMap().keySet()) {
+            nextId.accumulateAndGet(id + 1, Math::max);
+        }
+        if (store.size() > 0) indexed = Integer.MIN_VALUE;
+    }
+
+    // indexes the shapes the store came with, a chunk at a time, so a big sketch opened from a file can be used
+    // (more slowly, until this is done) rather than waiting for all of it -- for whoever opened it to call in the
+    // background; the shapes on top that aren't indexed yet are gone through one by one meanwhile
+    public void indexRest() {
+        while (true) {
+            lock.writeLock().lock();
+            try {
+                if (indexed == Integer.MAX_VALUE) return;
+                int n = 0, last = indexed;
+                for (Map.Entry<Integer, Shape> entry : store.above(indexed).entrySet()) {
+                    if (n++ == INDEX_CHUNK) break;
+                    last = entry.getKey();
+                    index.insert(last, entry.getValue().getBounds());
+                }
+                // (the shapes added meanwhile are on top, so they're taken in by the last chunk)
+                indexed = n <= INDEX_CHUNK ? Integer.MAX_VALUE : last;
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // where the shapes are kept
+    public ShapeStore getStore() {
+        return store;
     }
 
     // returns a list of shapes with keys sorted in ascending order such that the shapes first in the list
     // are the shapes to be drawn first
     public List<Shape> getShapes() {
-        List<Shape> shapes = new ArrayList<Shape>();
-        for (Integer shapeID : shapeMap.navigableKeySet()) {
-            shapes.add(shapeMap.get(shapeID));
+        return new ArrayList<Shape>(store.asMap().values());
+    }
+
+    // returns the shapes whose bounds overlap the area, in the same order as getShapes -- e.g., just the ones to
+    // draw to repaint that area
+    public List<Shape> getShapes(java.awt.Rectangle area) {
+        return getShapes(area, Integer.MAX_VALUE);
+    }
+
+    // returns the shapes whose bounds overlap the area, up to and including the id, in drawing order
+    public List<Shape> getShapes(java.awt.Rectangle area, int maxId) {
+        lock.readLock().lock();
+        try {
+            List<Shape> shapes = new ArrayList<Shape>();
+            for (int id : index.overlapping(area).headSet(maxId, true)) shapes.add(store.get(id));
+            // then any on top of those that aren't indexed yet
+            if (indexed != Integer.MAX_VALUE) {
+                for (Map.Entry<Integer, Shape> entry : store.above(indexed).entrySet()) {
+                    if (entry.getKey() > maxId) break;
+                    if (entry.getValue().getBounds().intersects(area)) shapes.add(entry.getValue());
+                }
+            }
+            return shapes;
         }
-        return shapes;
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // returns the shapes with ids above the given one, in drawing order (a live view, not a copy)
+    public Map<Integer, Shape> getShapesAbove(int id) {
+        return store.above(id);
     }
 
     // adds a shape to the map given an id and a shape
     public void addShape(int id, Shape shape) {
-        shapeMap.put(id, shape);
+        lock.writeLock().lock();
+        try {
+            // (the bounds taken first: the shape may be a view of the store's, of a slot the put reuses)
+            if (id <= indexed) index.insert(id, shape.getBounds());
+            store.put(id, shape);
+            // ids handed out later have to stay above any id added from elsewhere (e.g., the server's)
+            nextId.accumulateAndGet(id + 1, Math::max);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    // returns the shape map
+    // adds a shape on top of all the others, returning the id it was given
+    public int addShape(Shape shape) {
+        lock.writeLock().lock();
+        try {
+            int id = nextId.getAndIncrement();
+            addShape(id, shape);
+            return id;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the id the next shape added without one will get
+    public int getNextId() {
+        return nextId.get();
+    }
+
+    // makes sure ids handed out from here on are at least id (e.g., to not reuse ids given out before a restart)
+    public void advanceNextId(int id) {
+        nextId.accumulateAndGet(id, Math::max);
+    }
+
+    // returns the shape map (read only -- changes have to go through the sketch to keep the index up to date)
     public Map<Integer, Shape> getShapeMap() {
-        return shapeMap;
+        return store.asMap();
     }
 
-    // removes a shape given an x and y coordinate
-    public void removeShape(int x, int y) {
-        // loops through the id keys of the shape map in descending order so that the first shape to match
-        // the coordinates is the newest one added ("on top" in the drawing)
-        for (Integer shapeID : shapeMap.descendingKeySet()) {
-            if (shapeMap.get(shapeID).contains(x,y)) {
-                shapeMap.remove(shapeID);
-                break;
-            }
+    // removes a shape given an x and y coordinate, returning its id (or -1 if there was no shape there)
+    public int removeShape(int x, int y) {
+        lock.writeLock().lock();
+        try {
+            int shapeID = getId(x, y);
+            if (shapeID >= 0) removeShapeByID(shapeID);
+            return shapeID;
+        }
+        finally {
+            lock.writeLock().unlock();
         }
     }
 
     // removes a shape given an id
     public void removeShapeByID(int id) {
-        shapeMap.remove(id);
+        lock.writeLock().lock();
+        try {
+            store.remove(id);
+            index.remove(id);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // moves a shape given an id by dx and dy, and re-indexes it at its new position, returning whether there was
+    // such a shape
+    public boolean moveShape(int id, int dx, int dy) {
+        lock.writeLock().lock();
+        try {
+            Shape shape = store.get(id);
+            if (shape == null) return false;
+            Shape moved = copyOf(shape);
+            moved.moveBy(dx, dy);
+            store.put(id, moved);
+            if (id <= indexed) index.insert(id, moved.getBounds());
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // recolors a shape given an id, returning whether there was such a shape
+    public boolean recolorShape(int id, Color color) {
+        lock.writeLock().lock();
+        try {
+            Shape shape = store.get(id);
+            if (shape == null) return false;
+            Shape recolored = copyOf(shape);
+            recolored.setColor(color);
+            store.put(id, recolored);
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // moves a shape to the front by giving it a new (highest) id, returning that id (or -1 if the shape is gone)
+    public int bringToFront(int id) {
+        lock.writeLock().lock();
+        try {
+            Shape shape = store.get(id);
+            if (shape == null) return -1;
+            removeShapeByID(id);
+            return addShape(shape);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // holds off every other change, and snapshots, until unlockForUpdate -- lets a caller make a change and
+    // broadcast it as one step (the sketch's own methods can still be called while holding it)
+    public void lockForUpdate() {
+        lock.writeLock().lock();
+    }
+
+    public void unlockForUpdate() {
+        lock.writeLock().unlock();
+    }
+
+    // holds off changes (but not other readers) until unlockForReading -- for taking a consistent snapshot
+    public void lockForReading() {
+        lock.readLock().lock();
+    }
+
+    public void unlockForReading() {
+        lock.readLock().unlock();
+    }
+
+    // removes every shape
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            store.clear();
+            index.clear();
+            indexed = Integer.MAX_VALUE;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
     }
 
     // returns a shape given an id
     public Shape getShapeFromID(int id) {
-        return shapeMap.get(id);
+        return store.get(id);
     }
 
     // gets the id of a shape based on an x and y coordinate
     public int getId(int x, int y) {
-        // loops through the id keys of the shape map in descending order so that the first shape to match
-        // the coordinates is the newest one added ("on top" in the drawing)
-        for (Integer shapeID : shapeMap.descendingKeySet()) {
-            if (shapeMap.get(shapeID).contains(x,y)) return shapeID;
+        lock.readLock().lock();
+        try {
+            // any shapes not indexed yet are on top of the ones that are
+            int top = -1;
+            if (indexed != Integer.MAX_VALUE) {
+                for (int shapeID : store.above(indexed).keySet()) {
+                    if (store.contains(shapeID, x, y)) top = shapeID;
+                }
+                if (top >= 0) return top;
+            }
+            // the index hands back candidates in descending id order so that the first shape to match
+            // the coordinates is the newest one added ("on top" in the drawing)
+            return index.topmost(x, y, shapeID -> store.contains(shapeID, x, y));
         }
-        return -1;
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // a new shape like the one given -- what's put back in the store when a shape is moved or recolored, since a
+    // shape that's been in the store is never changed (a copy of the store may be sharing it: see ShapeStore.copy)
+    private static Shape copyOf(Shape shape) {
+        return Shape.create(shape.getType(), shape.getX1(), shape.getY1(), shape.getX2(), shape.getY2(),
+                shape.getColor());
     }
 
 }
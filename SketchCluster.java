@@ -0,0 +1,193 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Spreads rooms over several SketchServer processes.
+ *
+ * Each node is named by the host:port its clients connect to, and every node is started with the same list of them.
+ * Rooms are assigned to nodes by consistent hashing (each node has VNODES points on a ring, and a room belongs to
+ * the first point at or after its own hash), so adding or removing a node only moves the rooms between it and its
+ * neighbours. A client asking a node for a room it doesn't serve is sent a redirect to the node that owns it.
+ *
+ * When the list changes, rooms a node has but no longer owns are moved to their new owners: the room is closed
+ * (its members redirected, and its log snapshotted), then its directory -- the snapshot and whatever log tail
+ * follows it -- is sent to the owner's peer port (the client port plus one), which installs it and serves the room
+ * from then on. Moving rooms needs every node to keep its rooms on disk (sketch.log). Nodes sharing a host need
+ * client ports at least two apart, so no node's peer port is another's client port.
+ *
+ * The peer port only takes rooms from the nodes' hosts (by address, so anything else on those hosts can still
+ * send one), and even then reads a room only up to MAX_FILES files and MAX_BYTES bytes in all (sized before any
+ * of it is read), refusing it beyond that.
+ */
+public class SketchCluster {
+	private static final int VNODES = 128;				// points on the ring per node
+	public static final int MAX_FILES = 1024;			// most files a room sent here can have
+	public static final int MAX_BYTES = 256 << 20;		// and most bytes, over all of them
+
+	private String self;								// this node's host:port
+	private List<String> nodes;							// every node's host:port
+	private TreeMap<Long, String> ring;					// point on the ring -> node there
+
+	public SketchCluster(String self, List<String> nodes) {
+		if (!nodes.contains(self)) throw new IllegalArgumentException(self + " isn't one of the nodes " + nodes);
+		this.self = self;
+		this.nodes = new ArrayList<String>(nodes);
+		ring = new TreeMap<Long, String>();
+		for (String node : nodes) {
+			for (int i = 0; i < VNODES; i++) ring.put(hash(node + "#" + i), node);
+		}
+	}
+
+	public String getSelf() {
+		return self;
+	}
+
+	public List<String> getNodes() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	/**
+	 * The node that owns the room
+	 */
+	public String owner(String room) {
+		Map.Entry<Long, String> point = ring.ceilingEntry(hash(room));
+		return point != null ? point.getValue() : ring.firstEntry().getValue();
+	}
+
+	public boolean owns(String room) {
+		return owner(room).equals(self);
+	}
+
+	/**
+	 * The first 8 bytes of the key's MD5 -- the same on every node, however the JVM hashes strings
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i = 0; i < 8; i++) h = (h << 8) | (digest[i] & 0xff);
+			return h;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);		// every JVM has MD5
+		}
+	}
+
+	/**
+	 * Whether the address is one of the nodes' hosts' (looked up each time, in case one's moved)
+	 */
+	private boolean isNode(InetAddress address) {
+		for (String node : nodes) {
+			try {
+				for (InetAddress known : InetAddress.getAllByName(host(node))) {
+					if (known.equals(address)) return true;
+				}
+			}
+			catch (UnknownHostException e) {
+				// so nothing connects from it
+			}
+		}
+		return false;
+	}
+
+	public static String host(String node) {
+		return node.substring(0, node.lastIndexOf(':'));
+	}
+
+	public static int port(String node) {
+		return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+	}
+
+	/**
+	 * Starts accepting rooms moved here from other nodes, on this node's peer port
+	 */
+	public void listen(SketchServer server) throws IOException {
+		ServerSocket peers = new ServerSocket(port(self) + 1);
+		Thread acceptor = new Thread(() -> {
+			while (true) {
+				try (Socket peer = peers.accept()) {
+					receive(peer, server);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "room receiver");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Sends a room's files (name -> contents) to the node, returning whether it took the room
+	 *
+	 * On the wire: the room name, the number of files, then each file's name, length and contents;
+	 * the answer is "ok", or why not
+	 */
+	public boolean send(String node, String room, Map<String, byte[]> files) {
+		try (Socket peer = new Socket()) {
+			peer.connect(new InetSocketAddress(host(node), port(node) + 1), 5000);
+			peer.setSoTimeout(30000);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(peer.getOutputStream()));
+			out.writeUTF(room);
+			out.writeInt(files.size());
+			for (Map.Entry<String, byte[]> file : files.entrySet()) {
+				out.writeUTF(file.getKey());
+				out.writeInt(file.getValue().length);
+				out.write(file.getValue());
+			}
+			out.flush();
+			String answer = new DataInputStream(peer.getInputStream()).readUTF();
+			if (!answer.equals("ok")) System.out.println("room " + room + " not moved to " + node + ": " + answer);
+			return answer.equals("ok");
+		}
+		catch (IOException e) {
+			System.out.println("room " + room + " not moved to " + node + ": " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Takes a room sent by send, and hands it to the server to install (unless it's more than a room should be,
+	 * which is refused as soon as that's known, without reading the rest)
+	 */
+	private void receive(Socket peer, SketchServer server) throws IOException {
+		DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+		if (!isNode(peer.getInetAddress())) {
+			System.out.println("room refused from " + peer.getInetAddress().getHostAddress() + ": not a node");
+			out.writeUTF("not a node of the cluster");
+			out.flush();
+			return;
+		}
+		peer.setSoTimeout(30000);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(peer.getInputStream()));
+		String room = in.readUTF();
+		int n = in.readInt();
+		Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		String answer = null;
+		if (n < 0 || n > MAX_FILES) answer = "too many files: " + n + " (at most " + MAX_FILES + ")";
+		long total = 0;
+		for (int i = 0; i < n && answer == null; i++) {
+			String name = in.readUTF();
+			int length = in.readInt();
+			total += length;
+			if (length < 0 || total > MAX_BYTES) {
+				answer = "too big: " + (length < 0 ? "negative length" : "over " + MAX_BYTES + " bytes");
+				break;
+			}
+			byte[] contents = new byte[length];
+			in.readFully(contents);
+			files.put(name, contents);
+		}
+		if (answer != null) System.out.println("room " + room + " refused: " + answer);
+		else if (!SketchServer.isRoomName(room)) answer = "bad room name";
+		else if (!owns(room)) answer = "room belongs to " + owner(room);
+		else answer = server.acceptRoom(room, files);
+		out.writeUTF(answer);
+		out.flush();
+	}
+}
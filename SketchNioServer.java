@@ -0,0 +1,311 @@
+import java.io.*;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Selector-based alternative to SketchServer.getConnections: rather than a thread per client blocked in readLine,
+ * a small pool of event loops multiplexes all the clients' channels.
+ * Each client still gets a SketchServerCommunicator (fed complete lines by its loop), so the protocol
+ * is exactly the one the thread-per-connection server speaks.
+ */
+public class SketchNioServer {
+	private SketchServer server;				// state of the world, and the list of clients to broadcast to
+	private ServerSocketChannel listen;			// for accepting connections (blocking, on the calling thread)
+	private Loop[] loops;						// event loops the clients are spread over
+	private int next = 0;						// loop to give the next client to
+
+	public SketchNioServer(SketchServer server, ServerSocketChannel listen, int nLoops) throws IOException {
+		this.server = server;
+		this.listen = listen;
+		loops = new Loop[nLoops];
+		for (int i = 0; i < nLoops; i++) {
+			loops[i] = new Loop(i);
+		}
+	}
+
+	/**
+	 * Starts the loops, then keeps accepting connections and handing them out round-robin
+	 */
+	public void getConnections() throws IOException {
+		for (Loop loop : loops) {
+			loop.setDaemon(true);
+			loop.start();
+		}
+		System.out.println("server ready for connections (nio, " + loops.length + " loops)");
+		while (true) {
+			SocketChannel channel = listen.accept();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			loops[next].add(new Connection(channel));
+			next = (next + 1) % loops.length;
+		}
+	}
+
+	/**
+	 * One selector and the thread that services it
+	 */
+	private class Loop extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue<Connection> pending;	// accepted but not yet registered with the selector
+		private ArrayDeque<Connection> unplaced;			// registered but not yet in a room, longest waiting first
+
+		public Loop(int i) throws IOException {
+			super("sketch-nio-" + i);
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<Connection>();
+			unplaced = new ArrayDeque<Connection>();
+		}
+
+		/**
+		 * Queues a connection for this loop to pick up (registration has to happen on the loop's own thread)
+		 */
+		public void add(Connection conn) {
+			pending.add(conn);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					// (waking up in time to put the longest waiting client in the default room)
+					Connection first = unplaced.peek();
+					if (first == null) selector.select();
+					else selector.select(Math.max(1, first.placeBy - System.currentTimeMillis()));
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+
+				Connection conn;
+				while ((conn = pending.poll()) != null) {
+					conn.register(selector);
+					conn.placeBy = System.currentTimeMillis() + SketchServerCommunicator.PLACE_WAIT;
+					unplaced.add(conn);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					conn = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) conn.read();
+						if (key.isValid() && key.isWritable()) conn.write();
+					}
+					catch (IOException | RuntimeException e) {
+						e.printStackTrace();
+						System.out.println("error in sketch nio connection");
+						conn.close();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				while (!unplaced.isEmpty() && unplaced.peek().placeBy <= now) {
+					unplaced.poll().place();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client's channel, buffering partial lines in and pending messages out
+	 */
+	private class Connection extends SketchServerCommunicator {
+		private SocketChannel channel;
+		private Selector selector;
+		private SelectionKey key;
+		private ByteBuffer readBuf = ByteBuffer.allocate(8192);
+		private TextProtocol text = new TextProtocol();
+		private ByteBuffer batch = ByteBuffer.allocate(WRITE_BUFFER);	// messages gathered into one write
+		private ByteBuffer writing;				// batch (or one message too big for it) partway out to the channel
+		private byte[] held;					// message taken from the queue that didn't fit in the last batch
+		private long heldAt;					// when that was broadcast (see stamp)
+		private long encodedAt;					// when the message last encoded was broadcast
+		private long placeBy;					// when to put the client in the default room if it hasn't asked
+		private boolean first = true;			// whether nothing has been read yet (so the protocol isn't known)
+		private boolean binaryIn = false;		// whether the client asked to speak binary
+		private boolean binaryOut = false;		// whether the client has been told everything from here on is binary
+		private ReentrantLock interest = new ReentrantLock();	// held changing what the key waits for, so a
+												// message queued meanwhile can't be missed (a lock rather than the
+												// monitor, which pins a virtual thread queuing one to its carrier)
+		private AtomicBoolean closed = new AtomicBoolean();	// whether closed already (the end of the stream, an
+												// error, and dropping it on a broadcasting thread for falling
+												// behind can each get here, and more than one at once)
+
+		public Connection(SocketChannel channel) {
+			super(server);
+			this.channel = channel;
+		}
+
+		@Override
+		public String getAddress() {
+			return address(channel.socket().getRemoteSocketAddress());
+		}
+
+		/**
+		 * Called on the loop's thread: starts reading (the loop puts the client in the default room if it doesn't
+		 * ask for one soon enough -- see SketchServerCommunicator.place)
+		 */
+		public void register(Selector selector) {
+			try {
+				this.selector = selector;
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				close();
+				return;
+			}
+			System.out.println("someone connected");
+			server.getMetrics().connected(this);
+		}
+
+		/**
+		 * Asks the loop to write the queued message once the channel can take it (may be called from any thread)
+		 */
+		@Override
+		protected void messageQueued() {
+			interest.lock();
+			try {
+				if (key == null || !key.isValid()) return;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				selector.wakeup();
+			}
+			finally {
+				interest.unlock();
+			}
+		}
+
+		@Override
+		protected void disconnect() {
+			close();
+		}
+
+		@Override
+		protected void place() {
+			if (key != null && key.isValid()) super.place();		// not if it's gone already
+		}
+
+		/**
+		 * Reads what's available and handles each complete line (or frame, for a binary client)
+		 */
+		public void read() throws IOException {
+			int n = channel.read(readBuf);
+			if (n < 0) {
+				close();
+				return;
+			}
+			handle(readBuf.array(), readBuf.position() - n, n, () -> {
+				readBuf.flip();
+				// a client that wants the binary protocol says so with its first byte
+				if (first && readBuf.hasRemaining()) {
+					first = false;
+					if ((readBuf.get(0) & 0xff) == BinaryProtocol.HELLO) {
+						readBuf.get();
+						binaryIn = true;
+						send(Message.binaryFollows());
+					}
+				}
+				if (binaryIn) BinaryProtocol.decodeFromClient(readBuf, this);
+				else text.decodeFromClient(readBuf, this);
+			});
+			countRead(n);
+			// whatever's left over is the start of a line or frame still arriving
+			readBuf.compact();
+			if (!readBuf.hasRemaining()) throw new IOException("message too long");
+		}
+
+		/**
+		 * Writes as much of the queued output as the channel will take, and stops asking to write once it's all out
+		 * Queued messages are gathered into a batch so that each write to the channel carries as many as fit
+		 */
+		public void write() throws IOException {
+			interest.lock();
+			try {
+				while (true) {
+					int messages = 0;
+					if (writing == null) {
+						batch.clear();
+						byte[] data = held != null ? held : encode(nextMessage());
+						long at = held != null ? heldAt : encodedAt;
+						held = null;
+						while (data != null) {
+							if (data.length > batch.remaining()) {
+								if (batch.position() > 0) {
+									held = data;
+									heldAt = at;
+									break;
+								}
+								// too big to batch: write it on its own
+								writing = ByteBuffer.wrap(data);
+							}
+							else {
+								batch.put(data);
+							}
+							stamp(at);
+							messages++;
+							if (writing != null) break;
+							data = encode(nextMessage());
+							at = encodedAt;
+						}
+						if (messages == 0) break;
+						if (writing == null) writing = batch.flip();
+					}
+					int bytes = channel.write(writing);
+					countWrite(messages, bytes);
+					if (writing.hasRemaining()) return;		// socket buffer is full; wait to be writable again
+					writing = null;
+					delivered();
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			finally {
+				interest.unlock();
+			}
+		}
+
+		/**
+		 * The message as this client is to be sent it (with any version it needs first), or null if there isn't one
+		 * (counting it as sent, and noting when it was broadcast in encodedAt)
+		 */
+		private byte[] encode(Message msg) {
+			if (msg == null) return null;
+			Message version = versionBefore(msg);
+			byte[] data = binaryOut ? msg.binary() : msg.textBytes();
+			if (msg.isBinaryFollows()) binaryOut = true;
+			server.getMetrics().sent(msg);
+			encodedAt = msg.getBroadcastAt();
+			if (version == null) return data;
+			server.getMetrics().sent(version);
+			byte[] first = binaryOut ? version.binary() : version.textBytes();
+			byte[] both = Arrays.copyOf(first, first.length + data.length);
+			System.arraycopy(data, 0, both, first.length, data.length);
+			return both;
+		}
+
+		/**
+		 * Clean up -- note that also remove self from the room's list so it doesn't broadcast here (only the first
+		 * time, however many times it's called)
+		 */
+		public void close() {
+			if (!closed.compareAndSet(false, true)) return;
+			leave();
+			server.getMetrics().disconnected(this);
+			recordClosed();
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
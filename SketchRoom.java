@@ -0,0 +1,217 @@
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One board on the server: its own sketch (and so its own shape ids), the clients in it, and, if the server keeps
+ * boards on disk, its log. Changes made in a room are only broadcast to the room's members.
+ * Rooms are loaded and evicted by SketchServer.
+ *
+ * Every change broadcast makes a new version of the room, and the latest ones are kept, so that a client that
+ * lost its connection can be sent just the changes it missed (see resume). Versions only mean anything within
+ * one epoch: a random number picked when the room is loaded, so a client can't resume into a room that has since
+ * been evicted and reloaded, or moved, or restarted.
+ */
+public class SketchRoom {
+	public static final int HISTORY = 1024;				// changes kept for clients resuming, by default
+	public static final int RENAMES = 4096;				// latest shapes brought to the front, followed for undo
+
+	private String name;
+	private Sketch sketch;								// the state of this board
+	private CopyOnWriteArrayList<SketchServerCommunicator> comms;	// the clients in the room (copied on join/leave,
+														// so broadcasting never waits on a lock)
+	private OpLog log;									// where changes are made durable (null if they aren't)
+	private volatile long lastUsed;						// when someone last joined, left or changed something (ms)
+	private long epoch;									// this instance of the room
+	private long version = 0;							// changes broadcast so far (under the sketch's update lock)
+	private Message[] history;							// the latest of them, at version % length
+	private Map<Integer, Integer> renamed = new LinkedHashMap<Integer, Integer>() {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+			return size() > RENAMES;
+		}
+	};													// old id -> new id of shapes brought to the front
+														// (under the sketch's update lock)
+	private ReentrantLock readOrder = new ReentrantLock();	// held, while the server's recording, from a member's
+														// read being recorded to its being handled
+
+	public SketchRoom(String name) {
+		this(name, HISTORY);
+	}
+
+	public SketchRoom(String name, int history) {
+		this(name, history, new HeapShapeStore());
+	}
+
+	/**
+	 * What a member's read holds, while the server's recording, so reads in the room are handled in the order
+	 * they're recorded (see TraceRecorder)
+	 */
+	public ReentrantLock getReadOrder() {
+		return readOrder;
+	}
+
+	/**
+	 * A room keeping its shapes in the (empty) store
+	 */
+	public SketchRoom(String name, int history, ShapeStore store) {
+		this.name = name;
+		sketch = new Sketch(store);
+		comms = new CopyOnWriteArrayList<SketchServerCommunicator>();
+		lastUsed = System.currentTimeMillis();
+		epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+		this.history = new Message[Math.max(history, 1)];
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Sketch getSketch() {
+		return sketch;
+	}
+
+	public OpLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Logs every change from here on (the sketch should already have been restored from the log by replaying it)
+	 */
+	public void setLog(OpLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * The clients in the room, as of now
+	 */
+	public List<SketchServerCommunicator> getMembers() {
+		return new ArrayList<SketchServerCommunicator>(comms);
+	}
+
+	public int getMemberCount() {
+		return comms.size();
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Brings a client up to date with a single snapshot message sent only to it, then adds it to the members.
+	 * Clients make each change and broadcast it under the sketch's update lock, so taking the snapshot and joining
+	 * under the read lock means every change is either in the snapshot or broadcast to the client after it -- never
+	 * both, never neither. Changes made meanwhile wait, and go out after the snapshot in the client's queue.
+	 */
+	public void join(SketchServerCommunicator comm) {
+		sketch.lockForReading();
+		try {
+			sendState(comm);
+			add(comm);
+		}
+		finally {
+			sketch.unlockForReading();
+		}
+	}
+
+	/**
+	 * Brings a client that was at the version (of the epoch) back up to date, and adds it to the members, as join
+	 * does -- but by sending just the changes it missed, if they're still in the history. Otherwise it's told to
+	 * reset and sent the snapshot after all. Returns whether it could be resumed.
+	 */
+	public boolean resume(SketchServerCommunicator comm, long epoch, long since) {
+		sketch.lockForReading();
+		try {
+			boolean resumed = epoch == this.epoch && since >= 0 && since <= version && version - since <= history.length;
+			if (resumed) {
+				List<Message> missed = new ArrayList<Message>((int) (version - since));
+				for (long v = since + 1; v <= version; v++) missed.add(history[(int) (v % history.length)]);
+				if (!missed.isEmpty()) comm.send(Message.batch(missed));
+				comm.send(version());
+			}
+			else {
+				comm.send(Message.reset());
+				sendState(comm);
+			}
+			add(comm);
+			return resumed;
+		}
+		finally {
+			sketch.unlockForReading();
+		}
+	}
+
+	/**
+	 * Sends the client the snapshot, and the version it's of (holding the sketch's lock)
+	 */
+	private void sendState(SketchServerCommunicator comm) {
+		Message state = snapshot();
+		if (!state.isEmptyBatch()) comm.send(state);
+		comm.send(version());
+	}
+
+	private void add(SketchServerCommunicator comm) {
+		comms.add(comm);
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Removes the client from the members
+	 */
+	public void leave(SketchServerCommunicator comm) {
+		if (comms.remove(comm)) lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sends the message from the one communicator to all the room's members (including the originator)
+	 * Only queues it for each client, so a slow client can't hold up the rest
+	 * Every change is broadcast exactly once, in order, under the sketch's update lock -- so this is also where
+	 * it's logged, and given its version
+	 */
+	public void broadcast(Message msg) {
+		msg.setVersion(++version);
+		history[(int) (version % history.length)] = msg;
+		if (log != null) log.append(msg);
+		lastUsed = System.currentTimeMillis();
+		for (SketchServerCommunicator comm : comms) {
+			comm.send(msg);
+		}
+	}
+
+	/**
+	 * Notes that a shape was brought to the front, so had its id changed (holding the sketch's update lock)
+	 */
+	public void renamed(int from, int to) {
+		renamed.put(from, to);
+	}
+
+	/**
+	 * The id a shape that had the id has now, following it however many times it's been brought to the front
+	 * since -- as far back as the latest RENAMES of those in the room (holding the sketch's update lock)
+	 */
+	public int currentId(int id) {
+		Integer to;
+		while ((to = renamed.get(id)) != null) id = to;
+		return id;
+	}
+
+	/**
+	 * The version the sketch is at, as a message to a client (holding the sketch's lock)
+	 */
+	public Message version() {
+		return Message.version(epoch, version);
+	}
+
+	/**
+	 * The whole sketch as a batch of join messages, so a client can be brought up to date with a single message.
+	 * The shapes are copied (cheap) rather than formatted (not) -- that's left to each client's writer, outside
+	 * whatever lock the caller holds.
+	 */
+	public Message snapshot() {
+		List<Message> joins = new ArrayList<Message>();
+		for (Map.Entry<Integer, Shape> entry : sketch.getShapeMap().entrySet()) {
+			joins.add(Message.join(entry.getKey(), entry.getValue()));
+		}
+		return Message.batch(joins);
+	}
+}
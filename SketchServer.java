@@ -1,5 +1,13 @@
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
 
 /**
@@ -9,20 +17,203 @@ import java.io.*;
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
  */
 public class SketchServer {
+	/**
+	 * What to do with a client whose outbound queue fills up because it isn't reading fast enough
+	 */
+	public enum SlowClientPolicy {
+		DROP,		// disconnect it
+		COALESCE,	// merge its queued drags of the same shape, and resync it if that doesn't make room
+		RESYNC		// throw away its queue and send it the whole sketch instead
+	}
+
+	public static final String DEFAULT_ROOM = "default";	// the room clients are in until they ask for another
+
 	private ServerSocket listen;						// for accepting connections
-	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch sketch;								// the state of the world
-	
+	private ThreadFactory threads;						// makes the threads each communicator runs on
+	private int queueCapacity = 1024;					// most messages waiting to be written to one client
+	private SlowClientPolicy slowClientPolicy = SlowClientPolicy.RESYNC;
+	private int dragWindow = 16;						// ms a client's drags are summed before being applied and
+														// broadcast as one move (0 to send every drag)
+	private int undoBudget = UndoHistory.BUDGET;		// bytes of undo history kept for each client
+	private int flushDelay = 0;							// most ms a client's writer waits for more messages to
+														// batch before flushing (0 to flush as soon as it's idle)
+	private ScheduledExecutorService timer;				// flushes those summed drags (and ticks the metrics)
+	private WriteStats writeStats = new WriteStats();	// what's been written to clients, and in how many writes
+	private ServerMetrics metrics;						// connections, messages, queues and latencies
+	private LinkedHashMap<String, SketchRoom> rooms;	// the rooms in memory, least recently joined first
+														// (joining and evicting are done holding it, then the
+														// room's sketch lock, never the other way; nothing
+														// that goes to disk or the network is done holding it)
+	private Map<String, CompletableFuture<SketchRoom>> loading;	// rooms being loaded, without holding the rooms
+														// (guarded by rooms; see openRoom)
+	private Set<String> moving;							// rooms being sent to another node (guarded by rooms)
+	private Map<String, CompletableFuture<Void>> closing;	// rooms evicted but still being closed, without
+														// holding the rooms (guarded by rooms)
+	private Path logDir;								// where each room's log goes, in a directory of its own
+														// (null if rooms aren't kept on disk)
+	private OpLog.Durability durability = OpLog.Durability.BATCH;
+	private int syncInterval = 100;						// ms between fsyncs, for INTERVAL durability
+	private long roomIdle = 300000;						// ms a room with nobody in it is kept in memory
+	private int roomBudget = 1000000;					// most shapes kept in memory, over all the rooms
+	private int history = SketchRoom.HISTORY;			// changes each room keeps for clients resuming
+	private ShapeStore.Kind store = ShapeStore.Kind.HEAP;	// how each room keeps its shapes
+	private ScheduledExecutorService keeper;			// snapshots, indexes and evicts rooms
+	private SketchCluster cluster;						// the nodes rooms are spread over (null if just this one)
+	private volatile TraceRecorder recorder;			// recording what clients send (null if nothing is)
+
 	public SketchServer(ServerSocket listen) {
+		this(listen, platformThreads());
+	}
+
+	public SketchServer(ServerSocket listen, ThreadFactory threads) {
 		this.listen = listen;
-		sketch = new Sketch();
-		comms = new ArrayList<SketchServerCommunicator>();
+		this.threads = threads;
+		rooms = new LinkedHashMap<String, SketchRoom>(16, 0.75f, true);
+		loading = new HashMap<String, CompletableFuture<SketchRoom>>();
+		moving = new HashSet<String>();
+		closing = new HashMap<String, CompletableFuture<Void>>();
+		timer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "drag flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		metrics = new ServerMetrics(this);
+		timer.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+		keeper = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "room keeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Keeps each room in its own log under the directory from here on (rooms are restored from there as they're
+	 * loaded); should be set before any client connects
+	 */
+	public void setLogDir(Path logDir, OpLog.Durability durability, int syncInterval) {
+		this.logDir = logDir;
+		this.durability = durability;
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * Serves only the rooms the cluster gives this node from here on (and the ones it has yet to move away)
+	 */
+	public void setCluster(SketchCluster cluster) {
+		this.cluster = cluster;
+	}
+
+	public SketchCluster getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Records what clients send, and the rooms they change, from here on (see TraceRecorder); should be set before
+	 * any client connects
+	 */
+	public void setRecorder(TraceRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	public TraceRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Finishes any recording: records every room in memory as it is now, and closes the trace
+	 */
+	public void stopRecording() {
+		TraceRecorder stopping = recorder;
+		if (stopping == null) return;
+		recorder = null;
+		List<SketchRoom> loaded;
+		synchronized (rooms) {
+			loaded = new ArrayList<SketchRoom>(rooms.values());
+		}
+		for (SketchRoom room : loaded) stopping.state(room);
+		try {
+			stopping.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void setRoomIdle(long roomIdle) {
+		this.roomIdle = roomIdle;
+	}
+
+	public void setRoomBudget(int roomBudget) {
+		this.roomBudget = roomBudget;
+	}
+
+	public void setHistory(int history) {
+		this.history = history;
+	}
+
+	/**
+	 * Keeps the shapes of rooms loaded from here on in stores of the kind
+	 */
+	public void setStore(ShapeStore.Kind store) {
+		this.store = store;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public SlowClientPolicy getSlowClientPolicy() {
+		return slowClientPolicy;
 	}
 
-	public Sketch getSketch() {
-		return sketch;
+	public void setSlowClientPolicy(SlowClientPolicy slowClientPolicy) {
+		this.slowClientPolicy = slowClientPolicy;
 	}
-	
+
+	public int getDragWindow() {
+		return dragWindow;
+	}
+
+	public void setDragWindow(int dragWindow) {
+		this.dragWindow = dragWindow;
+	}
+
+	public int getUndoBudget() {
+		return undoBudget;
+	}
+
+	public void setUndoBudget(int undoBudget) {
+		this.undoBudget = undoBudget;
+	}
+
+	public int getFlushDelay() {
+		return flushDelay;
+	}
+
+	public void setFlushDelay(int flushDelay) {
+		this.flushDelay = flushDelay;
+	}
+
+	public WriteStats getWriteStats() {
+		return writeStats;
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ScheduledExecutorService getTimer() {
+		return timer;
+	}
+
 	/**
 	 * The usual loop of accepting connections and firing off new threads to handle them
 	 */
@@ -30,36 +221,578 @@ public class SketchServer {
 		System.out.println("server ready for connections");
 		while (true) {
 			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
-			comm.setDaemon(true);
-			comm.start();
-			addCommunicator(comm);
+			threads.newThread(comm).start();
+		}
+	}
+
+	/**
+	 * Whether a room can be called that (names are used for directories, so they're kept to a safe alphabet)
+	 */
+	public static boolean isRoomName(String name) {
+		return name.matches("[A-Za-z0-9_-]{1,64}");
+	}
+
+	/**
+	 * Puts the client in the named room (loading the room if it isn't in memory), sending it the room's sketch,
+	 * and returns the room -- or null if the room is served by another node of the cluster (see redirectFor)
+	 */
+	public SketchRoom joinRoom(SketchServerCommunicator comm, String name) throws IOException {
+		return joinRoom(comm, name, 0, -1);
+	}
+
+	/**
+	 * Puts the client in the named room as joinRoom does, but if it says it was already there at a version
+	 * (-1 if not), sends it just the changes since then if the room still has them (see SketchRoom.resume)
+	 */
+	public SketchRoom joinRoom(SketchServerCommunicator comm, String name, long epoch, long version)
+			throws IOException {
+		while (true) {
+			synchronized (rooms) {
+				if (!servesRoom(name)) return null;
+			}
+			SketchRoom room = openRoom(name);
+			if (room == null) return null;
+			// joined holding the rooms, so the room can't be evicted or moved away in between; if it was while
+			// it was being opened, it's opened again (or, moved, the client's sent after it)
+			synchronized (rooms) {
+				if (rooms.get(name) != room) continue;
+				if (version < 0) room.join(comm);
+				else room.resume(comm, epoch, version);
+				return room;
+			}
+		}
+	}
+
+	/**
+	 * The named room, loaded if it isn't in memory (without anyone joining it), or null if it's being moved to
+	 * another node. Loading -- replaying the room's log -- is done without holding the rooms, so nobody has to
+	 * wait for it but those asking for the same room (and a room that's just been evicted is only loaded again
+	 * once it's been closed).
+	 */
+	public SketchRoom openRoom(String name) throws IOException {
+		if (!isRoomName(name)) throw new IllegalArgumentException("bad room name " + name);
+		CompletableFuture<SketchRoom> loaded;
+		boolean loader = false;
+		while (true) {
+			CompletableFuture<Void> closed;
+			synchronized (rooms) {
+				SketchRoom room = rooms.get(name);
+				if (room != null) return room;
+				if (moving.contains(name)) return null;
+				closed = closing.get(name);
+				if (closed == null) {
+					loaded = loading.get(name);
+					if (loaded == null) {
+						loaded = new CompletableFuture<SketchRoom>();
+						loading.put(name, loaded);
+						loader = true;
+					}
+					break;
+				}
+			}
+			closed.join();
+		}
+		if (loader) return load(name, loaded);
+		// someone else is loading it
+		try {
+			return loaded.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * For openRoom (and acceptRoom): loads the room and puts it in memory, letting anyone waiting for it know how
+	 * that went
+	 */
+	private SketchRoom load(String name, CompletableFuture<SketchRoom> loaded) throws IOException {
+		try {
+			SketchRoom room = loadRoom(name);
+			// (recorded before anyone can get at it)
+			TraceRecorder recording = recorder;
+			if (recording != null) recording.loaded(room);
+			synchronized (rooms) {
+				rooms.put(name, room);
+				loading.remove(name);
+			}
+			loaded.complete(room);
+			return room;
+		}
+		catch (IOException | RuntimeException e) {
+			synchronized (rooms) {
+				loading.remove(name);
+			}
+			loaded.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Whether this node serves the room: always without a cluster; otherwise if the cluster gives it this node, or
+	 * this node still has it (in memory or on disk) and hasn't moved it to its owner yet -- or started to
+	 */
+	private boolean servesRoom(String name) {
+		if (cluster == null) return true;
+		if (moving.contains(name)) return false;
+		return cluster.owns(name) || rooms.containsKey(name) || loading.containsKey(name)
+				|| (logDir != null && Files.isDirectory(logDir.resolve(name)));
+	}
+
+	/**
+	 * The node to send a client asking for the room to, if this one doesn't serve it (otherwise null)
+	 */
+	public String redirectFor(String name) {
+		synchronized (rooms) {
+			return servesRoom(name) ? null : cluster.owner(name);
+		}
+	}
+
+	/**
+	 * Takes the client out of the room
+	 * (without holding the rooms, since a client can be dropped from inside a broadcast, holding its sketch's lock)
+	 */
+	public void leaveRoom(SketchServerCommunicator comm, SketchRoom room) {
+		room.leave(comm);
+	}
+
+	/**
+	 * The named room if it's in memory, otherwise null
+	 */
+	public SketchRoom getRoom(String name) {
+		synchronized (rooms) {
+			return rooms.get(name);
+		}
+	}
+
+	/**
+	 * A room, restored from its log if rooms are kept on disk -- or, if they're kept in mapped files and the room's
+	 * was checkpointed when the room was last closed, just by mapping that (and applying anything logged since)
+	 */
+	private SketchRoom loadRoom(String name) throws IOException {
+		if (logDir == null) return new SketchRoom(name, history, ShapeStore.create(store));
+		Path dir = logDir.resolve(name);
+		OpLog log = new OpLog(dir, durability, syncInterval);
+		long start = System.currentTimeMillis();
+		SketchRoom room;
+		int records = -1;
+		String from = "the snapshot";
+		if (store == ShapeStore.Kind.MAPPED) {
+			Files.createDirectories(dir);
+			MappedShapeStore shapes = MappedShapeStore.open(dir.resolve(MappedShapeStore.FILE));
+			room = new SketchRoom(name, history, shapes);
+			if (shapes.getAsOf() >= 0) records = log.replay(room.getSketch(), shapes.getAsOf());
+			if (records >= 0) {
+				room.getSketch().advanceNextId(shapes.getNextId());
+				from = "its mapped file";
+			}
+			else {
+				room.getSketch().clear();		// (the log has moved on without it: restored from the log instead)
+			}
+		}
+		else {
+			room = new SketchRoom(name, history, ShapeStore.create(store));
+		}
+		if (records < 0) records = log.replay(room.getSketch());
+		room.setLog(log);
+		// (told holding the log's lock, and maybe the sketch's: shut down from the room keeper instead)
+		log.setFailureHandler(e -> keeper.execute(() -> failRoom(room)));
+		System.out.println("room " + name + ": restored " + room.getSketch().getShapeMap().size() + " shapes ("
+				+ records + " changes replayed after " + from + ") in " + (System.currentTimeMillis() - start) + " ms");
+		// index the shapes a mapped file came with, in the background, rather than before anyone can use the room
+		keeper.execute(() -> room.getSketch().indexRest());
+		// start the next one off from a fresh snapshot
+		if (records > 0) keeper.execute(() -> snapshotRoom(room));
+		return room;
+	}
+
+	/**
+	 * Snapshots every room in memory and compacts its log, and evicts rooms nobody is in: those idle for longer
+	 * than the room idle time, and then, least recently used first, as many as it takes to get down to the room
+	 * budget. A room that isn't kept on disk is only evicted if it's empty, since there'd be no getting it back.
+	 * Run by the room keeper now and then.
+	 */
+	public void keepRooms() {
+		List<SketchRoom> loaded;
+		synchronized (rooms) {
+			loaded = new ArrayList<SketchRoom>(rooms.values());
+		}
+		for (SketchRoom room : loaded) snapshotRoom(room);
+
+		// taken out of memory holding the rooms, then closed (which writes them out) without
+		List<SketchRoom> evicted = new ArrayList<SketchRoom>();
+		synchronized (rooms) {
+			long now = System.currentTimeMillis();
+			int shapes = 0;
+			for (SketchRoom room : rooms.values()) shapes += room.getSketch().getShapeMap().size();
+			Iterator<SketchRoom> lru = rooms.values().iterator();
+			while (lru.hasNext()) {
+				SketchRoom room = lru.next();
+				int size = room.getSketch().getShapeMap().size();
+				boolean evictable = room.getMemberCount() == 0 && (room.getLog() != null || size == 0);
+				if (evictable && (now - room.getLastUsed() > roomIdle || shapes > roomBudget)) {
+					lru.remove();
+					closing.put(room.getName(), new CompletableFuture<Void>());
+					evicted.add(room);
+					shapes -= size;
+				}
+			}
+		}
+		for (SketchRoom room : evicted) {
+			// (nobody can get into it now it's closing, so it's recorded as it's written out)
+			TraceRecorder recording = recorder;
+			if (recording != null) recording.state(room);
+			closeRoom(room);
+			CompletableFuture<Void> closed;
+			synchronized (rooms) {
+				closed = closing.remove(room.getName());
+			}
+			closed.complete(null);
+			System.out.println("room " + room.getName() + " evicted");
+		}
+
+		if (cluster != null) moveRooms();
+	}
+
+	/**
+	 * Moves every room this node has but the cluster gives another node to that node
+	 */
+	private void moveRooms() {
+		if (logDir == null) return;
+		Set<String> names = new TreeSet<String>();
+		synchronized (rooms) {
+			names.addAll(rooms.keySet());
+		}
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(logDir, Files::isDirectory)) {
+			for (Path dir : dirs) names.add(dir.getFileName().toString());
+		}
+		catch (NoSuchFileException e) {
+			// nothing on disk yet
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (String name : names) {
+			if (isRoomName(name) && !cluster.owns(name)) moveRoom(name, cluster.owner(name));
+		}
+	}
+
+	/**
+	 * Hands the room over to the node: redirects its members there, closes it (snapshotting its log), and sends
+	 * the node its directory; if the node takes it, it's deleted here, otherwise it's left to try again later.
+	 * Only closing the room is done holding the rooms: while it's being sent, which can take as long as the node
+	 * does to answer, it's marked as moving, so anyone asking for it here is sent to the node instead of loading
+	 * it again.
+	 */
+	private void moveRoom(String name, String node) {
+		synchronized (rooms) {
+			// (not while it's being loaded or closed: that's left to finish, and the room moved next time)
+			if (loading.containsKey(name) || closing.containsKey(name)) return;
+			SketchRoom room = rooms.remove(name);
+			if (room != null) {
+				for (SketchServerCommunicator comm : room.getMembers()) comm.redirect(room, node);
+				closeRoom(room);
+			}
+			moving.add(name);
+		}
+		Path dir = logDir.resolve(name);
+		try {
+			Map<String, byte[]> files = new TreeMap<String, byte[]>();
+			try (DirectoryStream<Path> contents = Files.newDirectoryStream(dir)) {
+				for (Path file : contents) {
+					// (a mapped file isn't sent: the node restores the room from the log, and makes its own)
+					String fileName = file.getFileName().toString();
+					if (!fileName.equals(MappedShapeStore.FILE)) files.put(fileName, Files.readAllBytes(file));
+				}
+			}
+			if (cluster.send(node, name, files)) {
+				for (String file : files.keySet()) Files.delete(dir.resolve(file));
+				Files.deleteIfExists(dir.resolve(MappedShapeStore.FILE));
+				Files.deleteIfExists(dir);
+				System.out.println("room " + name + " moved to " + node);
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			synchronized (rooms) {
+				moving.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * Installs a room moved here from another node (files: its directory's contents), unless this node already
+	 * has shapes in a room of that name. Anyone already in an empty room of that name here is moved into it.
+	 * Returns "ok", or why not.
+	 * The room's name is reserved as being loaded, and the empty room it replaces taken out of memory, holding the
+	 * rooms; writing the files and loading the room from them is done without, so nobody but those asking for
+	 * the room waits for it. The empty room is held for update until its members have been moved, so nothing
+	 * more can be drawn in it.
+	 */
+	public String acceptRoom(String name, Map<String, byte[]> files) {
+		if (logDir == null) return "rooms aren't kept on disk here";
+		for (String file : files.keySet()) {
+			if (!file.equals("snapshot") && !file.matches("[0-9]+\\.log")) return "unexpected file " + file;
+		}
+		SketchRoom old;
+		CompletableFuture<SketchRoom> loaded = new CompletableFuture<SketchRoom>();
+		synchronized (rooms) {
+			if (loading.containsKey(name) || closing.containsKey(name)) return "room is being loaded here";
+			old = rooms.get(name);
+			if (old != null) {
+				old.getSketch().lockForUpdate();
+				if (!old.getSketch().getShapeMap().isEmpty()) {
+					old.getSketch().unlockForUpdate();
+					return "room already has shapes here";
+				}
+				// (out of the map, nobody takes its lock holding the rooms: so the rooms can be taken holding it)
+				rooms.remove(name);
+			}
+			loading.put(name, loaded);
+		}
+		try {
+			if (old != null) closeEmpty(old);
+			Path dir = logDir.resolve(name);
+			Files.createDirectories(dir);
+			try (DirectoryStream<Path> contents = Files.newDirectoryStream(dir)) {
+				for (Path file : contents) Files.delete(file);
+			}
+			for (Map.Entry<String, byte[]> file : files.entrySet()) {
+				Files.write(dir.resolve(file.getKey()), file.getValue());
+			}
+		}
+		catch (IOException e) {
+			synchronized (rooms) {
+				loading.remove(name);
+			}
+			loaded.completeExceptionally(e);
+			if (old != null) old.getSketch().unlockForUpdate();
+			e.printStackTrace();
+			return "couldn't install: " + e;
+		}
+		try {
+			SketchRoom room = load(name, loaded);
+			if (old != null) {
+				for (SketchServerCommunicator comm : old.getMembers()) comm.rejoin(old, room);
+			}
+			System.out.println("room " + name + " moved here");
+			return "ok";
+		}
+		catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return "couldn't install: " + e;
+		}
+		finally {
+			if (old != null) old.getSketch().unlockForUpdate();
 		}
 	}
 
 	/**
-	 * Adds the communicator to the list of current communicators
+	 * Closes an empty room that's being replaced, without snapshotting or checkpointing it (its files are about
+	 * to be replaced too)
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	private void closeEmpty(SketchRoom room) throws IOException {
+		room.getLog().close();
+		if (room.getSketch().getStore() instanceof MappedShapeStore) {
+			((MappedShapeStore) room.getSketch().getStore()).close();
+		}
 	}
 
 	/**
-	 * Removes the communicator from the list of current communicators
+	 * Shuts down a room whose log can't be written any more: it's dropped from memory, without a snapshot or a
+	 * checkpoint, and its members are disconnected, so that what was changed but not logged isn't carried on with
+	 * as though it had been. Whoever joins it next gets it as it was logged (if the disk lets it be loaded).
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	private void failRoom(SketchRoom room) {
+		synchronized (rooms) {
+			if (!rooms.remove(room.getName(), room)) return;		// evicted or moved away already, so closed
+		}
+		for (SketchServerCommunicator comm : room.getMembers()) comm.disconnect();
+		Sketch sketch = room.getSketch();
+		boolean mapped = sketch.getStore() instanceof MappedShapeStore;
+		if (mapped) sketch.lockForUpdate();
+		try {
+			room.getLog().close();
+			if (mapped) ((MappedShapeStore) sketch.getStore()).close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			if (mapped) sketch.unlockForUpdate();
+		}
+		System.out.println("room " + room.getName() + " shut down: " + room.getLog().getFailure());
+	}
+
+	/**
+	 * Snapshots the room's sketch and compacts its log, if it's kept on disk (and hasn't been evicted, closing it)
+	 */
+	private void snapshotRoom(SketchRoom room) {
+		try {
+			if (room.getLog() != null) room.getLog().snapshot(room.getSketch());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Snapshots and closes the room's log, if it has one, and checkpoints its mapped file, if it has one, as of
+	 * the end of the log (holding off changes throughout, so none can come between the two)
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
+	private void closeRoom(SketchRoom room) {
+		if (room.getLog() == null) return;
+		Sketch sketch = room.getSketch();
+		boolean mapped = sketch.getStore() instanceof MappedShapeStore;
+		if (mapped) sketch.lockForUpdate();
+		try {
+			room.getLog().snapshot(sketch);
+			room.getLog().close();
+			if (mapped) {
+				MappedShapeStore shapes = (MappedShapeStore) sketch.getStore();
+				shapes.checkpoint(room.getLog().records(), sketch.getNextId());
+				shapes.close();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			if (mapped) sketch.unlockForUpdate();
 		}
 	}
-	
+
+	/**
+	 * Starts the room keeper going every so many seconds, and has it close every room's log on the way down
+	 * (finishing any recording first, while the rooms are still open)
+	 */
+	public void keepRooms(int seconds) {
+		keeper.scheduleWithFixedDelay(this::keepRooms, seconds, seconds, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stopRecording();
+			synchronized (rooms) {
+				for (SketchRoom room : rooms.values()) closeRoom(room);
+			}
+		}));
+	}
+
+	/**
+	 * One platform daemon thread per communicator (the original model)
+	 */
+	public static ThreadFactory platformThreads() {
+		return r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * One virtual thread per communicator, or null if this JVM doesn't have them (they need Java 21).
+	 * Looked up reflectively so the server still builds and runs on older JDKs -- which is all it's been run on so
+	 * far, so how it does against platform threads is yet to be measured (see ThreadModeLoadTest). What a
+	 * communicator locks while sending is a ReentrantLock rather than a monitor, so as not to pin its carrier.
+	 */
+	public static ThreadFactory virtualThreads() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Usage: SketchServer [nio [loops] | virtual]
+	 * With "nio", clients are served by a few selector loops (SketchNioServer) instead of a thread each;
+	 * with "virtual", each client still gets its own blocking threads, but virtual ones
+	 * System properties: sketch.queue (outbound messages per client), sketch.slowClients (drop|coalesce|resync),
+	 * sketch.dragWindow (ms to sum each client's drags over; 0 for none), sketch.flushDelay (most ms a message
+	 * waits to be batched with others), sketch.stats (seconds between logging write stats; 0 for never),
+	 * sketch.log (directory to log each room's changes in, and restore rooms from; none by default),
+	 * sketch.durability (op|batch|interval), sketch.syncInterval (ms between fsyncs for interval),
+	 * sketch.snapshotInterval (seconds between snapshots of the rooms, after which their logs are compacted, and
+	 * checks for rooms to evict), sketch.roomIdle (seconds an empty room stays in memory),
+	 * sketch.roomBudget (most shapes kept in memory over all the rooms), sketch.history (changes each room keeps
+	 * for clients picking up where they left off after reconnecting), sketch.store (heap|array|mapped: how rooms
+	 * keep their shapes -- array takes much less memory for rooms with many shapes, and mapped keeps them off the
+	 * heap, in a file in each room's log directory if there is one, which reopens the room without restoring it),
+	 * sketch.metricsPort (port to serve metrics on over HTTP, at /metrics; none by default -- they're always
+	 * readable over JMX, as sketch:type=Server,port=the client port), sketch.port (for clients; 4242),
+	 * sketch.cluster (host:port of every node, comma separated, to spread rooms over them -- see SketchCluster),
+	 * sketch.node (this node's host:port in that list; localhost and sketch.port by default),
+	 * sketch.record (file to record everything clients send in, to replay with TraceReplay; none by default),
+	 * sketch.undoBudget (bytes of undo and redo history kept for each client; 0 for no undo)
+	 */
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		String mode = args.length > 0 ? args[0] : "threads";
+		int port = Integer.getInteger("sketch.port", 4242);
+		SketchServer server;
+		if (mode.equals("nio")) {
+			ServerSocketChannel listen = ServerSocketChannel.open();
+			listen.bind(new InetSocketAddress(port));
+			server = new SketchServer(listen.socket());
+		}
+		else {
+			ThreadFactory threads = platformThreads();
+			if (mode.equals("virtual")) {
+				threads = virtualThreads();
+				if (threads == null) {
+					System.err.println("virtual threads need Java 21 or later; using platform threads");
+					threads = platformThreads();
+				}
+			}
+			server = new SketchServer(new ServerSocket(port), threads);
+		}
+
+		server.setQueueCapacity(Integer.getInteger("sketch.queue", server.getQueueCapacity()));
+		server.setDragWindow(Integer.getInteger("sketch.dragWindow", server.getDragWindow()));
+		server.setFlushDelay(Integer.getInteger("sketch.flushDelay", server.getFlushDelay()));
+		server.setUndoBudget(Integer.getInteger("sketch.undoBudget", server.getUndoBudget()));
+		String logDir = System.getProperty("sketch.log");
+		if (logDir != null) {
+			String durability = System.getProperty("sketch.durability", "batch");
+			server.setLogDir(Paths.get(logDir), OpLog.Durability.valueOf(durability.toUpperCase()),
+					Integer.getInteger("sketch.syncInterval", 100));
+		}
+		String nodes = System.getProperty("sketch.cluster");
+		SketchCluster cluster = null;
+		if (nodes != null) {
+			cluster = new SketchCluster(System.getProperty("sketch.node", "localhost:" + port),
+					Arrays.asList(nodes.split(",")));
+			server.setCluster(cluster);
+		}
+		server.setRoomIdle(Integer.getInteger("sketch.roomIdle", 300) * 1000L);
+		server.setRoomBudget(Integer.getInteger("sketch.roomBudget", 1000000));
+		server.setHistory(Integer.getInteger("sketch.history", SketchRoom.HISTORY));
+		server.setStore(ShapeStore.Kind.valueOf(System.getProperty("sketch.store", "heap").toUpperCase()));
+		// (rooms are taken from other nodes only once the server's set up to hold them as it would its own)
+		if (cluster != null) cluster.listen(server);
+		// snapshot and evict rooms now and then (in the background)
+		server.keepRooms(Integer.getInteger("sketch.snapshotInterval", 60));
+		int stats = Integer.getInteger("sketch.stats", 0);
+		if (stats > 0) {
+			server.getTimer().scheduleAtFixedRate(() -> System.out.println("writes: " + server.getWriteStats()),
+					stats, stats, TimeUnit.SECONDS);
+		}
+		server.getMetrics().register(port);
+		int metricsPort = Integer.getInteger("sketch.metricsPort", 0);
+		if (metricsPort > 0) server.getMetrics().serve(metricsPort);
+		String policy = System.getProperty("sketch.slowClients");
+		if (policy != null) server.setSlowClientPolicy(SlowClientPolicy.valueOf(policy.toUpperCase()));
+		String record = System.getProperty("sketch.record");
+		if (record != null) server.setRecorder(new TraceRecorder(Paths.get(record)));
+
+		if (mode.equals("nio")) {
+			int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+			new SketchNioServer(server, server.listen.getChannel(), loops).getConnections();
+		}
+		else {
+			server.getConnections();
+		}
 	}
 }
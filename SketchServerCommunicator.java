@@ -1,35 +1,316 @@
 import java.awt.*;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Handles communication between the server and one client, for SketchServer
+ * Speaks the text protocol, or the binary one (BinaryProtocol) if the client asks for it
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
  * @author Avi Dixit & Hannah Brookes, CS10, March 2020
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator implements Runnable {
+    protected static final int WRITE_BUFFER = 64 * 1024;  // most bytes batched into one write to a client
+    protected static final int PLACE_WAIT = 200;          // ms a new client has to say which room it wants (or is
+                                                          // resuming) before it's put in the default one
+
     private Socket sock;                    // to talk with client
-    private BufferedReader in;                // from client
-    private PrintWriter out;                // to client
+    private InputStream in;                 // from client
+    private OutputStream out;               // to client
     private SketchServer server;            // handling communication for
-    private static int id = 0;				// keeps track of the id for a newly added shape
+    private volatile SketchRoom room;       // the room the client is in (null until it's joined one)
+    private ArrayBlockingQueue<Message> outbound;   // messages waiting to be written to the client
+    private ReentrantLock outboundLock = new ReentrantLock();  // held offering to outbound or rebuilding it, so a
+                                            // resync can't come in between (a lock, not outbound's monitor, which
+                                            // would pin a virtual thread to its carrier while it's held)
+    private Thread writer;                  // writes outbound to the client, so a slow client only holds up itself
     private Shape curr = null;				// keeps track of the current shape (the one being moved, etc.)
     private int currId = -1;				// the id of the current shape (-1 unless otherwise stated)
+    private int dragDx, dragDy;             // drags of the current shape not yet applied (see moveDrag)
+    private boolean dragScheduled;          // whether a flush of those is on the server's timer
+    private UndoHistory undoHistory;        // the client's changes in its room, to undo and redo
+    private boolean placed;                 // whether the client has been put in a room yet (see place)
+    private long epoch;                     // as the writer goes: the room epoch and version the client will be at
+    private long written = -1;              // having read what's been written (-1 if it can't tell), and the latest
+    private long covered;                   // version anything written includes (see versionBefore)
+    private volatile long bytesIn;          // read from the client so far (only by its reader)
+    private volatile long bytesOut;         // written to it so far (only by its writer)
+    private long[] broadcastAt = new long[64];  // when each change in the write going out was broadcast
+    private int stamped;                    // how many of those there are (see stamp)
+    private volatile int traceId = -1;      // the connection's number in the server's recording (-1 until it has one)
 
     public SketchServerCommunicator(Socket sock, SketchServer server) {
         this.sock = sock;
         this.server = server;
+        outbound = new ArrayBlockingQueue<Message>(server.getQueueCapacity());
+        undoHistory = new UndoHistory(server.getUndoBudget());
+    }
+
+    /**
+     * A communicator without its own socket, for servers (like SketchNioServer) that do the reading themselves,
+     * hand what they read to TextProtocol or BinaryProtocol to decode, and drain its output with nextMessage
+     */
+    protected SketchServerCommunicator(SketchServer server) {
+        this(null, server);
     }
 
     /**
-     * Sends a message to the client
+     * Queues a message for the client; never blocks -- if the client has fallen too far behind to take it,
+     * the server's slow client policy decides what happens instead
      *
      * @param msg
      */
-    public void send(String msg) {
-        out.println(msg);
+    public void send(Message msg) {
+        boolean queued;
+        outboundLock.lock();
+        try {
+            queued = outbound.offer(msg);
+        }
+        finally {
+            outboundLock.unlock();
+        }
+        if (queued) {
+            messageQueued();
+        }
+        else {
+            fellBehind(msg);
+        }
+    }
+
+    /**
+     * Called after a message has been queued; the writer thread is already waiting for it, but subclasses that
+     * write some other way can use this to wake up their writer
+     */
+    protected void messageQueued() {
+    }
+
+    /**
+     * The next message to write to the client, or null if there isn't one yet
+     */
+    protected Message nextMessage() {
+        return outbound.poll();
+    }
+
+    /**
+     * Deals with a client whose outbound queue is full, according to the server's slow client policy
+     */
+    private void fellBehind(Message msg) {
+        switch (server.getSlowClientPolicy()) {
+            case DROP:
+                System.out.println("dropping a client that fell behind");
+                disconnect();
+                return;
+            case COALESCE:
+                boolean queued;
+                outboundLock.lock();
+                try {
+                    coalesce();
+                    queued = outbound.offer(msg);
+                }
+                finally {
+                    outboundLock.unlock();
+                }
+                if (queued) messageQueued();
+                // nothing left to merge: bring the client back in line with a snapshot after all
+                else resync(msg);
+                return;
+            case RESYNC:
+                resync(msg);
+                return;
+        }
+    }
+
+    /**
+     * Replaces what's queued for the client (and the message that didn't fit) with a snapshot of its room as it is
+     * now, keeping, in order, the messages about the connection (see Message.isControl). A client that isn't in a
+     * room -- not put in one yet, being put in one (whose snapshot may be the message), or sent to another node --
+     * has nothing to be snapshotted, so it's only its changes that are dropped.
+     */
+    private void resync(Message msg) {
+        SketchRoom room = this.room;
+        // the sketch's lock taken first, as a broadcast takes it before the queue's: so the snapshot can be read,
+        // and it and the version agree with each other and with whatever's broadcast after
+        if (room != null) room.getSketch().lockForReading();
+        try {
+            outboundLock.lock();
+            try {
+                List<Message> queued = new ArrayList<Message>();
+                outbound.drainTo(queued);
+                queued.add(msg);
+                // (what's kept in between control and version messages -- which the writer has to see for
+                // themselves -- goes as one batch, so it takes less room than it did)
+                List<Message> run = new ArrayList<Message>();
+                for (Message kept : queued) {
+                    if (kept.isControl() || (room == null && kept.isVersion())) {
+                        if (!run.isEmpty()) outbound.offer(Message.batch(run));
+                        run = new ArrayList<Message>();
+                        outbound.offer(kept);
+                    }
+                    else if (room == null && !kept.isChange()) {
+                        run.add(kept);
+                    }
+                }
+                if (!run.isEmpty()) outbound.offer(Message.batch(run));
+                if (room != null) {
+                    outbound.offer(Message.batch(List.of(Message.reset(), room.snapshot())));
+                    outbound.offer(room.version());
+                }
+            }
+            finally {
+                outboundLock.unlock();
+            }
+        }
+        finally {
+            if (room != null) room.getSketch().unlockForReading();
+        }
+        messageQueued();
+    }
+
+    /**
+     * Merges the queued drags of each shape into one move (holding outboundLock), where nothing else in between could be affected by
+     * the order (drags of different shapes commute; any other message is treated as a barrier)
+     */
+    private void coalesce() {
+        List<Message> queued = new ArrayList<Message>();
+        outbound.drainTo(queued);
+        List<Message> merged = new ArrayList<Message>();
+        Map<Integer, Integer> lastDrag = new HashMap<Integer, Integer>();   // shape id -> index in merged of its drag
+        for (Message msg : queued) {
+            if (!msg.isMoveDrag()) {
+                lastDrag.clear();
+                merged.add(msg);
+            }
+            else if (lastDrag.containsKey(msg.getId())) {
+                int i = lastDrag.get(msg.getId());
+                merged.set(i, merged.get(i).plus(msg));
+            }
+            else {
+                lastDrag.put(msg.getId(), merged.size());
+                merged.add(msg);
+            }
+        }
+        outbound.addAll(merged);
+    }
+
+    /**
+     * Cuts the client off (its reader then sees the socket closed and cleans up)
+     */
+    protected void disconnect() {
+        leave();
+        try {
+            sock.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The client's address, as host:port
+     */
+    public String getAddress() {
+        return sock != null ? address(sock.getRemoteSocketAddress()) : "";
+    }
+
+    protected static String address(SocketAddress address) {
+        if (!(address instanceof InetSocketAddress)) return String.valueOf(address);
+        InetSocketAddress inet = (InetSocketAddress) address;
+        return inet.getAddress().getHostAddress() + ":" + inet.getPort();
+    }
+
+    /**
+     * The name of the room the client is in ("" if it isn't in one)
+     */
+    public String getRoomName() {
+        SketchRoom in = room;
+        return in != null ? in.getName() : "";
+    }
+
+    /**
+     * How many messages are waiting to be written to the client
+     */
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Counts bytes read from the client, once they've been handled (called by its reader)
+     */
+    protected void countRead(int bytes) {
+        bytesIn += bytes;
+        server.getMetrics().read(bytes);
+    }
+
+    /**
+     * Handles bytes just read from the client (called by its reader, with what handles them) -- adding them to
+     * the server's recording first, if it's making one, in turn with the other reads in the client's room
+     */
+    protected void handle(byte[] data, int offset, int length, Runnable handle) {
+        TraceRecorder recorder = server.getRecorder();
+        if (recorder == null) {
+            handle.run();
+            return;
+        }
+        if (traceId < 0) traceId = recorder.newConnection();
+        recorder.read(traceId, () -> room, data, offset, length, handle);
+    }
+
+    /**
+     * Notes in the server's recording, if it's making one, that the client has gone
+     */
+    protected void recordClosed() {
+        TraceRecorder recorder = server.getRecorder();
+        if (recorder != null && traceId >= 0) recorder.closed(traceId);
+    }
+
+    /**
+     * Counts a write of messages to the client (called by its writer)
+     */
+    protected void countWrite(int messages, int bytes) {
+        bytesOut += bytes;
+        server.getWriteStats().record(messages, bytes);
+    }
+
+    /**
+     * Notes, as the writer puts a message in a write, when it was broadcast (Message.getBroadcastAt; 0 if it's not
+     * a change that was), so the time it took to reach the client can be recorded once the write is out
+     * (see delivered)
+     */
+    protected void stamp(long at) {
+        if (at == 0) return;
+        if (stamped == broadcastAt.length) broadcastAt = Arrays.copyOf(broadcastAt, stamped * 2);
+        broadcastAt[stamped++] = at;
+    }
+
+    /**
+     * Records the fan-out latency of each change stamped since the last write went out, now that this one has
+     */
+    protected void delivered() {
+        if (stamped == 0) return;
+        long now = System.nanoTime();
+        Histogram fanout = server.getMetrics().getFanout();
+        for (int i = 0; i < stamped; i++) fanout.record(now - broadcastAt[i]);
+        stamped = 0;
     }
 
     /**
@@ -38,135 +319,557 @@ public class SketchServerCommunicator extends Thread {
     public void run() {
         try {
             System.out.println("someone connected");
+            server.getMetrics().connected(this);
 
             // Communication channel
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            out = new PrintWriter(sock.getOutputStream(), true);
-
-            // Tell the client the current state of the world
-            Map<Integer, Shape> map = server.getSketch().getShapeMap();
-            // for each id in the map key set, broadcast a message to the client including the id of the shape
-            // and the shape to be added
-            for (int id : map.keySet()) {
-                server.broadcast("join " + id + " " + map.get(id).toString());
-            }
-
-            // Keep getting and handling messages from the client
-            String line;
-            while ((line = in.readLine()) != null) {
-                // splits the lines based on spaces
-                String[] split = line.strip().split(" ");
-                // determines which command was sent in the message
-                String command = split[0];
-
-                // if the command is draw, add a shape to the shape map based on the shape type passed in
-                // broadcast the message back to all communicators to add the new shape
-                if (command.equals("draw")) {
-                    // sets current to a new rectangle based on the coordinates passed in in the message
-                    if (split[1].equals("rectangle")) {
-                        curr = new Rectangle(
-                                Integer.parseInt(split[2]), Integer.parseInt(split[3]), Integer.parseInt(split[4]),
-                                Integer.parseInt(split[5]), new Color(Integer.parseInt(split[6])));
-                    }
-                    // sets current to a new ellipse based on the coordinates passed in in the message
-                    else if (split[1].equals("ellipse")) {
-                        curr = new Ellipse(
-                                Integer.parseInt(split[2]), Integer.parseInt(split[3]), Integer.parseInt(split[4]),
-                                Integer.parseInt(split[5]), new Color(Integer.parseInt(split[6])));
-                    }
-                    // sets current to a new segment based on the coordinates passed in in the message
-                    else if (split[1].equals("segment")) {
-                        curr = new Segment(
-                                Integer.parseInt(split[2]), Integer.parseInt(split[3]), Integer.parseInt(split[4]),
-                                Integer.parseInt(split[5]), new Color(Integer.parseInt(split[6])));
+            // messages are batched into writes below, so there's no point in Nagle holding them back as well
+            sock.setTcpNoDelay(true);
+            in = new BufferedInputStream(sock.getInputStream());
+            out = new BufferedOutputStream(sock.getOutputStream(), WRITE_BUFFER);
+            writer = server.getThreadFactory().newThread(this::write);
+            writer.start();
+
+            // A client that wants the binary protocol says so with its first byte; anything else is the start of
+            // the first text line. One that's reconnecting says which room it was in next, so it isn't sent the
+            // default room for nothing; one that says nothing for a moment is put there.
+            sock.setSoTimeout(PLACE_WAIT);
+            in.mark(1);
+            int first;
+            try {
+                first = in.read();
+            }
+            catch (SocketTimeoutException e) {
+                place();
+                sock.setSoTimeout(0);
+                first = in.read();
+            }
+            if (first == BinaryProtocol.HELLO) {
+                handle(new byte[] { (byte) first }, 0, 1, () -> send(Message.binaryFollows()));
+                countRead(1);
+                read(true);
+            }
+            else if (first >= 0) {
+                in.reset();
+                read(false);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // (a client sending what can't be parsed is dropped, as it is by SketchNioServer)
+            e.printStackTrace();
+            System.out.println("error in sketch server communicator");
+        }
+        finally {
+            // Clean up -- note that also remove self from the room's list so it doesn't broadcast here
+            leave();
+            server.getMetrics().disconnected(this);
+            recordClosed();
+            if (writer != null) writer.interrupt();
+            try {
+                sock.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Keeps getting and handling messages from the client, in the text or binary protocol
+     */
+    private void read(boolean binary) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        TextProtocol text = new TextProtocol();
+        int n;
+        while (true) {
+            if (placed && sock.getSoTimeout() != 0) sock.setSoTimeout(0);
+            try {
+                n = in.read(buf.array(), buf.position(), buf.remaining());
+            }
+            catch (SocketTimeoutException e) {
+                place();
+                continue;
+            }
+            if (n < 0) break;
+            int from = buf.position();
+            buf.position(from + n);
+            buf.flip();
+            handle(buf.array(), from, n, () -> {
+                if (binary) BinaryProtocol.decodeFromClient(buf, this);
+                else text.decodeFromClient(buf, this);
+            });
+            countRead(n);
+            buf.compact();
+            if (!buf.hasRemaining()) throw new IOException("message too long");
+        }
+    }
+
+    /**
+     * Writer thread: keeps writing queued messages to the client until interrupted or the client goes away
+     * Whatever is queued by the time it gets to write (a broadcast tick's worth, say) goes out in one flush, and
+     * with the server's flush delay it waits up to that long for more before flushing
+     */
+    private void write() {
+        boolean binary = false;     // whether the client has been told everything from here on is binary
+        long delay = TimeUnit.MILLISECONDS.toNanos(server.getFlushDelay());
+        try {
+            while (true) {
+                Message msg = outbound.take();
+                long deadline = System.nanoTime() + delay;
+                int messages = 0, bytes = 0;
+                while (msg != null) {
+                    Message version = versionBefore(msg);
+                    if (version != null) {
+                        byte[] data = binary ? version.binary() : version.textBytes();
+                        out.write(data);
+                        server.getMetrics().sent(version);
+                        messages++;
+                        bytes += data.length;
                     }
-                    // adds the shape to the master sketch
-                    server.getSketch().addShape(id, curr);
-                    // broadcasts the message
-                    server.broadcast("draw " + id + " " + curr.toString());
-                    // increments the static variable id to ensure next shape added has an id incremented by one
-                    id++;
+                    byte[] data = binary ? msg.binary() : msg.textBytes();
+                    out.write(data);
+                    server.getMetrics().sent(msg);
+                    stamp(msg.getBroadcastAt());
+                    messages++;
+                    bytes += data.length;
+                    if (msg.isBinaryFollows()) binary = true;
+                    if (bytes >= WRITE_BUFFER) break;
+                    msg = outbound.poll();
+                    if (msg == null && delay > 0) msg = outbound.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                out.flush();
+                countWrite(messages, bytes);
+                delivered();
+            }
+        }
+        catch (InterruptedException e) {
+            // reader is done with this client
+        }
+        catch (IOException e) {
+            // client went away; the reader will clean up
+        }
+    }
+
+    /**
+     * Keeps track, as messages are written to the client, of where it'll be in its room's history having read
+     * them, and returns a version message to write before this one if the client couldn't work that out itself
+     * (otherwise null). The client counts the changes it's sent from the version it was last told, so it needs
+     * telling only when that count goes wrong: after a snapshot (the room sends the version with it), and around
+     * drags the queue has merged (see coalesce), which leave it not knowing until a change turns up that follows
+     * everything written so far.
+     */
+    protected Message versionBefore(Message msg) {
+        if (msg.isVersion()) {
+            epoch = msg.getEpoch();
+            written = msg.getVersion();
+            covered = written;
+            return null;
+        }
+        if (msg.isReset()) {
+            epoch = 0;
+            written = -1;
+            return null;
+        }
+        if (!msg.isChange() || epoch == 0) return null;
+        Message version = null;
+        if (msg.getVersion() != 0 && msg.getVersion() == covered + 1) {
+            if (written < 0) version = Message.version(epoch, covered);
+            written = msg.getVersion();
+        }
+        else if (written >= 0) {
+            version = Message.version(epoch, -1);
+            written = -1;
+        }
+        covered = Math.max(covered, msg.getUpTo());
+        return version;
+    }
+
+    /**
+     * Puts the client in the default room, to begin with
+     */
+    protected void join() throws IOException {
+        enter(SketchServer.DEFAULT_ROOM, 0, -1);
+    }
+
+    /**
+     * Puts the client in the default room if it hasn't been put in one yet (it's had its chance to ask for another)
+     */
+    protected void place() {
+        if (placed) return;
+        try {
+            join();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            disconnect();
+        }
+    }
+
+    /**
+     * The room the client is in, first putting it in the default one if it hasn't been put anywhere yet -- holding
+     * the room's update lock (for the caller to release), which is what moving the client out of the room takes too
+     * (see leave), so while it's held the client stays in the room, even if something's moving it from another
+     * thread
+     */
+    private SketchRoom lockCurrent() {
+        place();
+        return lock();
+    }
+
+    /**
+     * The room the client is in, holding its update lock (see lockCurrent), or null (holding nothing) if it isn't
+     * in one
+     */
+    private SketchRoom lock() {
+        while (true) {
+            SketchRoom room = this.room;
+            if (room == null) return null;
+            room.getSketch().lockForUpdate();
+            if (room == this.room) return room;
+            // moved meanwhile
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * Puts the client in the named room (picking up from the version if it's resuming one, otherwise -1), or if
+     * another node of the cluster serves it, tells the client to go there
+     */
+    private void enter(String name, long epoch, long version) throws IOException {
+        placed = true;
+        room = server.joinRoom(this, name, epoch, version);
+        if (room == null) send(Message.redirect(server.getCluster().owner(name), name));
+    }
+
+    /**
+     * Takes the client out of its room (first finishing off anything it was doing there)
+     */
+    protected void leave() {
+        while (true) {
+            SketchRoom left = room;
+            if (left == null || leave(left)) return;
+        }
+    }
 
+    /**
+     * Takes the client out of the room, if that's the one it's in, and forgets what it was doing there -- holding
+     * the room's update lock, so that a request of the client's own can't come in between when it's moved from
+     * another thread (see lockCurrent). Returns whether the client was in the room.
+     */
+    private boolean leave(SketchRoom left) {
+        left.getSketch().lockForUpdate();
+        try {
+            if (room != left) return false;
+            flushDrag();
+            server.leaveRoom(this, left);
+            room = null;
+            curr = null;
+            currId = -1;
+            undoHistory.clear();
+            return true;
+        }
+        finally {
+            left.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * Moves the client to the named room: it's told to forget the sketch it has, then sent the new room's
+     * (anything still queued from the old room arrives before that, so is forgotten too); a client that hasn't
+     * been put in a room yet is just put there
+     */
+    public void room(String name) {
+        server.getMetrics().received(BinaryProtocol.ROOM);
+        move(name, 0, -1);
+    }
+
+    /**
+     * Puts a client that's reconnecting back in the room it was in, sending it only what it's missed since the
+     * version (if the room still has that; otherwise it's reset and sent the lot). Only as its first request --
+     * a client that's already been put in a room has been sent its sketch, so is just moved, as by room.
+     */
+    public void resume(String name, long epoch, long version) {
+        server.getMetrics().received(BinaryProtocol.RESUME);
+        if (placed) move(name, 0, -1);
+        else move(name, epoch, version);
+    }
+
+    /**
+     * For room and resume: puts the client in the room, first telling it to reset if it was somewhere already
+     */
+    private void move(String name, long epoch, long version) {
+        if (!SketchServer.isRoomName(name)) {
+            System.out.println("ignoring request for room " + name);
+            return;
+        }
+        if (placed) {
+            leave();
+            send(Message.reset());
+        }
+        try {
+            enter(name, epoch, version);
+        }
+        catch (IOException e) {
+            // the room's log couldn't be read; put the client back where clients start
+            e.printStackTrace();
+            try {
+                join();
+            }
+            catch (IOException again) {
+                again.printStackTrace();
+                disconnect();
+            }
+        }
+    }
+
+    /**
+     * Sends the client to the node now serving the room it's in (the room is moving there) -- unless it's left it
+     * meanwhile
+     */
+    public void redirect(SketchRoom from, String node) {
+        if (leave(from)) send(Message.redirect(node, from.getName()));
+    }
+
+    /**
+     * Moves the client into a room just installed in place of the (empty) one it was in, unless it's left that
+     * meanwhile (called holding the old room's update lock, so there's nothing in it to finish off)
+     */
+    public void rejoin(SketchRoom old, SketchRoom installed) {
+        if (!leave(old)) return;
+        send(Message.reset());
+        // (the installed room is this client's before it's sent, so if it falls behind meanwhile, that's the room
+        // it's brought back in line with; it's set holding the old room's lock, so a request waiting on that
+        // finds the client's moved, and goes to the installed room instead)
+        room = installed;
+        installed.join(this);
+    }
+
+    // Each request below makes its change and broadcasts it as one step (under the sketch's update lock),
+    // so a client joining meanwhile gets it exactly once; a client that isn't in a room (having been redirected
+    // to another node) is ignored, and one that hasn't been put in one yet is put in the default room first
+
+    /**
+     * Adds the shape to the master sketch and broadcasts the message back to all communicators to add the new shape
+     */
+    public void draw(Shape shape) {
+        server.getMetrics().received(BinaryProtocol.DRAW);
+        SketchRoom room = lockCurrent();
+        if (room == null) return;
+        try {
+            applyDrag(room);
+            curr = shape;
+            // the sketch hands out the next id (atomically, so clients drawing at the same time never get the same one)
+            int id = room.getSketch().addShape(curr);
+            room.broadcast(Message.draw(id, curr));
+            undoHistory.drawn(id);
+        }
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * Updates the currId and curr shape based on the coordinates pressed, and brings that shape to the front
+     */
+    public void movePress(int x, int y) {
+        server.getMetrics().received(BinaryProtocol.MOVE_PRESS);
+        SketchRoom room = lockCurrent();
+        if (room == null) return;
+        try {
+            applyDrag(room);
+            currId = hitTest(room, x, y);
+            curr = room.getSketch().getShapeFromID(currId);
+            // if there is a shape at the given coordinates, make it so that the shape will move to the
+            // front of other shapes
+            if (curr != null && curr.contains(x, y)) {
+                // give the shape a new (highest) id and remove it under its old one, in one step so that
+                // two clients pressing the same shape can't both copy it
+                int id = room.getSketch().bringToFront(currId);
+                if (id >= 0) {
+                    // the shape as it's now stored (curr was the store's view of it under the old id, which
+                    // putting it under the new one may have moved or reused)
+                    curr = room.getSketch().getShapeFromID(id);
+                    // broadcast the message to do the same
+                    room.broadcast(Message.draw(id, curr));
+                    room.broadcast(Message.delete(currId));
+                    // so that anyone's history of the shape can follow it
+                    room.renamed(currId, id);
+                    // update currId to the new id
+                    currId = id;
                 }
-                // if the command is move, determine whether the secondary command is press or drag
-                else if (command.equals("move")) {
-                    String secondCommand = split[1];
-
-                    // if the secondary command is press, update the currId and curr shape based on the
-                    // coordinates passed in the message
-                    if (secondCommand.equals("press")) {
-                        currId = server.getSketch().getId(Integer.parseInt(split[2]), Integer.parseInt(split[3]));
-                        curr = server.getSketch().getShapeFromID(currId);
-                        // if there is a shape at the given coordinates, make it so that the shape will move to the
-                        // front of other shapes
-                        if (curr != null && curr.contains(Integer.parseInt(split[2]), Integer.parseInt(split[3]))) {
-                            //add a new shape with a new id and the curr shape information to sketch's shape map,
-                            // broadcast the message to do the same
-                            server.getSketch().addShape(id, curr);
-                            server.broadcast("draw "+ id+" "+curr.toString());
-                            // delete the original shape based on its id (so you don't have duplicate shape) and
-                            // broadcast the message to do the same
-                            server.getSketch().removeShapeByID(currId);
-                            server.broadcast("delete " + currId);
-                            // update currId to the new id
-                            currId = id;
-                            // update curr to the new currId
-                            curr = server.getSketch().getShapeFromID(currId);
-                            // increment id by one
-                            id++;
-                        }
-                    }
-                    // if the secondary command is drag, move the curr shape based on the dx and dy parameters
-                    // from the message
-                    else if (secondCommand.equals("drag")) {
-                        int dx, dy;
-                        dx = Integer.parseInt(split[2]);
-                        dy = Integer.parseInt(split[3]);
-                        // if  curr exists and its id is greater than or equal to 0, move the shape based on
-                        // dx and dy and broadcast the message to do the same
-                        if (curr != null && currId >= 0) {
-                            server.getSketch().getShapeFromID(currId).moveBy(dx, dy);
-                            server.broadcast("move drag " + currId + " " + dx + " " + dy);
-                        }
-                    }
+                else {
+                    curr = null;
                 }
-                // if the command is recolor, determine the curr shape and currId based on the x and y parameters that
-                // were passed in
-                else if (command.equals("recolor")) {
-                    currId = server.getSketch().getId(Integer.parseInt(split[1]), Integer.parseInt(split[2]));
-                    curr = server.getSketch().getShapeFromID(currId);
-                    // if curr exists, update the curr shape's color and broadcast the message to do the same
-                    if (curr != null) {
-                        curr.setColor(new Color(Integer.parseInt(split[3])));
-                        server.broadcast("recolor " + currId + " " + split[3]);
-                    }
+            }
+            // a move of it starts (or, if there's nothing to move, whatever move was going on is over)
+            undoHistory.pressed(curr != null ? currId : -1);
+        }
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * Moves the curr shape by dx and dy
+     * Drags are summed over the server's drag window and then applied and broadcast as one move, so a client
+     * dragging at mouse-event rate costs everyone a message per window rather than per event; anything else
+     * this client asks for flushes them first, so the order of its changes is kept
+     */
+    public void moveDrag(int dx, int dy) {
+        server.getMetrics().received(BinaryProtocol.MOVE_DRAG);
+        SketchRoom room = lockCurrent();
+        if (room == null) return;
+        try {
+            // if curr exists and its id is greater than or equal to 0, move the shape based on
+            // dx and dy and broadcast the message to do the same
+            if (curr != null && currId >= 0) {
+                dragDx += dx;
+                dragDy += dy;
+                if (server.getDragWindow() <= 0) {
+                    applyDrag(room);
                 }
-                // if the command is delete, determine the curr shape and currId based on the x and y parameters
-                // that were passed in
-                else if (command.equals("delete")) {
-                    int x, y;
-                    x = Integer.parseInt(split[1]);
-                    y = Integer.parseInt(split[2]);
-                    currId = server.getSketch().getId(x, y);
-                    curr = server.getSketch().getShapeFromID(currId);
-                    // if the curr shape exists and it does contain x and y, remove the shape from sketch's shapeMap
-                    // and broadcast the message to do the same
-                    if (curr != null && curr.contains(x, y)) {
-                        server.getSketch().removeShapeByID(currId);
-                        server.broadcast("delete " + currId);
-                    }
+                else if (!dragScheduled) {
+                    dragScheduled = true;
+                    server.getTimer().schedule(this::flushDrag, server.getDragWindow(), TimeUnit.MILLISECONDS);
                 }
             }
+        }
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
 
-            // Clean up -- note that also remove self from server's list so it doesn't broadcast here
-            server.removeCommunicator(this);
-            out.close();
-            in.close();
-            sock.close();
+    /**
+     * Applies and broadcasts any drags summed by moveDrag that haven't been yet
+     */
+    public void flushDrag() {
+        SketchRoom room = lock();
+        if (room == null) return;
+        try {
+            dragScheduled = false;
+            applyDrag(room);
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("error in sketch server communicator");
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * The guts of flushDrag, for callers already holding the update lock
+     */
+    private void applyDrag(SketchRoom room) {
+        if ((dragDx != 0 || dragDy != 0) && currId >= 0) {
+            // the shape may have been brought to the front by someone else since it was pressed (or be gone);
+            // the history keeps the move under the id it was pressed as, and follows it itself
+            int id = room.currentId(currId);
+            if (room.getSketch().moveShape(id, dragDx, dragDy)) {
+                room.broadcast(Message.moveDrag(id, dragDx, dragDy));
+                undoHistory.dragged(currId, dragDx, dragDy);
+            }
+            else {
+                // nothing to move, then or from now on
+                curr = null;
+                currId = -1;
+            }
         }
+        dragDx = 0;
+        dragDy = 0;
+    }
+
+    /**
+     * Recolors the topmost shape at x and y
+     */
+    public void recolor(int x, int y, int rgb) {
+        server.getMetrics().received(BinaryProtocol.RECOLOR);
+        SketchRoom room = lockCurrent();
+        if (room == null) return;
+        try {
+            applyDrag(room);
+            currId = hitTest(room, x, y);
+            curr = room.getSketch().getShapeFromID(currId);
+            // if curr exists, update the curr shape's color and broadcast the message to do the same
+            Color color = ColorCache.rgb(rgb);
+            int from = curr != null ? curr.getColor().getRGB() : 0;
+            if (curr != null && room.getSketch().recolorShape(currId, color)) {
+                // (the color as the sketch has it: whatever the client sent, it's opaque)
+                room.broadcast(Message.recolor(currId, color.getRGB()));
+                undoHistory.recolored(currId, from, color.getRGB());
+            }
+        }
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * Deletes the topmost shape at x and y
+     */
+    public void delete(int x, int y) {
+        server.getMetrics().received(BinaryProtocol.DELETE);
+        SketchRoom room = lockCurrent();
+        if (room == null) return;
+        try {
+            applyDrag(room);
+            // remove the topmost shape containing x and y (looked up and removed in one step, under the update
+            // lock) from sketch's shapeMap and broadcast the message to do the same
+            currId = hitTest(room, x, y);
+            if (currId >= 0) {
+                undoHistory.deleting(currId, room.getSketch().getShapeFromID(currId));
+                room.getSketch().removeShapeByID(currId);
+            }
+            curr = null;
+            if (currId >= 0) {
+                room.broadcast(Message.delete(currId));
+            }
+        }
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * Undoes the latest change the client made in its room that can still be undone (see UndoHistory), as one
+     * change broadcast like any other; a move going on is over
+     */
+    public void undo() {
+        server.getMetrics().received(BinaryProtocol.UNDO);
+        SketchRoom room = lockCurrent();
+        if (room == null) return;
+        try {
+            applyDrag(room);
+            curr = null;
+            currId = -1;
+            undoHistory.undo(room);
+        }
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * Makes the change the client last undid again, if it hasn't made another since
+     */
+    public void redo() {
+        server.getMetrics().received(BinaryProtocol.REDO);
+        SketchRoom room = lockCurrent();
+        if (room == null) return;
+        try {
+            applyDrag(room);
+            curr = null;
+            currId = -1;
+            undoHistory.redo(room);
+        }
+        finally {
+            room.getSketch().unlockForUpdate();
+        }
+    }
+
+    /**
+     * The topmost shape at x and y in the room's sketch (Sketch.getId), timed for the server's metrics
+     */
+    private int hitTest(SketchRoom room, int x, int y) {
+        long start = System.nanoTime();
+        int id = room.getSketch().getId(x, y);
+        server.getMetrics().getHitTests().record(System.nanoTime() - start);
+        return id;
     }
-}
\ No newline at end of file
+}
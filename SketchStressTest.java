@@ -0,0 +1,113 @@
+import java.awt.Color;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress test for Sketch under concurrent use: several threads add, move, recolor, bring to front, hit-test and
+ * delete shapes on one shared sketch (the way the server's communicators do), while another keeps iterating it.
+ * Afterwards checks that the sketch is consistent: every id handed out was unique, the number of shapes matches
+ * what was added and removed, and hit-testing through the index agrees with testing every shape.
+ *
+ * Usage: SketchStressTest [threads] [operations per thread]
+ */
+public class SketchStressTest {
+
+	public static void main(String[] args) throws Exception {
+		int nThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int nOps = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		Sketch sketch = new Sketch();
+		Set<Integer> handedOut = ConcurrentHashMap.newKeySet();	// every id the sketch gave out
+		AtomicInteger duplicates = new AtomicInteger();
+		AtomicInteger added = new AtomicInteger(), removed = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> done = new ArrayList<Future<?>>();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads + 1);
+
+		for (int t = 0; t < nThreads; t++) {
+			int seed = t;
+			done.add(pool.submit(() -> {
+				Random rand = new Random(seed);
+				start.await();
+				for (int i = 0; i < nOps; i++) {
+					int x = rand.nextInt(1000), y = rand.nextInt(1000);
+					int op = rand.nextInt(10);
+					if (op < 4) {
+						int id = sketch.addShape(new Rectangle(x, y, x + rand.nextInt(80), y + rand.nextInt(80), Color.black));
+						if (!handedOut.add(id)) duplicates.incrementAndGet();
+						added.incrementAndGet();
+					}
+					else if (op < 6) {
+						int id = sketch.getId(x, y);
+						if (id >= 0) sketch.moveShape(id, rand.nextInt(21) - 10, rand.nextInt(21) - 10);
+					}
+					else if (op < 7) {
+						int id = sketch.getId(x, y);
+						if (id >= 0) sketch.recolorShape(id, new Color(rand.nextInt()));
+					}
+					else if (op < 8) {
+						int id = sketch.bringToFront(sketch.getId(x, y));
+						if (id >= 0 && !handedOut.add(id)) duplicates.incrementAndGet();
+					}
+					else {
+						if (sketch.removeShape(x, y) >= 0) removed.incrementAndGet();
+					}
+				}
+				return null;
+			}));
+		}
+		// a reader iterating the whole time, like a join or a repaint
+		AtomicInteger reads = new AtomicInteger();
+		Future<?> reader = pool.submit(() -> {
+			start.await();
+			while (!Thread.currentThread().isInterrupted()) {
+				for (Shape s : sketch.getShapes()) s.getColor();
+				reads.incrementAndGet();
+			}
+			return null;
+		});
+
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Future<?> f : done) f.get();
+		long elapsed = System.nanoTime() - begin;
+		reader.cancel(true);
+		pool.shutdown();
+
+		List<String> problems = new ArrayList<String>();
+		if (duplicates.get() > 0) problems.add(duplicates.get() + " ids handed out twice");
+		int expected = added.get() - removed.get();
+		if (sketch.getShapeMap().size() != expected) {
+			problems.add(sketch.getShapeMap().size() + " shapes in the sketch, expected " + expected);
+		}
+		// hit-testing through the index has to match trying every shape from the top down
+		Random rand = new Random(-1);
+		int mismatches = 0;
+		List<Integer> ids = new ArrayList<Integer>(sketch.getShapeMap().keySet());
+		Collections.reverse(ids);
+		for (int i = 0; i < 10000; i++) {
+			int x = rand.nextInt(1200) - 100, y = rand.nextInt(1200) - 100;
+			int expectedId = -1;
+			for (int id : ids) {
+				if (sketch.getShapeFromID(id).contains(x, y)) {
+					expectedId = id;
+					break;
+				}
+			}
+			if (sketch.getId(x, y) != expectedId) mismatches++;
+		}
+		if (mismatches > 0) problems.add(mismatches + " hit-tests disagree with a full scan");
+
+		System.out.println(nThreads + " threads x " + nOps + " ops in " + elapsed / 1000000 + " ms ("
+				+ (long) nThreads * nOps * 1000000000L / elapsed + " ops/s), " + reads.get() + " full iterations, "
+				+ sketch.getShapeMap().size() + " shapes left");
+		if (problems.isEmpty()) {
+			System.out.println("consistent");
+		}
+		else {
+			for (String problem : problems) System.out.println("FAILED: " + problem);
+			System.exit(1);
+		}
+	}
+}
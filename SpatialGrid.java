@@ -0,0 +1,241 @@
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Uniform grid over shape bounding boxes, used by Sketch to find the shapes under a point
+ * without testing every shape in the sketch.
+ * Each cell keeps the ids of the shapes whose bounds touch it, in id (z-)order; shapes covering
+ * too many cells are kept in a separate list instead of being copied into all of them.
+ * Everything is kept in int arrays rather than collections of boxed ids, so a sketch of millions of shapes
+ * doesn't mean millions of objects for the garbage collector: each shape's bounds are in a slot of parallel
+ * arrays, and each cell's ids in an array of its own. Cells are keyed by their coordinates mod 2^16, so cells
+ * four million pixels apart share an array -- harmless, since every id found in one is checked against its bounds.
+ */
+public class SpatialGrid {
+
+    private static final int CELL = 64;             // width and height of a cell, in pixels
+    private static final int MAX_CELLS = 64;        // shapes touching more cells than this go in the large set
+
+    private IntSlotMap slotOf;                      // id -> slot its bounds are in
+    private int[] idAt;                             // per slot: the id (the slot's in use if that id's is this slot)
+    private int[] bx, by, bw, bh;                   // per slot: the bounds the shape was indexed with
+    private int usedSlots = 0;                      // slots handed out so far
+    private int[] freeSlots = new int[16];          // slots of shapes removed, to be used again first
+    private int nFreeSlots = 0;
+    private IntSlotMap cellOf;                      // cell key -> index of its ids
+    private int[][] cellIds;                        // per cell: ids of shapes touching it, ascending
+    private int[] cellSize;                         // per cell: how many of those there are (0 if it's free)
+    private int usedCells = 0;
+    private int[] freeCells = new int[16];          // cells emptied, to be used again first
+    private int nFreeCells = 0;
+    private TreeSet<Integer> large;                 // ids of shapes too big to put in the cells
+
+    public SpatialGrid() {
+        slotOf = new IntSlotMap();
+        idAt = new int[16];
+        bx = new int[16];
+        by = new int[16];
+        bw = new int[16];
+        bh = new int[16];
+        cellOf = new IntSlotMap();
+        cellIds = new int[16][];
+        cellSize = new int[16];
+        large = new TreeSet<Integer>();
+    }
+
+    // indexes a shape under the given bounds, replacing whatever was indexed for that id before
+    public void insert(int id, java.awt.Rectangle box) {
+        remove(id);
+        int slot = nFreeSlots > 0 ? freeSlots[--nFreeSlots] : newSlot();
+        slotOf.put(id, slot);
+        idAt[slot] = id;
+        bx[slot] = box.x;
+        by[slot] = box.y;
+        bw[slot] = box.width;
+        bh[slot] = box.height;
+        if (cellCount(box.x, box.y, box.width, box.height) > MAX_CELLS) {
+            large.add(id);
+            return;
+        }
+        for (int cx = cell(box.x); cx <= cell(box.x + box.width - 1); cx++) {
+            for (int cy = cell(box.y); cy <= cell(box.y + box.height - 1); cy++) {
+                addToCell(key(cx, cy), id);
+            }
+        }
+    }
+
+    // drops a shape from the index (no-op if it isn't there)
+    public void remove(int id) {
+        int slot = slotOf.remove(id);
+        if (slot < 0) return;
+        if (nFreeSlots == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, nFreeSlots * 2);
+        freeSlots[nFreeSlots++] = slot;
+        if (large.remove(id)) return;
+        int x = bx[slot], y = by[slot], w = bw[slot], h = bh[slot];
+        for (int cx = cell(x); cx <= cell(x + w - 1); cx++) {
+            for (int cy = cell(y); cy <= cell(y + h - 1); cy++) {
+                removeFromCell(key(cx, cy), id);
+            }
+        }
+    }
+
+    // forgets every shape
+    public void clear() {
+        slotOf.clear();
+        usedSlots = 0;
+        nFreeSlots = 0;
+        cellOf.clear();
+        Arrays.fill(cellIds, 0, usedCells, null);
+        Arrays.fill(cellSize, 0, usedCells, 0);
+        usedCells = 0;
+        nFreeCells = 0;
+        large.clear();
+    }
+
+    // returns the highest id whose bounds hold (x, y) and that passes hit, or -1 if there isn't one
+    public int topmost(int x, int y, IntPredicate hit) {
+        int best = -1;
+        int c = cellOf.get(key(cell(x), cell(y)));
+        if (c >= 0) {
+            // ids are kept lowest first, so going from the end, the first one hit is the topmost in this cell
+            int[] ids = cellIds[c];
+            for (int i = cellSize[c] - 1; i >= 0; i--) {
+                int id = ids[i];
+                if (contains(slotOf.get(id), x, y) && hit.test(id)) {
+                    best = id;
+                    break;
+                }
+            }
+        }
+        // only large shapes above the best hit so far can change the answer
+        for (int id : large.descendingSet()) {
+            if (id <= best) break;
+            if (contains(slotOf.get(id), x, y) && hit.test(id)) return id;
+        }
+        return best;
+    }
+
+    // returns the ids of the shapes whose bounds overlap the area, lowest (drawn first) first
+    public TreeSet<Integer> overlapping(java.awt.Rectangle area) {
+        TreeSet<Integer> found = new TreeSet<Integer>();
+        if (area.isEmpty()) return found;
+        if (cellCount(area.x, area.y, area.width, area.height) > cellOf.size()) {
+            // the area covers more cells than have anything in them: quicker to check every shape
+            for (int slot = 0; slot < usedSlots; slot++) {
+                if (slotOf.get(idAt[slot]) == slot && intersects(slot, area)) found.add(idAt[slot]);
+            }
+            return found;
+        }
+        for (int cx = cell(area.x); cx <= cell(area.x + area.width - 1); cx++) {
+            for (int cy = cell(area.y); cy <= cell(area.y + area.height - 1); cy++) {
+                int c = cellOf.get(key(cx, cy));
+                if (c < 0) continue;
+                int[] ids = cellIds[c];
+                for (int i = 0; i < cellSize[c]; i++) {
+                    if (intersects(slotOf.get(ids[i]), area)) found.add(ids[i]);
+                }
+            }
+        }
+        for (int id : large) {
+            if (intersects(slotOf.get(id), area)) found.add(id);
+        }
+        return found;
+    }
+
+    // adds the id to the cell's ids, keeping them in order (new shapes have the highest ids, so it's almost
+    // always at the end)
+    private void addToCell(int key, int id) {
+        int c = cellOf.get(key);
+        if (c < 0) {
+            c = nFreeCells > 0 ? freeCells[--nFreeCells] : newCell();
+            cellOf.put(key, c);
+            if (cellIds[c] == null) cellIds[c] = new int[4];
+        }
+        int[] ids = cellIds[c];
+        int n = cellSize[c];
+        if (n == ids.length) ids = cellIds[c] = Arrays.copyOf(ids, n * 2);
+        int i = n;
+        if (n > 0 && ids[n - 1] >= id) {
+            i = Arrays.binarySearch(ids, 0, n, id);
+            if (i >= 0) return;
+            i = -i - 1;
+            System.arraycopy(ids, i, ids, i + 1, n - i);
+        }
+        ids[i] = id;
+        cellSize[c] = n + 1;
+    }
+
+    private void removeFromCell(int key, int id) {
+        int c = cellOf.get(key);
+        if (c < 0) return;
+        int[] ids = cellIds[c];
+        int n = cellSize[c];
+        int i = Arrays.binarySearch(ids, 0, n, id);
+        if (i < 0) return;
+        System.arraycopy(ids, i + 1, ids, i, n - i - 1);
+        cellSize[c] = --n;
+        if (n == 0) {
+            cellOf.remove(key);
+            // (a big array is let go, rather than kept for whichever cell gets it next)
+            if (ids.length > 64) cellIds[c] = null;
+            if (nFreeCells == freeCells.length) freeCells = Arrays.copyOf(freeCells, nFreeCells * 2);
+            freeCells[nFreeCells++] = c;
+        }
+    }
+
+    private int newSlot() {
+        if (usedSlots == idAt.length) {
+            int capacity = usedSlots * 2;
+            idAt = Arrays.copyOf(idAt, capacity);
+            bx = Arrays.copyOf(bx, capacity);
+            by = Arrays.copyOf(by, capacity);
+            bw = Arrays.copyOf(bw, capacity);
+            bh = Arrays.copyOf(bh, capacity);
+        }
+        return usedSlots++;
+    }
+
+    private int newCell() {
+        if (usedCells == cellIds.length) {
+            cellIds = Arrays.copyOf(cellIds, usedCells * 2);
+            cellSize = Arrays.copyOf(cellSize, usedCells * 2);
+        }
+        return usedCells++;
+    }
+
+    // whether the bounds in the slot hold the point (as java.awt.Rectangle.contains)
+    private boolean contains(int slot, int x, int y) {
+        int x0 = bx[slot], y0 = by[slot], w = bw[slot], h = bh[slot];
+        if ((w | h) < 0 || x < x0 || y < y0) return false;
+        w += x0;
+        h += y0;
+        // (each side's end may have overflowed)
+        return (w < x0 || w > x) && (h < y0 || h > y);
+    }
+
+    // whether the bounds in the slot overlap the area (as java.awt.Rectangle.intersects)
+    private boolean intersects(int slot, java.awt.Rectangle area) {
+        int tx = bx[slot], ty = by[slot], tw = bw[slot], th = bh[slot];
+        int rx = area.x, ry = area.y, rw = area.width, rh = area.height;
+        if (rw <= 0 || rh <= 0 || tw <= 0 || th <= 0) return false;
+        rw += rx;
+        rh += ry;
+        tw += tx;
+        th += ty;
+        return (rw < rx || rw > tx) && (rh < ry || rh > ty) && (tw < tx || tw > rx) && (th < ty || th > ry);
+    }
+
+    private static long cellCount(int x, int y, int width, int height) {
+        long w = cell(x + width - 1) - cell(x) + 1;
+        long h = cell(y + height - 1) - cell(y) + 1;
+        return w * h;
+    }
+
+    private static int cell(int coord) {
+        return Math.floorDiv(coord, CELL);
+    }
+
+    private static int key(int cx, int cy) {
+        return (cx << 16) | (cy & 0xffff);
+    }
+}
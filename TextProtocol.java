@@ -0,0 +1,262 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Parser for the text protocol that works straight off the bytes received: no String per line, no String[] of
+ * tokens, and no substrings -- words are matched against the protocol's keywords in place and numbers are read
+ * digit by digit. Commands are dispatched with a switch on the keyword, and colors come from ColorCache.
+ *
+ * One instance per connection (it keeps its place in the line being parsed).
+ */
+public class TextProtocol {
+	// keywords
+	private static final int OTHER = 0, DRAW = 1, MOVE = 2, PRESS = 3, DRAG = 4, RECOLOR = 5, DELETE = 6,
+			JOIN = 7, RESET = 8, BINARY = 9, RECTANGLE = 10, ELLIPSE = 11, SEGMENT = 12, ROOM = 13, REDIRECT = 14,
+			VERSION = 15, RESUME = 16, UNDO = 17, REDO = 18;
+	private static final byte[][] KEYWORDS = {
+			null, bytes("draw"), bytes("move"), bytes("press"), bytes("drag"), bytes("recolor"), bytes("delete"),
+			bytes("join"), bytes("reset"), bytes("binary"), bytes("rectangle"), bytes("ellipse"), bytes("segment"),
+			bytes("room"), bytes("redirect"), bytes("version"), bytes("resume"),
+			bytes("undo"), bytes("redo")
+	};
+	private static final String[] SHAPE_TYPES = { "rectangle", "ellipse", "segment" };
+
+	private ByteBuffer buf;			// holding the line being parsed
+	private int pos, end;			// where we are in it, and where it ends
+
+	/**
+	 * Handles every complete line from a client in the buffer (between position and limit), leaving the position
+	 * at the start of any incomplete line at the end
+	 */
+	public void decodeFromClient(ByteBuffer in, SketchServerCommunicator comm) {
+		while (nextLine(in)) {
+			switch (word()) {
+				case DRAW: {
+					int type = shapeType();
+					int x1 = nextInt(), y1 = nextInt(), x2 = nextInt(), y2 = nextInt();
+					int rgb = nextInt();
+					if (type >= 0) comm.draw(Shape.create(SHAPE_TYPES[type], x1, y1, x2, y2, ColorCache.rgb(rgb)));
+					break;
+				}
+				case MOVE:
+					switch (word()) {
+						case PRESS: {
+							int x = nextInt(), y = nextInt();
+							comm.movePress(x, y);
+							break;
+						}
+						case DRAG: {
+							int dx = nextInt(), dy = nextInt();
+							comm.moveDrag(dx, dy);
+							break;
+						}
+					}
+					break;
+				case RECOLOR: {
+					int x = nextInt(), y = nextInt(), rgb = nextInt();
+					comm.recolor(x, y, rgb);
+					break;
+				}
+				case DELETE: {
+					int x = nextInt(), y = nextInt();
+					comm.delete(x, y);
+					break;
+				}
+				case ROOM:
+					comm.room(name());
+					break;
+				case RESUME: {
+					String name = name();
+					long epoch = nextLong(), version = nextLong();
+					comm.resume(name, epoch, version);
+					break;
+				}
+				case UNDO:
+					comm.undo();
+					break;
+				case REDO:
+					comm.redo();
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Handles every complete line from the server in the buffer, as decodeFromClient does, but stops right after
+	 * a "binary" line (returning true) since whatever follows it is binary
+	 */
+	public boolean decodeFromServer(ByteBuffer in, EditorCommunicator comm) {
+		while (nextLine(in)) {
+			int keyword = word();
+			switch (keyword) {
+				case JOIN:
+				case DRAW: {
+					int id = nextInt();
+					int type = shapeType();
+					int x1 = nextInt(), y1 = nextInt(), x2 = nextInt(), y2 = nextInt();
+					int rgb = nextInt();
+					if (type < 0) break;
+					Shape shape = Shape.create(SHAPE_TYPES[type], x1, y1, x2, y2, ColorCache.rgb(rgb));
+					if (keyword == JOIN) comm.added(id, shape);
+					else comm.drawn(id, shape);
+					break;
+				}
+				case MOVE:
+					if (word() == DRAG) {
+						int id = nextInt(), dx = nextInt(), dy = nextInt();
+						comm.moved(id, dx, dy);
+					}
+					break;
+				case RECOLOR: {
+					int id = nextInt(), rgb = nextInt();
+					comm.recolored(id, rgb);
+					break;
+				}
+				case DELETE:
+					comm.deleted(nextInt());
+					break;
+				case RESET:
+					comm.reset();
+					break;
+				case REDIRECT: {
+					String node = name(), room = name();
+					comm.redirected(node, room);
+					break;
+				}
+				case VERSION: {
+					long epoch = nextLong(), version = nextLong();
+					comm.versioned(epoch, version);
+					break;
+				}
+				case BINARY:
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets up to parse the next complete line in the buffer and moves the buffer past it;
+	 * false if there isn't a complete line left (the buffer is then left at the start of the partial one)
+	 */
+	private boolean nextLine(ByteBuffer in) {
+		int start = in.position(), limit = in.limit();
+		for (int i = start; i < limit; i++) {
+			if (in.get(i) == '\n') {
+				buf = in;
+				pos = start;
+				end = i;
+				if (end > pos && in.get(end - 1) == '\r') end--;
+				in.position(i + 1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void skipSpaces() {
+		while (pos < end && buf.get(pos) == ' ') pos++;
+	}
+
+	/**
+	 * The keyword that's next in the line (OTHER if it's something else, or there's nothing left)
+	 */
+	private int word() {
+		skipSpaces();
+		int start = pos;
+		while (pos < end && buf.get(pos) != ' ') pos++;
+		if (pos == start) return OTHER;
+		// only the keywords starting with the same letter can match
+		switch (buf.get(start)) {
+			case 'b': return matches(start, BINARY);
+			case 'd': return Math.max(matches(start, DRAW), Math.max(matches(start, DRAG), matches(start, DELETE)));
+			case 'e': return matches(start, ELLIPSE);
+			case 'j': return matches(start, JOIN);
+			case 'm': return matches(start, MOVE);
+			case 'p': return matches(start, PRESS);
+			case 'r': return Math.max(Math.max(matches(start, RECOLOR), matches(start, RESET)),
+					Math.max(matches(start, RECTANGLE), Math.max(matches(start, ROOM),
+					Math.max(matches(start, REDIRECT), Math.max(matches(start, RESUME), matches(start, REDO))))));
+			case 's': return matches(start, SEGMENT);
+			case 'u': return matches(start, UNDO);
+			case 'v': return matches(start, VERSION);
+			default: return OTHER;
+		}
+	}
+
+	/**
+	 * The next word as an index into SHAPE_TYPES, or -1 if it isn't one of them (whatever other keyword it may be)
+	 */
+	private int shapeType() {
+		int keyword = word();
+		return keyword >= RECTANGLE && keyword <= SEGMENT ? keyword - RECTANGLE : -1;
+	}
+
+	/**
+	 * The keyword if the word from start to pos is exactly it, otherwise OTHER
+	 */
+	private int matches(int start, int keyword) {
+		byte[] kw = KEYWORDS[keyword];
+		if (pos - start != kw.length) return OTHER;
+		for (int i = 0; i < kw.length; i++) {
+			if (buf.get(start + i) != kw[i]) return OTHER;
+		}
+		return keyword;
+	}
+
+	/**
+	 * The next word in the line, as a string (for the rare commands, like room, that take a name)
+	 */
+	private String name() {
+		skipSpaces();
+		int start = pos;
+		while (pos < end && buf.get(pos) != ' ') pos++;
+		byte[] name = new byte[pos - start];
+		for (int i = 0; i < name.length; i++) name[i] = buf.get(start + i);
+		return new String(name, java.nio.charset.StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The (possibly negative) int that's next in the line
+	 */
+	private int nextInt() {
+		skipSpaces();
+		boolean negative = pos < end && buf.get(pos) == '-';
+		if (negative) pos++;
+		int start = pos;
+		long value = 0;
+		while (pos < end) {
+			int digit = buf.get(pos) - '0';
+			if (digit < 0 || digit > 9) break;
+			value = value * 10 + digit;
+			if (value > 1L + Integer.MAX_VALUE) throw new NumberFormatException("number out of range");
+			pos++;
+		}
+		if (pos == start || (pos < end && buf.get(pos) != ' ')) throw new NumberFormatException("expected a number");
+		if (!negative && value > Integer.MAX_VALUE) throw new NumberFormatException("number out of range");
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * The (possibly negative) long that's next in the line (for the rare fields, like versions, that need one)
+	 */
+	private long nextLong() {
+		skipSpaces();
+		boolean negative = pos < end && buf.get(pos) == '-';
+		if (negative) pos++;
+		int start = pos;
+		long value = 0;
+		while (pos < end) {
+			int digit = buf.get(pos) - '0';
+			if (digit < 0 || digit > 9) break;
+			if (value > (Long.MAX_VALUE - digit) / 10) throw new NumberFormatException("number out of range");
+			value = value * 10 + digit;
+			pos++;
+		}
+		if (pos == start || (pos < end && buf.get(pos) != ' ')) throw new NumberFormatException("expected a number");
+		return negative ? -value : value;
+	}
+
+	private static byte[] bytes(String keyword) {
+		return keyword.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,107 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test of TextProtocol on malformed lines: a draw (or join) whose shape type is some other keyword of the
+ * protocol, or not a keyword at all, has to be ignored -- not dispatched, and not thrown out of the parser (which
+ * would take the client's connection down with it) -- by the server and by the editor alike, with the lines after
+ * it still handled.
+ *
+ * Usage: TextProtocolTest
+ */
+public class TextProtocolTest {
+	// every word the protocol knows, and some it doesn't
+	private static final String[] WORDS = { "draw", "move", "press", "drag", "recolor", "delete", "join", "reset",
+			"binary", "room", "redirect", "version", "resume", "undo", "redo", "circle", "rectangles", "re" };
+	private static final String[] SHAPES = { "rectangle", "ellipse", "segment" };
+
+	/**
+	 * Notes the shapes it's asked to draw, without a server behind it
+	 */
+	private static class DrawingCommunicator extends SketchServerCommunicator {
+		List<String> drawn = new ArrayList<String>();
+
+		DrawingCommunicator() {
+			super(new SketchServer(null));
+		}
+
+		@Override
+		public void draw(Shape shape) {
+			drawn.add(shape.getType());
+		}
+	}
+
+	/**
+	 * Notes the shapes it's sent, without an editor behind it
+	 */
+	private static class DrawnCommunicator extends EditorCommunicator {
+		List<String> drawn = new ArrayList<String>();
+
+		DrawnCommunicator() {
+			super((Editor) null);
+		}
+
+		@Override
+		public void added(int id, Shape shape) {
+			drawn.add(shape.getType());
+		}
+
+		@Override
+		public void drawn(int id, Shape shape) {
+			drawn.add(shape.getType());
+		}
+	}
+
+	public static void main(String[] args) {
+		int failures = 0;
+
+		// from a client: "draw <word> ..." for every word, then every shape type
+		StringBuilder lines = new StringBuilder();
+		for (String word : WORDS) lines.append("draw ").append(word).append(" 1 2 3 4 -16777216\n");
+		for (String shape : SHAPES) lines.append("draw ").append(shape).append(" 1 2 3 4 -16777216\n");
+		DrawingCommunicator server = new DrawingCommunicator();
+		try {
+			new TextProtocol().decodeFromClient(buffer(lines), server);
+			failures += check("server", server.drawn);
+		}
+		catch (RuntimeException e) {
+			System.out.println("server: " + e);
+			failures++;
+		}
+
+		// from the server: the same, as draws and joins
+		lines.setLength(0);
+		for (String word : WORDS) {
+			lines.append("draw 7 ").append(word).append(" 1 2 3 4 -16777216\n");
+			lines.append("join 7 ").append(word).append(" 1 2 3 4 -16777216\n");
+		}
+		for (String shape : SHAPES) lines.append("draw 7 ").append(shape).append(" 1 2 3 4 -16777216\n");
+		DrawnCommunicator editor = new DrawnCommunicator();
+		try {
+			new TextProtocol().decodeFromServer(buffer(lines), editor);
+			failures += check("editor", editor.drawn);
+		}
+		catch (RuntimeException e) {
+			System.out.println("editor: " + e);
+			failures++;
+		}
+
+		System.out.println(failures == 0 ? "ok" : failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * 0 if just the shape types were drawn, in order, otherwise 1 (saying what was)
+	 */
+	private static int check(String side, List<String> drawn) {
+		if (drawn.equals(List.of(SHAPES))) return 0;
+		System.out.println(side + ": drew " + drawn + ", not " + List.of(SHAPES));
+		return 1;
+	}
+
+	private static ByteBuffer buffer(CharSequence lines) {
+		return ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+	}
+}
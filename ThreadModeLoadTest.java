@@ -0,0 +1,170 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Load test comparing the server's platform-thread and virtual-thread communicator modes.
+ * Starts a SketchServer in this JVM on a free port, connects many idle clients (all read from one selector, so the
+ * clients themselves cost no threads), waits for all of them to have joined, reports memory and thread counts,
+ * then times how long each draw takes to come back to every client (each round's draw is told apart by its color).
+ *
+ * The comparison itself is still to be made: the build targets Java 17, which has no virtual threads, so only the
+ * platform half has been run so far. Run "virtual" on Java 21 or later (on older JVMs it just says it can't).
+ *
+ * Usage: ThreadModeLoadTest platform|virtual [clients] [rounds]
+ */
+public class ThreadModeLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "platform";
+		int nClients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		ThreadFactory threads = mode.equals("virtual") ? SketchServer.virtualThreads() : SketchServer.platformThreads();
+		if (threads == null) {
+			System.err.println("virtual threads need Java 21 or later");
+			System.exit(-1);
+		}
+
+		long heapBefore = usedHeap();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long rssBefore = rss();
+
+		ServerSocket listen = new ServerSocket(0, 4096);
+		SketchServer server = new SketchServer(listen, threads);
+		Thread acceptor = new Thread(() -> {
+			try {
+				server.getConnections();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		// Idle clients, all read from the one selector
+		Selector selector = Selector.open();
+		List<SocketChannel> clients = new ArrayList<SocketChannel>();
+		for (int i = 0; i < nClients; i++) {
+			SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", listen.getLocalPort()));
+			ch.configureBlocking(false);
+			ch.register(selector, SelectionKey.OP_READ, new Listener());
+			clients.add(ch);
+		}
+		// The client whose draws are timed (also receives its own broadcasts, like an Editor)
+		Socket drawer = new Socket("localhost", listen.getLocalPort());
+		PrintWriter out = new PrintWriter(drawer.getOutputStream(), true);
+		// Wait for every idle client to have joined (been sent the sketch's version), so none misses the first draw
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		int joined = 0;
+		while (joined < nClients) {
+			joined += read(selector, buf, -1, null);
+		}
+
+		long heapAfter = usedHeap();
+		int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+		long rssAfter = rss();
+
+		// Each round: draw once (in a color of the round's own), then wait for every idle client to see that draw
+		// echoed -- not just any line, since clients are also sent the sketch's version, and shapes, on joining
+		long[] latencies = new long[rounds];
+		for (int r = 0; r < rounds; r++) {
+			String color = Integer.toString(-16777216 + r);
+			long start = System.nanoTime();
+			out.println("draw rectangle 10 10 20 20 " + color);
+			int heard = 0;
+			while (heard < nClients) {
+				heard += read(selector, buf, r, color);
+			}
+			latencies[r] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+
+		System.out.println("mode " + mode + ", " + nClients + " clients, " + rounds + " broadcasts");
+		System.out.println("heap used    +" + (heapAfter - heapBefore) / 1024 + " KB ("
+				+ (heapAfter - heapBefore) / nClients + " bytes per client)");
+		System.out.println("rss          " + (rssBefore < 0 ? "n/a" : "+" + (rssAfter - rssBefore) / 1024 + " KB"));
+		System.out.println("live threads " + threadsBefore + " -> " + threadsAfter + " (platform threads only)");
+		System.out.println("fan-out to all clients: p50 " + latencies[rounds / 2] / 1000 + " us, p99 "
+				+ latencies[Math.min(rounds - 1, rounds * 99 / 100)] / 1000 + " us, max "
+				+ latencies[rounds - 1] / 1000 + " us");
+
+		for (SocketChannel ch : clients) ch.close();
+		drawer.close();
+	}
+
+	/**
+	 * Reads what the idle clients have been sent, returning how many of them have now heard the round's draw
+	 * (echoed in the round's color) -- or, for round -1, the sketch's version, sent on joining
+	 */
+	private static int read(Selector selector, ByteBuffer buf, int r, String color) throws IOException {
+		int heard = 0;
+		selector.select();
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			buf.clear();
+			((SocketChannel) key.channel()).read(buf);
+			Listener listener = (Listener) key.attachment();
+			for (int i = 0; i < buf.position(); i++) {
+				if (listener.heard(buf.get(i), r, color)) heard++;
+			}
+		}
+		return heard;
+	}
+
+	/**
+	 * One idle client's line so far, and the last round in which it heard what it was waiting for
+	 */
+	private static class Listener {
+		StringBuilder line = new StringBuilder();
+		int round = -2;
+
+		/**
+		 * Takes the next byte the client's been sent: true if it ends the first line of the round to be what the
+		 * round waits for (see read)
+		 */
+		boolean heard(byte b, int r, String color) {
+			if (b != '\n') {
+				line.append((char) b);
+				return false;
+			}
+			boolean heard = round < r && (r < 0 ? line.indexOf("version ") == 0
+					: line.indexOf("draw ") == 0 && line.toString().endsWith(" " + color));
+			line.setLength(0);
+			if (heard) round = r;
+			return heard;
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Resident set size in bytes (includes thread stacks, which the heap number doesn't), or -1 if not on Linux
+	 */
+	private static long rss() {
+		try (BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		}
+		catch (IOException e) {
+			// not on Linux
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Recording of everything clients send the server, as it's read, so a session can be played back against another
+ * server later (see TraceReplay) -- to turn what happened in production into a benchmark that can be run again.
+ *
+ * A trace is the magic number and the wall-clock time (ms) recording started, then records, each a type byte and:
+ *   DATA connection time length bytes    bytes read from a connection (whatever one read returned, in whichever
+ *                                        protocol the client speaks)
+ *   CLOSE connection time                the connection went away
+ *   LOADED room nextId length snapshot   a room was loaded (with the shapes it was restored with, if any)
+ *   STATE room nextId length snapshot    a room as it was when it was evicted, or recording stopped
+ * Connections are numbered from 0 in the order they first send something; times are microseconds since
+ * recording started; numbers are varints and names strings as in BinaryProtocol; a snapshot is the room's shapes
+ * as binary join frames (SketchRoom.snapshot).
+ *
+ * Records are written as they're made, through a buffer, by whichever thread made them; recording stops (without
+ * taking the server down) if the file can't be written. While recording, the server handles the reads of clients
+ * in the same room one at a time, each as it's recorded (see SketchRoom.getReadOrder), so the trace has them in
+ * the order they were handled -- which decides what they do to the room (who gets to a shape first, say) -- at the
+ * cost of readers in a room waiting on each other; reads in different rooms can't affect each other, so they're
+ * handled at once, and recorded in whichever order they came. A read is ordered with the room the client was in
+ * when it was read, so anything after a room request in the same read is ordered with the room it left.
+ * Drags the server sums over its drag window are applied by its timer, though, not a read, so with a drag window
+ * the trace can't pin down exactly when they went in.
+ */
+public class TraceRecorder implements Closeable {
+	public static final int MAGIC = 0x534b5431;		// "SKT1"
+	public static final byte DATA = 1, CLOSE = 2, LOADED = 3, STATE = 4;
+
+	private DataOutputStream out;
+	private long start = System.nanoTime();
+	private AtomicInteger nextConnection = new AtomicInteger();
+	private Set<Integer> open = new HashSet<Integer>();		// connections that have sent something (guarded by this)
+	private ByteArrayOutputStream record = new ByteArrayOutputStream();	// being put together (guarded by this)
+	private boolean closed = false;							// (guarded by this)
+	private IOException failure;							// why writing failed, stopping recording (null if it
+															// hasn't; guarded by this)
+	private final Lock lobby = new ReentrantLock();			// held from recording a read by a connection in no room
+															// to its being handled
+
+	public TraceRecorder(Path file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * A number for a new connection's records
+	 */
+	public int newConnection() {
+		return nextConnection.getAndIncrement();
+	}
+
+	/**
+	 * Records bytes just read from the connection, and has them handled, before any other read in the room the
+	 * connection is in (as given by the supplier, null for none) can be recorded
+	 */
+	public void read(int connection, Supplier<SketchRoom> in, byte[] data, int offset, int length, Runnable handle) {
+		while (true) {
+			SketchRoom room = in.get();
+			Lock order = room != null ? room.getReadOrder() : lobby;
+			order.lock();
+			try {
+				if (in.get() != room) continue;		// moved meanwhile
+				read(connection, data, offset, length);
+				handle.run();
+				return;
+			}
+			finally {
+				order.unlock();
+			}
+		}
+	}
+
+	private void read(int connection, byte[] data, int offset, int length) {
+		IOException failed;
+		synchronized (this) {
+			if (closed) return;
+			open.add(connection);
+			begin(DATA);
+			BinaryProtocol.writeVarint(record, connection);
+			BinaryProtocol.writeVarlong(record, now());
+			BinaryProtocol.writeVarint(record, length);
+			record.write(data, offset, length);
+			failed = end();
+		}
+		if (failed != null) stopped(failed);
+	}
+
+	/**
+	 * Records that the connection has gone (if it ever sent anything; more than once is fine)
+	 */
+	public void closed(int connection) {
+		IOException failed;
+		synchronized (this) {
+			if (closed || !open.remove(connection)) return;
+			begin(CLOSE);
+			BinaryProtocol.writeVarint(record, connection);
+			BinaryProtocol.writeVarlong(record, now());
+			failed = end();
+		}
+		if (failed != null) stopped(failed);
+	}
+
+	/**
+	 * Records a room just loaded, with whatever shapes it has (from its log) to start with
+	 */
+	public void loaded(SketchRoom room) {
+		room(LOADED, room);
+	}
+
+	/**
+	 * Records the room's shapes as they are now
+	 */
+	public void state(SketchRoom room) {
+		room(STATE, room);
+	}
+
+	private void room(byte type, SketchRoom room) {
+		Sketch sketch = room.getSketch();
+		byte[] snapshot;
+		int nextId;
+		// (holding off changes, so the shapes and the next id go together)
+		sketch.lockForUpdate();
+		try {
+			snapshot = room.snapshot().binary();
+			nextId = sketch.getNextId();
+		}
+		finally {
+			sketch.unlockForUpdate();
+		}
+		IOException failed;
+		synchronized (this) {
+			if (closed) return;
+			begin(type);
+			BinaryProtocol.writeString(record, room.getName());
+			BinaryProtocol.writeVarint(record, nextId);
+			BinaryProtocol.writeVarint(record, snapshot.length);
+			record.write(snapshot, 0, snapshot.length);
+			failed = end();
+		}
+		if (failed != null) stopped(failed);
+	}
+
+	private long now() {
+		return (System.nanoTime() - start) / 1000;
+	}
+
+	private void begin(byte type) {
+		record.reset();
+		record.write(type);
+	}
+
+	/**
+	 * Writes the record put together since begin; if that fails, stops recording, returning why (to be reported,
+	 * once the recorder's no longer held, by stopped) -- otherwise null
+	 */
+	private IOException end() {
+		try {
+			record.writeTo(out);
+			return null;
+		}
+		catch (IOException e) {
+			closed = true;
+			failure = e;
+			return e;
+		}
+	}
+
+	/**
+	 * Reports that recording stopped, writing the trace having failed
+	 */
+	private void stopped(IOException e) {
+		e.printStackTrace();
+		System.out.println("recording stopped: the trace couldn't be written");
+	}
+
+	/**
+	 * Closes the trace (letting go of the file, though nothing more is written to it, if writing it failed)
+	 */
+	public synchronized void close() throws IOException {
+		if (closed && out == null) return;
+		closed = true;
+		DataOutputStream closing = out;
+		out = null;
+		try {
+			closing.close();
+		}
+		catch (IOException e) {
+			if (failure == null) throw e;
+			// (already reported)
+		}
+	}
+}
@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a trace recorded by a server run with -Dsketch.record (see TraceRecorder) back into a fresh server, started
+ * in this JVM, then checks the rooms ended up as they did when the trace was recorded, and reports how the server
+ * coped.
+ *
+ * Each recorded connection is opened when it first sent something, and sent the same bytes it sent then, in the
+ * same order, at the same times since the start (scaled by the speed) -- or, at max, as fast as the server takes
+ * them. What the server sends back is read and thrown away, as a client would read it. Rooms that were restored
+ * with shapes in them are set up with those shapes (and the same next id) before anything is sent.
+ *
+ * Each connection's requests are handled in order, but requests on different connections may be handled in
+ * another order than they were -- more so the faster the replay -- and anything that depends on the order
+ * (two clients pressing the same shape, say) may then end up differently; so a room that doesn't match isn't
+ * necessarily a bug, but it's worth a look. With -Dreplay.lockstep=true, each read is sent only once the server
+ * has handled the one before, so they're handled in the order they were recorded, and the rooms should match --
+ * as long as the server being recorded had no drag window (-Dsketch.dragWindow=0), since its timer decides
+ * when summed drags go in (see TraceRecorder). That's slower, of course, so it's for checking, not for timing.
+ *
+ * Reports the replay's throughput (requests and bytes a second), the server's fan-out latency (from a change
+ * being broadcast to its being written to each client) and hit test times, how far behind the trace's times
+ * the replay fell, and, for each room recorded at the end, whether the replayed room's shapes match.
+ *
+ * Usage: TraceReplay trace [speed]
+ * speed: 1 (as recorded, the default), a multiple of that (2 for twice as fast, 0.5 for half), or max.
+ * System properties: replay.mode (threads|nio: how the fresh server serves clients; threads by default),
+ * replay.lockstep (see above), and sketch.queue, sketch.slowClients, sketch.dragWindow, sketch.flushDelay and sketch.store, as for SketchServer.
+ */
+public class TraceReplay {
+	private List<Event> events = new ArrayList<Event>();				// what connections sent, in order
+	private Map<String, Room> loaded = new LinkedHashMap<String, Room>();	// rooms as they were loaded
+	private Map<String, Room> states = new LinkedHashMap<String, Room>();	// rooms as they ended up
+	private long recordedAt;												// when recording started (ms)
+
+	/**
+	 * Bytes a connection sent (or, with no data, its going away), and when, in microseconds since the start
+	 */
+	private static class Event {
+		int connection;
+		long at;
+		byte[] data;
+	}
+
+	/**
+	 * A room's shapes, by id, and the id it would give the next shape
+	 */
+	private static class Room {
+		Map<Integer, Shape> shapes = new TreeMap<Integer, Shape>();
+		int nextId;
+	}
+
+	/**
+	 * Collects the join frames of a snapshot into a room
+	 */
+	private static class Collector extends EditorCommunicator {
+		private Room room;
+
+		Collector(Room room) {
+			super((Editor) null);
+			this.room = room;
+		}
+
+		@Override
+		public void added(int id, Shape shape) {
+			room.shapes.put(id, shape);
+		}
+	}
+
+	/**
+	 * Reads the trace (stopping at a record cut off partway, as the last one will be if the server went down
+	 * without finishing the recording)
+	 */
+	public void read(String file) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file)));
+		if (in.remaining() < 12 || in.getInt() != TraceRecorder.MAGIC) throw new IOException(file + " isn't a trace");
+		recordedAt = in.getLong();
+		try {
+			while (in.hasRemaining()) {
+				byte type = in.get();
+				if (type == TraceRecorder.DATA || type == TraceRecorder.CLOSE) {
+					Event event = new Event();
+					event.connection = BinaryProtocol.readVarint(in);
+					event.at = BinaryProtocol.readVarlong(in);
+					if (type == TraceRecorder.DATA) {
+						event.data = new byte[BinaryProtocol.readVarint(in)];
+						in.get(event.data);
+					}
+					events.add(event);
+				}
+				else if (type == TraceRecorder.LOADED || type == TraceRecorder.STATE) {
+					String name = BinaryProtocol.readString(in);
+					Room room = new Room();
+					room.nextId = BinaryProtocol.readVarint(in);
+					int length = BinaryProtocol.readVarint(in);
+					if (length > in.remaining()) throw new BufferUnderflowException();
+					ByteBuffer snapshot = in.slice().limit(length);
+					in.position(in.position() + length);
+					BinaryProtocol.decodeFromServer(snapshot, new Collector(room));
+					if (type == TraceRecorder.LOADED) loaded.putIfAbsent(name, room);
+					else states.put(name, room);
+				}
+				else {
+					throw new IOException("unknown record type " + type);
+				}
+			}
+		}
+		catch (BufferUnderflowException e) {
+			System.out.println("trace cut off after " + events.size() + " records");
+		}
+	}
+
+	/**
+	 * Drains what the server sends every connection, on its own thread
+	 */
+	private static class Reader extends Thread {
+		final Selector selector = Selector.open();
+		final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+		volatile long lastRead = System.nanoTime();
+		volatile long bytes;
+
+		Reader() throws IOException {
+			super("replay reader");
+			setDaemon(true);
+		}
+
+		/**
+		 * Starts reading the connection (registered on the reader's own thread)
+		 */
+		void add(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		public void run() {
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+			try {
+				while (true) {
+					selector.select();
+					SocketChannel channel;
+					while ((channel = pending.poll()) != null) {
+						if (channel.isOpen()) channel.register(selector, SelectionKey.OP_READ);
+					}
+					for (SelectionKey key : selector.selectedKeys()) {
+						buf.clear();
+						int n;
+						try {
+							n = ((SocketChannel) key.channel()).read(buf);
+						}
+						catch (IOException e) {
+							n = -1;
+						}
+						if (n < 0) key.cancel();
+						else bytes += n;
+						lastRead = System.nanoTime();
+					}
+					selector.selectedKeys().clear();
+				}
+			}
+			catch (IOException | ClosedSelectorException e) {
+				// done
+			}
+		}
+	}
+
+	/**
+	 * Replays the trace into a fresh server at the speed (0 for as fast as it'll go), and reports
+	 */
+	public void replay(double speed) throws Exception {
+		String mode = System.getProperty("replay.mode", "threads");
+		boolean lockstep = Boolean.getBoolean("replay.lockstep");
+		ServerSocket listen;
+		if (mode.equals("nio")) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(0), 4096);
+			listen = channel.socket();
+		}
+		else {
+			listen = new ServerSocket(0, 4096);
+		}
+		SketchServer server = new SketchServer(listen);
+		int port = listen.getLocalPort();
+		server.setQueueCapacity(Integer.getInteger("sketch.queue", server.getQueueCapacity()));
+		server.setDragWindow(Integer.getInteger("sketch.dragWindow", server.getDragWindow()));
+		server.setFlushDelay(Integer.getInteger("sketch.flushDelay", server.getFlushDelay()));
+		server.setStore(ShapeStore.Kind.valueOf(System.getProperty("sketch.store", "heap").toUpperCase()));
+		String policy = System.getProperty("sketch.slowClients");
+		if (policy != null) server.setSlowClientPolicy(SketchServer.SlowClientPolicy.valueOf(policy.toUpperCase()));
+
+		// the rooms as they were when the recording found them
+		for (Map.Entry<String, Room> entry : loaded.entrySet()) {
+			Sketch sketch = server.openRoom(entry.getKey()).getSketch();
+			for (Map.Entry<Integer, Shape> shape : entry.getValue().shapes.entrySet()) {
+				sketch.addShape(shape.getKey(), shape.getValue());
+			}
+			sketch.advanceNextId(entry.getValue().nextId);
+		}
+
+		Thread acceptor = new Thread(() -> {
+			try {
+				if (mode.equals("nio")) new SketchNioServer(server, listen.getChannel(), 1).getConnections();
+				else server.getConnections();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Reader reader = new Reader();
+		reader.start();
+
+		// send each connection's bytes when they're due
+		Map<Integer, SocketChannel> connections = new HashMap<Integer, SocketChannel>();
+		Histogram behind = new Histogram();
+		long sent = 0;
+		long start = System.nanoTime();
+		for (Event event : events) {
+			long due = speed > 0 ? start + (long) (event.at * 1000 / speed) : start;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+			behind.record(System.nanoTime() - due);
+			SocketChannel channel = connections.get(event.connection);
+			if (event.data == null) {
+				if (channel != null) channel.close();
+				connections.remove(event.connection);
+				continue;
+			}
+			if (channel == null) {
+				channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+				channel.configureBlocking(false);
+				connections.put(event.connection, channel);
+				reader.add(channel);
+			}
+			ByteBuffer data = ByteBuffer.wrap(event.data);
+			while (data.hasRemaining()) {
+				if (channel.write(data) == 0) LockSupport.parkNanos(100000);
+			}
+			sent += event.data.length;
+			if (lockstep) {
+				// wait for the server to have handled it (it counts bytes once it has), so the next connection's
+				// bytes can't overtake it
+				while (server.getMetrics().getBytesReceived() < sent) Thread.yield();
+			}
+		}
+		long replayed = System.nanoTime() - start;
+
+		// let the server finish with what it's been sent (everything read, and nothing more to send)
+		long deadline = System.nanoTime() + 30000000000L;
+		while (server.getMetrics().getBytesReceived() < sent && System.nanoTime() < deadline) Thread.sleep(10);
+		while (System.nanoTime() - reader.lastRead < 500000000L && System.nanoTime() < deadline) Thread.sleep(50);
+		long settled = System.nanoTime() - start;
+
+		report(server, speed, replayed, settled, sent, reader.bytes, behind.snapshot());
+		for (SocketChannel channel : connections.values()) channel.close();
+		reader.selector.close();
+	}
+
+	private void report(SketchServer server, double speed, long replayed, long settled, long sent, long received,
+			Histogram.Snapshot behind) {
+		long recorded = events.isEmpty() ? 0 : events.get(events.size() - 1).at * 1000;
+		long requests = 0;
+		for (long count : server.getMetrics().getMessagesReceived().values()) requests += count;
+		Set<Integer> connections = new HashSet<Integer>();
+		for (Event event : events) connections.add(event.connection);
+		double seconds = Math.max(replayed, 1) / 1e9;
+
+		System.out.println("trace      recorded " + new Date(recordedAt) + ": " + connections.size() + " connections, "
+				+ events.size() + " reads, " + String.format("%.1f", recorded / 1e9) + " s");
+		System.out.println(String.format("replay     %s: %.1f s (%.1fx), settled after %.1f s",
+				speed > 0 ? speed + "x" : "max", seconds, recorded / 1e9 / seconds, settled / 1e9));
+		System.out.println(String.format("requests   %d (%.0f/s), %d bytes in (%.0f/s), %d bytes out",
+				requests, requests / seconds, sent, sent / seconds, received));
+		System.out.println("fan-out    " + percentiles(server.getMetrics().getFanout().snapshot())
+				+ "  (change broadcast to written to each client)");
+		System.out.println("hit tests  " + percentiles(server.getMetrics().getHitTests().snapshot()));
+		if (speed > 0) System.out.println("behind     " + percentiles(behind) + "  (reads sent later than the trace says)");
+
+		if (states.isEmpty()) {
+			System.out.println("the trace has no final state to check against (the server didn't stop recording)");
+		}
+		for (Map.Entry<String, Room> entry : states.entrySet()) {
+			System.out.println("room " + entry.getKey() + ": " + compare(entry.getValue(), server.getRoom(entry.getKey())));
+		}
+	}
+
+	/**
+	 * How the replayed room's shapes compare to the recorded room's
+	 */
+	private static String compare(Room recorded, SketchRoom replayed) {
+		Map<Integer, Shape> shapes = replayed != null ? replayed.getSketch().getShapeMap() : Map.of();
+		int missing = 0, extra = 0, different = 0;
+		for (Map.Entry<Integer, Shape> entry : recorded.shapes.entrySet()) {
+			Shape shape = shapes.get(entry.getKey());
+			if (shape == null) missing++;
+			else if (!shape.toString().equals(entry.getValue().toString())) different++;
+		}
+		for (Integer id : shapes.keySet()) {
+			if (!recorded.shapes.containsKey(id)) extra++;
+		}
+		if (missing == 0 && extra == 0 && different == 0) return "matches (" + shapes.size() + " shapes)";
+		return "differs: " + missing + " of its " + recorded.shapes.size() + " shapes missing, " + different
+				+ " different, " + extra + " extra";
+	}
+
+	private static String percentiles(Histogram.Snapshot s) {
+		return "p50 " + micros(s.getValueAtPercentile(50)) + ", p99 " + micros(s.getValueAtPercentile(99)) + ", p99.9 "
+				+ micros(s.getValueAtPercentile(99.9)) + ", max " + micros(s.getMax());
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.0f us", nanos / 1e3);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: TraceReplay trace [speed|max]");
+			System.exit(-1);
+		}
+		double speed = args.length < 2 ? 1 : args[1].equals("max") ? 0 : Double.parseDouble(args[1]);
+		TraceReplay replay = new TraceReplay();
+		replay.read(args[0]);
+		replay.replay(speed);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,246 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * One client's undo and redo history, for SketchServerCommunicator: the changes it has made in the room it's in,
+ * each kept as what it takes to undo (and redo) it, so that undoing is making -- and broadcasting -- one change:
+ * deleting a shape it drew, drawing back one it deleted (under its old id, so it's back where it was among the
+ * others), recoloring one back, or moving one back.
+ *
+ * A move is a press and every drag of the shape after it, up to the client's next request (the server isn't told
+ * when the mouse is released): the drags are summed into the one entry as they're applied, however many there are.
+ *
+ * The history is kept within a memory budget. Each entry is counted at an estimate of what it takes on the heap
+ * (more while it holds a shape: one deleted, or drawn and since undone), and the oldest are forgotten to stay under.
+ *
+ * Only this client's changes are in it, but others can change the same shapes meanwhile. A shape brought to the
+ * front, by anyone, is followed to its new id (see SketchRoom.currentId); a move is undone by moving the shape
+ * back by as much, from wherever it is now; and an entry whose shape has since gone is dropped, undoing the one
+ * before it instead.
+ *
+ * Used under the room's sketch's update lock, like the changes it records.
+ */
+public class UndoHistory {
+	public static final int BUDGET = 16 * 1024;		// bytes of history kept per client, by default
+	private static final int ENTRY = 48;			// estimated bytes an entry takes (object, fields, deque slot)
+	private static final int SHAPE = 40;			// and a shape copied into one
+
+	private static final byte DRAW = 0, DELETE = 1, RECOLOR = 2, MOVE = 3;
+
+	/**
+	 * A change, as what it takes to undo and redo it
+	 */
+	private static class Edit {
+		byte kind;
+		int id;				// the shape's id, as of when the entry was last used
+		Shape shape;		// a copy of the shape while it's not in the sketch (drawn and undone, or deleted)
+		int from, to;		// for recolor: the colors before and after
+		int dx, dy;			// for move: how far, in all
+
+		Edit(byte kind, int id) {
+			this.kind = kind;
+			this.id = id;
+		}
+
+		int size() {
+			return shape != null ? ENTRY + SHAPE : ENTRY;
+		}
+	}
+
+	private int budget;											// most bytes to keep (0 to keep nothing)
+	private Deque<Edit> undo = new ArrayDeque<Edit>();			// latest first
+	private Deque<Edit> redo = new ArrayDeque<Edit>();			// latest undone first
+	private int size;											// estimated bytes in both
+	private int moving = -1;									// the shape being moved (-1 if none)
+	private Edit move;											// its entry, once it's been dragged
+
+	public UndoHistory(int budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Notes that the client drew a shape
+	 */
+	public void drawn(int id) {
+		push(new Edit(DRAW, id));
+	}
+
+	/**
+	 * Notes that the client is about to delete a shape (before it's taken out of the sketch, as the shape may be
+	 * a view of the store's)
+	 */
+	public void deleting(int id, Shape shape) {
+		if (shape == null) return;
+		Edit edit = new Edit(DELETE, id);
+		edit.shape = copy(shape);
+		push(edit);
+	}
+
+	/**
+	 * Notes that the client recolored a shape
+	 */
+	public void recolored(int id, int from, int to) {
+		Edit edit = new Edit(RECOLOR, id);
+		edit.from = from;
+		edit.to = to;
+		push(edit);
+	}
+
+	/**
+	 * Notes that the client pressed a shape (-1 for none), starting a move of it
+	 */
+	public void pressed(int id) {
+		end();
+		moving = id;
+	}
+
+	/**
+	 * Notes that the client dragged the shape it's moving, adding to the move's entry
+	 */
+	public void dragged(int id, int dx, int dy) {
+		if (id != moving || budget <= 0) return;
+		if (move == null) {
+			Edit edit = new Edit(MOVE, id);
+			push(edit);
+			// (pushing ends any move: this one starts now)
+			moving = id;
+			move = edit;
+		}
+		move.dx += dx;
+		move.dy += dy;
+	}
+
+	/**
+	 * Undoes the client's latest change that can still be undone, broadcasting it in the room, and returns
+	 * whether there was one
+	 */
+	public boolean undo(SketchRoom room) {
+		return step(room, undo, redo, false);
+	}
+
+	/**
+	 * Makes the client's latest undone change again, broadcasting it in the room, and returns whether there was one
+	 * (there isn't once it's made any other change since)
+	 */
+	public boolean redo(SketchRoom room) {
+		return step(room, redo, undo, true);
+	}
+
+	/**
+	 * Forgets everything (the client has left the room, whose shapes it's all about)
+	 */
+	public void clear() {
+		end();
+		undo.clear();
+		redo.clear();
+		size = 0;
+	}
+
+	/**
+	 * Pops entries off one stack until one can be applied (dropping those that can't), applies it, and pushes it
+	 * onto the other
+	 */
+	private boolean step(SketchRoom room, Deque<Edit> from, Deque<Edit> to, boolean forward) {
+		end();
+		Edit edit;
+		while ((edit = from.poll()) != null) {
+			size -= edit.size();
+			if (apply(room, edit, forward)) {
+				to.push(edit);
+				size += edit.size();
+				trim();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Makes the change the entry is (forward) or undoes it, returning whether its shape was there to change
+	 */
+	private boolean apply(SketchRoom room, Edit edit, boolean forward) {
+		switch (edit.kind) {
+			case DRAW:
+				return forward ? restore(room, edit) : remove(room, edit);
+			case DELETE:
+				return forward ? remove(room, edit) : restore(room, edit);
+		}
+		Sketch sketch = room.getSketch();
+		int id = room.currentId(edit.id);
+		if (sketch.getShapeFromID(id) == null) return false;
+		edit.id = id;
+		if (edit.kind == RECOLOR) {
+			int rgb = forward ? edit.to : edit.from;
+			sketch.recolorShape(id, ColorCache.argb(rgb));
+			room.broadcast(Message.recolor(id, rgb));
+		}
+		else {
+			int dx = forward ? edit.dx : -edit.dx, dy = forward ? edit.dy : -edit.dy;
+			sketch.moveShape(id, dx, dy);
+			room.broadcast(Message.moveDrag(id, dx, dy));
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the entry's shape out of the sketch, keeping a copy of it as it is now
+	 */
+	private boolean remove(SketchRoom room, Edit edit) {
+		Sketch sketch = room.getSketch();
+		int id = room.currentId(edit.id);
+		Shape shape = sketch.getShapeFromID(id);
+		if (shape == null) return false;
+		edit.id = id;
+		edit.shape = copy(shape);
+		sketch.removeShapeByID(id);
+		room.broadcast(Message.delete(id));
+		return true;
+	}
+
+	/**
+	 * Puts the entry's shape back in the sketch under the id it had (ids are never handed out twice, so it's
+	 * free, and the shape goes back to the same place among the others)
+	 */
+	private boolean restore(SketchRoom room, Edit edit) {
+		Sketch sketch = room.getSketch();
+		if (edit.shape == null || sketch.getShapeFromID(edit.id) != null) return false;
+		sketch.addShape(edit.id, edit.shape);
+		room.broadcast(Message.draw(edit.id, edit.shape));
+		edit.shape = null;
+		return true;
+	}
+
+	/**
+	 * Adds a new change: it's the latest, nothing undone can be redone after it, and the move going on is over
+	 */
+	private void push(Edit edit) {
+		end();
+		if (budget <= 0) return;
+		for (Edit undone : redo) size -= undone.size();
+		redo.clear();
+		undo.push(edit);
+		size += edit.size();
+		trim();
+	}
+
+	/**
+	 * Ends the move going on, if there is one
+	 */
+	private void end() {
+		moving = -1;
+		move = null;
+	}
+
+	/**
+	 * Forgets the oldest changes, then the furthest undone, until the history is within its budget
+	 */
+	private void trim() {
+		while (size > budget && !undo.isEmpty()) size -= undo.removeLast().size();
+		while (size > budget && !redo.isEmpty()) size -= redo.removeLast().size();
+	}
+
+	private static Shape copy(Shape shape) {
+		return Shape.create(shape.getType(), shape.getX1(), shape.getY1(), shape.getX2(), shape.getY2(),
+				shape.getColor());
+	}
+}
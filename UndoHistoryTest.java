@@ -0,0 +1,218 @@
+import java.util.List;
+
+/**
+ * Test of UndoHistory: undoing and redoing each kind of change (a draw, a delete, a recolor, and a move summed
+ * from its drags); undoing after another client has brought the shape to the front (so it has a new id) or deleted
+ * it; and forgetting the oldest changes to stay within the budget. Changes are made to a room as a client's
+ * communicator makes them (under the sketch's update lock, noting each in the client's history).
+ *
+ * Usage: UndoHistoryTest
+ */
+public class UndoHistoryTest {
+	private static final int BLACK = 0xff000000, RED = 0xffff0000;
+	private static int failures = 0;
+
+	/**
+	 * A client making changes in the room, with its own history
+	 */
+	private static class Client {
+		SketchRoom room;
+		Sketch sketch;
+		UndoHistory history;
+
+		Client(SketchRoom room, int budget) {
+			this.room = room;
+			sketch = room.getSketch();
+			history = new UndoHistory(budget);
+		}
+
+		int draw(int x, int y) {
+			sketch.lockForUpdate();
+			try {
+				Shape shape = Shape.create("rectangle", x, y, x + 10, y + 10, ColorCache.argb(BLACK));
+				int id = sketch.addShape(shape);
+				room.broadcast(Message.draw(id, shape));
+				history.drawn(id);
+				return id;
+			}
+			finally {
+				sketch.unlockForUpdate();
+			}
+		}
+
+		void delete(int id) {
+			sketch.lockForUpdate();
+			try {
+				history.deleting(id, sketch.getShapeFromID(id));
+				sketch.removeShapeByID(id);
+				room.broadcast(Message.delete(id));
+			}
+			finally {
+				sketch.unlockForUpdate();
+			}
+		}
+
+		void recolor(int id, int rgb) {
+			sketch.lockForUpdate();
+			try {
+				int from = sketch.getShapeFromID(id).getColor().getRGB();
+				sketch.recolorShape(id, ColorCache.argb(rgb));
+				room.broadcast(Message.recolor(id, rgb));
+				history.recolored(id, from, rgb);
+			}
+			finally {
+				sketch.unlockForUpdate();
+			}
+		}
+
+		/**
+		 * Presses the shape, then drags it by each step in turn
+		 */
+		void move(int id, int... steps) {
+			sketch.lockForUpdate();
+			try {
+				history.pressed(id);
+				for (int i = 0; i < steps.length; i += 2) {
+					sketch.moveShape(id, steps[i], steps[i + 1]);
+					room.broadcast(Message.moveDrag(id, steps[i], steps[i + 1]));
+					history.dragged(id, steps[i], steps[i + 1]);
+				}
+			}
+			finally {
+				sketch.unlockForUpdate();
+			}
+		}
+
+		/**
+		 * Brings the shape to the front, as pressing it does, returning its new id
+		 */
+		int toFront(int id) {
+			sketch.lockForUpdate();
+			try {
+				int to = sketch.bringToFront(id);
+				room.renamed(id, to);
+				history.pressed(to);
+				return to;
+			}
+			finally {
+				sketch.unlockForUpdate();
+			}
+		}
+
+		boolean undo() {
+			sketch.lockForUpdate();
+			try {
+				return history.undo(room);
+			}
+			finally {
+				sketch.unlockForUpdate();
+			}
+		}
+
+		boolean redo() {
+			sketch.lockForUpdate();
+			try {
+				return history.redo(room);
+			}
+			finally {
+				sketch.unlockForUpdate();
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		// a draw
+		Client client = new Client(new SketchRoom("test"), UndoHistory.BUDGET);
+		int drawn = client.draw(0, 0);
+		check("draw undone", client.undo() && at(client, drawn) == null);
+		check("draw redone, under its id", client.redo() && at(client, drawn) != null);
+		check("nothing more to redo", !client.redo());
+
+		// a delete
+		client.recolor(drawn, RED);
+		client.delete(drawn);
+		check("delete undone", client.undo() && rgb(client, drawn) == RED);
+		check("delete redone", client.redo() && at(client, drawn) == null);
+		client.undo();
+
+		// a recolor
+		check("recolor undone", client.undo() && rgb(client, drawn) == BLACK);
+		check("recolor redone", client.redo() && rgb(client, drawn) == RED);
+
+		// a move, in a few drags (and another after it)
+		client.move(drawn, 5, 0, 5, 5, -2, 10);
+		client.move(drawn, 100, 100);
+		check("later move undone", client.undo() && x(client, drawn) == 8);
+		check("summed move undone at once", client.undo() && x(client, drawn) == 0 && y(client, drawn) == 0);
+		check("summed move redone", client.redo() && x(client, drawn) == 8 && y(client, drawn) == 15);
+
+		// nothing to redo after a new change
+		client.undo();
+		client.draw(50, 50);
+		check("redo forgotten after a change", !client.redo());
+
+		// another client brings the shape to the front, so it's undone under its new id
+		SketchRoom room = new SketchRoom("test");
+		client = new Client(room, UndoHistory.BUDGET);
+		Client other = new Client(room, UndoHistory.BUDGET);
+		int shape = client.draw(0, 0);
+		client.recolor(shape, RED);
+		int front = other.toFront(shape);
+		check("recolor undone after the shape's brought to the front",
+				client.undo() && rgb(client, front) == BLACK && at(client, shape) == null);
+		front = other.toFront(front);
+		check("draw undone after it's brought to the front again",
+				client.undo() && at(client, front) == null && room.getSketch().getShapeMap().isEmpty());
+		check("draw redone under its last id", client.redo() && at(client, front) != null);
+
+		// another client deletes the shape, so the change before it is undone instead
+		room = new SketchRoom("test");
+		client = new Client(room, UndoHistory.BUDGET);
+		other = new Client(room, UndoHistory.BUDGET);
+		int first = client.draw(0, 0), second = client.draw(50, 50);
+		client.recolor(second, RED);
+		other.delete(second);
+		check("change to a deleted shape skipped", client.undo() && at(client, first) == null);
+		check("deleted shape not brought back", at(client, second) == null);
+		check("nothing left to undo", !client.undo());
+		other.undo();
+		check("others' shape back", at(client, second) != null && rgb(client, second) == RED);
+
+		// a budget of a few changes forgets the oldest
+		client = new Client(new SketchRoom("test"), 150);
+		int[] ids = new int[10];
+		for (int i = 0; i < ids.length; i++) ids[i] = client.draw(i * 20, 0);
+		int undone = 0;
+		while (client.undo()) undone++;
+		check("oldest changes forgotten (" + undone + " undone)", undone > 0 && undone < 4
+				&& at(client, ids[0]) != null && at(client, ids[ids.length - 1]) == null);
+		client = new Client(new SketchRoom("test"), 0);
+		client.draw(0, 0);
+		check("no budget, no history", !client.undo());
+
+		System.out.println(failures == 0 ? "ok" : failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok: " : "FAILED: ") + what);
+		if (!ok) failures++;
+	}
+
+	private static Shape at(Client client, int id) {
+		return client.sketch.getShapeFromID(id);
+	}
+
+	private static int rgb(Client client, int id) {
+		Shape shape = at(client, id);
+		return shape != null ? shape.getColor().getRGB() : 0;
+	}
+
+	private static int x(Client client, int id) {
+		return at(client, id).getX1();
+	}
+
+	private static int y(Client client, int id) {
+		return at(client, id).getY1();
+	}
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the server writes to clients: messages, the writes they're batched into, and bytes,
+ * so that messages per write and bytes per write (per syscall, near enough) can be watched
+ */
+public class WriteStats {
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	/**
+	 * Records one write (flush) of the given number of messages and bytes
+	 */
+	public void record(int messages, int bytes) {
+		this.messages.add(messages);
+		this.writes.increment();
+		this.bytes.add(bytes);
+	}
+
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public double getMessagesPerWrite() {
+		long w = getWrites();
+		return w == 0 ? 0 : (double) getMessages() / w;
+	}
+
+	public double getBytesPerWrite() {
+		long w = getWrites();
+		return w == 0 ? 0 : (double) getBytes() / w;
+	}
+
+	@Override
+	public String toString() {
+		return getMessages() + " messages in " + getWrites() + " writes ("
+				+ String.format("%.1f", getMessagesPerWrite()) + " messages, "
+				+ String.format("%.0f", getBytesPerWrite()) + " bytes per write)";
+	}
+}
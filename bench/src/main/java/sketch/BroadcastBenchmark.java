@@ -0,0 +1,58 @@
+package sketch;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SketchRoom.broadcast (what SketchServer's broadcast became when it got rooms) of one drag to a room of clients,
+ * under the sketch's update lock as the communicators do it: stamping, keeping it in the history, and queueing it
+ * for each client. The clients are in memory, and take each message off their queue as soon as it's queued, as
+ * a writer keeping up would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+	@Param({ "1", "10", "100", "1000" })
+	public int clients;
+
+	private SketchRoom room;
+
+	/**
+	 * A client with no connection, whose queue is emptied as it's filled
+	 */
+	private static class DrainingCommunicator extends SketchServerCommunicator {
+		DrainingCommunicator(SketchServer server) {
+			super(server);
+		}
+
+		@Override
+		protected void messageQueued() {
+			while (nextMessage() != null) {
+				// written
+			}
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		SketchServer server = new SketchServer(null);
+		room = new SketchRoom("bench");
+		room.getSketch().addShape(Shape.create("rectangle", 0, 0, 10, 10, ColorCache.rgb(0)));
+		for (int i = 0; i < clients; i++) room.join(new DrainingCommunicator(server));
+	}
+
+	@Benchmark
+	public void broadcast() {
+		room.getSketch().lockForUpdate();
+		try {
+			room.broadcast(Message.moveDrag(0, 1, 1));
+		}
+		finally {
+			room.getSketch().unlockForUpdate();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package sketch;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * What the operation log costs: a change to a sketch made the way the server makes one (change, then broadcast,
+ * under the update lock), from four threads at once, without a log and with each durability. Snapshots are taken
+ * meanwhile, as the server takes them (but more often). Afterwards a fresh sketch is restored from the log, and
+ * the run fails if it doesn't match.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class OpLogBenchmark {
+	@Param({ "NONE", "OP", "BATCH", "INTERVAL" })
+	public String durability;
+
+	private SketchRoom room;
+	private Path dir;
+	private OpLog log;						// null with no log
+	private Thread snapshotter;
+
+	/**
+	 * Each thread's own choice of changes
+	 */
+	@State(Scope.Thread)
+	public static class Changes {
+		Random rand = new Random(Thread.currentThread().getId());
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		room = new SketchRoom("bench");
+		if (durability.equals("NONE")) return;
+		dir = Files.createTempDirectory("oplog");
+		log = new OpLog(dir, OpLog.Durability.valueOf(durability), 100);
+		log.replay(room.getSketch());
+		room.setLog(log);
+		snapshotter = new Thread(() -> {
+			try {
+				while (true) {
+					Thread.sleep(200);
+					log.snapshot(room.getSketch());
+				}
+			}
+			catch (InterruptedException | IOException e) {
+				// done
+			}
+		});
+		snapshotter.setDaemon(true);
+		snapshotter.start();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (log == null) return;
+		snapshotter.interrupt();
+		snapshotter.join();
+		log.close();
+		// the snapshot and log should bring a fresh sketch back to exactly the same state
+		Sketch restored = new Sketch();
+		OpLog again = new OpLog(dir, OpLog.Durability.valueOf(durability), 100);
+		again.replay(restored);
+		again.close();
+		Sketch sketch = room.getSketch();
+		if (!restored.getShapeMap().toString().equals(sketch.getShapeMap().toString())
+				|| restored.getNextId() != sketch.getNextId()) {
+			throw new IllegalStateException("restoring from the " + durability + " log didn't get the sketch back");
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) Files.delete(file);
+		}
+		Files.delete(dir);
+	}
+
+	/**
+	 * A change like the ones clients make, mostly drags; false if there turned out to be nothing to change
+	 */
+	@Benchmark
+	public boolean change(Changes changes) {
+		Random rand = changes.rand;
+		Sketch sketch = room.getSketch();
+		sketch.lockForUpdate();
+		try {
+			int r = rand.nextInt(100);
+			int x = rand.nextInt(800), y = rand.nextInt(800);
+			if (r < 10 || sketch.getShapeMap().size() < 10) {
+				Shape shape = new Rectangle(x, y, x + rand.nextInt(100), y + rand.nextInt(100), new Color(rand.nextInt()));
+				int id = sketch.addShape(shape);
+				room.broadcast(Message.draw(id, shape));
+			}
+			else {
+				int id = sketch.getId(x, y);
+				if (id < 0) return false;
+				if (r < 90) {
+					int dx = rand.nextInt(11) - 5, dy = rand.nextInt(11) - 5;
+					sketch.moveShape(id, dx, dy);
+					room.broadcast(Message.moveDrag(id, dx, dy));
+				}
+				else if (r < 95) {
+					Color color = ColorCache.rgb(rand.nextInt());
+					sketch.recolorShape(id, color);
+					room.broadcast(Message.recolor(id, color.getRGB()));
+				}
+				else {
+					sketch.removeShapeByID(id);
+					room.broadcast(Message.delete(id));
+				}
+			}
+			return true;
+		}
+		finally {
+			sketch.unlockForUpdate();
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package sketch;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Formatting a message (a shape drawn, as text and as binary, and the shape's own toString), and parsing traces
+ * of the text protocol each way: what clients send, as the server's communicators read it, and what the server
+ * sends, as the editor's communicator reads it. Each is parsed by TextProtocol, and for comparison by the
+ * split-based parsing (readLine, split(" "), Integer.parseInt, new Color) the communicators used to do.
+ * Parsing is per line; the parsed commands go to communicators that just add up what they're given.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+	private static final String[] TYPES = { "rectangle", "ellipse", "segment" };
+	private static final int LINES = 10000;			// in each trace
+
+	private byte[] fromClients, fromServer;			// the traces
+	private Shape[] shapes;
+	private int next;
+	private CountingCommunicator server;
+	private CountingEditorCommunicator editor;
+
+	/**
+	 * Receives the commands a client sends without touching a sketch or broadcasting
+	 */
+	private static class CountingCommunicator extends SketchServerCommunicator {
+		long sum = 0;
+
+		CountingCommunicator() {
+			super(new SketchServer(null));
+		}
+
+		@Override
+		public void draw(Shape shape) {
+			sum += shape.getX1() + shape.getColor().getRGB();
+		}
+
+		@Override
+		public void movePress(int x, int y) {
+			sum += x + y;
+		}
+
+		@Override
+		public void moveDrag(int dx, int dy) {
+			sum += dx + dy;
+		}
+
+		@Override
+		public void recolor(int x, int y, int rgb) {
+			sum += x + y + rgb;
+		}
+
+		@Override
+		public void delete(int x, int y) {
+			sum += x - y;
+		}
+	}
+
+	/**
+	 * Receives what the server sends without an editor to show it in
+	 */
+	private static class CountingEditorCommunicator extends EditorCommunicator {
+		long sum = 0;
+
+		CountingEditorCommunicator() {
+			super((Editor) null);
+		}
+
+		@Override
+		public void added(int id, Shape shape) {
+			sum += id + shape.getX1();
+		}
+
+		@Override
+		public void drawn(int id, Shape shape) {
+			sum += id + shape.getX1() + shape.getColor().getRGB();
+		}
+
+		@Override
+		public void moved(int id, int dx, int dy) {
+			sum += id + dx + dy;
+		}
+
+		@Override
+		public void recolored(int id, int rgb) {
+			sum += id + rgb;
+		}
+
+		@Override
+		public void deleted(int id) {
+			sum += id;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		Random rand = new Random(42);
+		shapes = new Shape[1024];
+		for (int i = 0; i < shapes.length; i++) shapes[i] = shape(rand);
+		fromClients = clientTrace(rand);
+		fromServer = serverTrace(rand);
+		server = new CountingCommunicator();
+		editor = new CountingEditorCommunicator();
+	}
+
+	private static Shape shape(Random rand) {
+		int x = rand.nextInt(800), y = rand.nextInt(800);
+		return Shape.create(TYPES[rand.nextInt(3)], x, y, x + rand.nextInt(200), y + rand.nextInt(200),
+				ColorCache.rgb(rand.nextInt()));
+	}
+
+	/**
+	 * Sessions of drawing a shape, pressing it, dragging it a long way, and now and then recoloring or deleting it
+	 * (mostly drags, as clients' traffic is)
+	 */
+	private byte[] clientTrace(Random rand) {
+		StringBuilder lines = new StringBuilder();
+		for (int n = 0; n < LINES; ) {
+			Shape shape = shapes[rand.nextInt(shapes.length)];
+			int x = shape.getX1(), y = shape.getY1();
+			lines.append("draw ").append(shape).append('\n');
+			lines.append("move press ").append(x + 1).append(' ').append(y + 1).append('\n');
+			n += 2;
+			for (int i = 0, drags = 100 + rand.nextInt(200); i < drags && n < LINES; i++, n++) {
+				lines.append("move drag ").append(rand.nextInt(11) - 5).append(' ').append(rand.nextInt(11) - 5).append('\n');
+			}
+			if (rand.nextInt(4) == 0 && n < LINES) {
+				lines.append("recolor ").append(x).append(' ').append(y).append(' ').append(rand.nextInt()).append('\n');
+				n++;
+			}
+			if (rand.nextInt(4) == 0 && n < LINES) {
+				lines.append("delete ").append(x).append(' ').append(y).append('\n');
+				n++;
+			}
+		}
+		return lines.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The same sort of sessions as the server broadcasts them, after a snapshot of shapes joining
+	 */
+	private byte[] serverTrace(Random rand) {
+		StringBuilder lines = new StringBuilder();
+		int id = 0, n = 0;
+		for (; n < LINES / 10; n++) lines.append(Message.join(id++, shapes[rand.nextInt(shapes.length)]).text()).append('\n');
+		while (n < LINES) {
+			int drawn = id++;
+			lines.append(Message.draw(drawn, shapes[rand.nextInt(shapes.length)]).text()).append('\n');
+			n++;
+			for (int i = 0, drags = 20 + rand.nextInt(40); i < drags && n < LINES; i++, n++) {
+				lines.append(Message.moveDrag(drawn, rand.nextInt(61) - 30, rand.nextInt(61) - 30).text()).append('\n');
+			}
+			if (rand.nextInt(4) == 0 && n < LINES) {
+				lines.append(Message.recolor(drawn, new Color(rand.nextInt()).getRGB()).text()).append('\n');
+				n++;
+			}
+			if (rand.nextInt(4) == 0 && n < LINES) {
+				lines.append(Message.delete(drawn).text()).append('\n');
+				n++;
+			}
+		}
+		return lines.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public String shapeToString() {
+		return shapes[next++ & (shapes.length - 1)].toString();
+	}
+
+	@Benchmark
+	public byte[] drawText() {
+		int i = next++ & (shapes.length - 1);
+		return Message.draw(i, shapes[i]).textBytes();
+	}
+
+	@Benchmark
+	public byte[] drawBinary() {
+		int i = next++ & (shapes.length - 1);
+		return Message.draw(i, shapes[i]).binary();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public long textFromClients() {
+		TextProtocol text = new TextProtocol();
+		feed(fromClients, buf -> text.decodeFromClient(buf, server));
+		return server.sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public long splitFromClients() throws IOException {
+		BufferedReader in = reader(fromClients);
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] split = line.strip().split(" ");
+			String command = split[0];
+			if (command.equals("draw")) {
+				server.draw(Shape.create(split[1], Integer.parseInt(split[2]), Integer.parseInt(split[3]),
+						Integer.parseInt(split[4]), Integer.parseInt(split[5]), new Color(Integer.parseInt(split[6]))));
+			}
+			else if (command.equals("move")) {
+				if (split[1].equals("press")) server.movePress(Integer.parseInt(split[2]), Integer.parseInt(split[3]));
+				else if (split[1].equals("drag")) server.moveDrag(Integer.parseInt(split[2]), Integer.parseInt(split[3]));
+			}
+			else if (command.equals("recolor")) {
+				server.recolor(Integer.parseInt(split[1]), Integer.parseInt(split[2]), Integer.parseInt(split[3]));
+			}
+			else if (command.equals("delete")) {
+				server.delete(Integer.parseInt(split[1]), Integer.parseInt(split[2]));
+			}
+		}
+		return server.sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public long textFromServer() {
+		TextProtocol text = new TextProtocol();
+		feed(fromServer, buf -> text.decodeFromServer(buf, editor));
+		return editor.sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public long splitFromServer() throws IOException {
+		BufferedReader in = reader(fromServer);
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] split = line.strip().split(" ");
+			String command = split[0];
+			if (command.equals("join") || command.equals("draw")) {
+				Shape shape = Shape.create(split[2], Integer.parseInt(split[3]), Integer.parseInt(split[4]),
+						Integer.parseInt(split[5]), Integer.parseInt(split[6]), new Color(Integer.parseInt(split[7])));
+				if (command.equals("join")) editor.added(Integer.parseInt(split[1]), shape);
+				else editor.drawn(Integer.parseInt(split[1]), shape);
+			}
+			else if (command.equals("move")) {
+				editor.moved(Integer.parseInt(split[2]), Integer.parseInt(split[3]), Integer.parseInt(split[4]));
+			}
+			else if (command.equals("recolor")) {
+				editor.recolored(Integer.parseInt(split[1]), Integer.parseInt(split[2]));
+			}
+			else if (command.equals("delete")) {
+				editor.deleted(Integer.parseInt(split[1]));
+			}
+		}
+		return editor.sum;
+	}
+
+	/**
+	 * Hands the trace to the decoder in 8 KB reads, the way the communicators do
+	 */
+	private static void feed(byte[] trace, java.util.function.Consumer<ByteBuffer> decoder) {
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		int offset = 0;
+		while (offset < trace.length) {
+			int n = Math.min(buf.remaining(), trace.length - offset);
+			buf.put(trace, offset, n);
+			offset += n;
+			buf.flip();
+			decoder.accept(buf);
+			buf.compact();
+		}
+	}
+
+	private static BufferedReader reader(byte[] trace) {
+		return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(trace), StandardCharsets.UTF_8));
+	}
+}
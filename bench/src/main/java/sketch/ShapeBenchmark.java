@@ -0,0 +1,73 @@
+package sketch;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One hit test (Shape.contains) per operation, for each kind of shape, and Segment.pointToSegmentDistance on its
+ * own: shapes up to 200 across scattered over an 800x800 canvas, each paired with a point anywhere on it (so most
+ * tests are misses, as most of a press's are).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeBenchmark {
+	private static final int PAIRS = 4096;		// shape and point pairs gone round (a power of two)
+
+	private Shape[] rectangles, ellipses, segments;
+	private int[] xs, ys;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		rectangles = shapes("rectangle", new Random(0));
+		ellipses = shapes("ellipse", new Random(1));
+		segments = shapes("segment", new Random(2));
+		Random rand = new Random(42);
+		xs = new int[PAIRS];
+		ys = new int[PAIRS];
+		for (int i = 0; i < PAIRS; i++) {
+			xs[i] = rand.nextInt(800);
+			ys[i] = rand.nextInt(800);
+		}
+	}
+
+	private static Shape[] shapes(String type, Random rand) {
+		Shape[] shapes = new Shape[PAIRS];
+		for (int i = 0; i < PAIRS; i++) {
+			int x1 = rand.nextInt(800), y1 = rand.nextInt(800);
+			shapes[i] = Shape.create(type, x1, y1, x1 + rand.nextInt(401) - 200, y1 + rand.nextInt(401) - 200,
+					ColorCache.rgb(rand.nextInt()));
+		}
+		return shapes;
+	}
+
+	@Benchmark
+	public boolean rectangleContains() {
+		int i = next++ & (PAIRS - 1);
+		return rectangles[i].contains(xs[i], ys[i]);
+	}
+
+	@Benchmark
+	public boolean ellipseContains() {
+		int i = next++ & (PAIRS - 1);
+		return ellipses[i].contains(xs[i], ys[i]);
+	}
+
+	@Benchmark
+	public boolean segmentContains() {
+		int i = next++ & (PAIRS - 1);
+		return segments[i].contains(xs[i], ys[i]);
+	}
+
+	@Benchmark
+	public double pointToSegmentDistance() {
+		int i = next++ & (PAIRS - 1);
+		Shape s = segments[i];
+		return Segment.pointToSegmentDistance(xs[i], ys[i], s.getX1(), s.getY1(), s.getX2(), s.getY2());
+	}
+}
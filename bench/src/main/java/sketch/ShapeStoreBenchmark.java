@@ -0,0 +1,57 @@
+package sketch;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ShapeStore.contains, the hit test of one stored shape, for a random shape and point, in each kind of store and
+ * against how many shapes it has (so how far apart in memory the shapes tested are). The shapes are the sizes
+ * people draw, about one per 50x50 of a canvas sized to fit them, as in SketchBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ShapeStoreBenchmark {
+	private static final String[] TYPES = { "rectangle", "ellipse", "segment" };
+	private static final int PROBES = 4096;			// random shapes and points gone round (a power of two)
+
+	@Param({ "1000", "100000", "1000000" })
+	public int shapes;
+
+	@Param({ "HEAP", "ARRAY", "MAPPED" })
+	public ShapeStore.Kind store;
+
+	private ShapeStore stored;
+	private int[] ids, xs, ys;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		int side = (int) Math.sqrt(shapes * 2500.0);
+		Random rand = new Random(42);
+		stored = ShapeStore.create(store);
+		for (int id = 0; id < shapes; id++) {
+			int x1 = rand.nextInt(side), y1 = rand.nextInt(side);
+			stored.put(id, Shape.create(TYPES[rand.nextInt(TYPES.length)], x1, y1, x1 + rand.nextInt(101) - 50,
+					y1 + rand.nextInt(101) - 50, ColorCache.rgb(rand.nextInt())));
+		}
+		ids = new int[PROBES];
+		xs = new int[PROBES];
+		ys = new int[PROBES];
+		for (int i = 0; i < PROBES; i++) {
+			ids[i] = rand.nextInt(shapes);
+			xs[i] = rand.nextInt(side);
+			ys[i] = rand.nextInt(side);
+		}
+	}
+
+	@Benchmark
+	public boolean contains() {
+		int i = next++ & (PROBES - 1);
+		return stored.contains(ids[i], xs[i], ys[i]);
+	}
+}
@@ -0,0 +1,76 @@
+package sketch;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sketch against how many shapes it has, in each kind of store: getId at random points (as pressing, recoloring
+ * and deleting look up the shape there), removeShape at random points (drawing a new shape whenever one is
+ * removed, so the count holds), and getShapes, which copies every shape into a list.
+ * The shapes are the sizes people draw, about one per 50x50 of a canvas sized to fit them, as in
+ * ShapeStoreBenchmark, so there are about as many under each point whatever their number.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SketchBenchmark {
+	private static final String[] TYPES = { "rectangle", "ellipse", "segment" };
+	private static final int POINTS = 4096;			// random points gone round (a power of two)
+
+	@Param({ "1000", "100000", "1000000" })
+	public int shapes;
+
+	@Param({ "HEAP", "ARRAY", "MAPPED" })
+	public ShapeStore.Kind store;
+
+	private Sketch sketch;
+	private int[] xs, ys;
+	private Shape[] replacements;		// drawn in place of whatever removeShape removes at the same point
+	private int next;
+
+	@Setup
+	public void setUp() {
+		int side = (int) Math.sqrt(shapes * 2500.0);
+		Random rand = new Random(42);
+		sketch = new Sketch(ShapeStore.create(store));
+		for (int i = 0; i < shapes; i++) sketch.addShape(shape(rand, side));
+		xs = new int[POINTS];
+		ys = new int[POINTS];
+		replacements = new Shape[POINTS];
+		for (int i = 0; i < POINTS; i++) {
+			xs[i] = rand.nextInt(side);
+			ys[i] = rand.nextInt(side);
+			replacements[i] = shape(rand, side);
+		}
+	}
+
+	private static Shape shape(Random rand, int side) {
+		int x1 = rand.nextInt(side), y1 = rand.nextInt(side);
+		return Shape.create(TYPES[rand.nextInt(TYPES.length)], x1, y1, x1 + rand.nextInt(101) - 50,
+				y1 + rand.nextInt(101) - 50, ColorCache.rgb(rand.nextInt()));
+	}
+
+	@Benchmark
+	public int getId() {
+		int i = next++ & (POINTS - 1);
+		return sketch.getId(xs[i], ys[i]);
+	}
+
+	@Benchmark
+	public int removeShape() {
+		int i = next++ & (POINTS - 1);
+		int id = sketch.removeShape(xs[i], ys[i]);
+		if (id >= 0) sketch.addShape(replacements[i]);
+		return id;
+	}
+
+	@Benchmark
+	public List<Shape> getShapes() {
+		return sketch.getShapes();
+	}
+}